@@ -0,0 +1,99 @@
+/* Copyright (c) 2017-2021, Esoteric Software
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following
+ * conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.esotericsoftware.tcpserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.esotericsoftware.minlog.Log;
+import com.esotericsoftware.tcpserver.MemoryConnection.NullOutputStream;
+
+/** Measures {@link DefaultProtocol} encoding and decoding without a socket. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DefaultProtocolBenchmark {
+	static private final int batch = 1000;
+
+	@Param({"0", "64", "1024"}) int size;
+	@Param({"true", "false"}) boolean metrics;
+
+	private final String message = "event some payload";
+	private byte[] bytes;
+	private DefaultProtocol encoder, decoder;
+	private MemoryConnection encodeConnection, decodeConnection;
+	private ByteArrayInputStream input;
+
+	@Setup
+	public void setup () throws IOException {
+		Log.WARN();
+		Metrics.setEnabled(metrics);
+		bytes = new byte[size];
+
+		encoder = new DefaultProtocol();
+		encodeConnection = new MemoryConnection(encoder, new ByteArrayInputStream(new byte[0]), new NullOutputStream());
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		MemoryConnection connection = new MemoryConnection(new DefaultProtocol(), new ByteArrayInputStream(new byte[0]), output);
+		for (int i = 0; i < batch; i++)
+			connection.sendBlocking(message, bytes);
+
+		decoder = new DefaultProtocol();
+		input = new ByteArrayInputStream(output.toByteArray());
+		decodeConnection = new MemoryConnection(decoder, input, new NullOutputStream());
+	}
+
+	@Benchmark
+	public boolean encode () {
+		return encoder.sendBlocking(encodeConnection, message, bytes, 0, size);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(batch)
+	public int decode () throws IOException {
+		input.reset();
+		try {
+			decoder.readThread(decodeConnection);
+		} catch (EOFException expected) {
+		}
+		return decodeConnection.received;
+	}
+}
@@ -0,0 +1,56 @@
+/* Copyright (c) 2017-2021, Esoteric Software
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following
+ * conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.esotericsoftware.tcpserver;
+
+import static com.esotericsoftware.tcpserver.Util.*;
+
+import java.io.IOException;
+
+import com.esotericsoftware.tcpserver.Protocol.ProtocolRead;
+
+/** Writes raw bytes and reads frames which start with a 4 byte length. The received bytes include the length. */
+public class LengthProtocol extends BinaryProtocolWrite implements ProtocolRead {
+	private byte[] bytes = new byte[1024];
+
+	public void readThread (Connection connection) throws IOException {
+		while (!connection.isClosed()) {
+			int length = connection.input.readInt();
+			if (bytes.length < length + 4) bytes = new byte[length + 4];
+			bytes[0] = (byte)(length >>> 24);
+			bytes[1] = (byte)(length >>> 16);
+			bytes[2] = (byte)(length >>> 8);
+			bytes[3] = (byte)length;
+			if (!readFully(connection, bytes, 4, length)) break;
+			connection.receive(null, null, bytes, length + 4);
+		}
+	}
+
+	/** Returns a frame with the specified number of bytes after the length. */
+	static public byte[] frame (int length) {
+		byte[] bytes = new byte[4 + length];
+		bytes[0] = (byte)(length >>> 24);
+		bytes[1] = (byte)(length >>> 16);
+		bytes[2] = (byte)(length >>> 8);
+		bytes[3] = (byte)length;
+		return bytes;
+	}
+}
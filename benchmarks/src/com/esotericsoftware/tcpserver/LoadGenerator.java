@@ -0,0 +1,264 @@
+/* Copyright (c) 2017-2021, Esoteric Software
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following
+ * conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.esotericsoftware.tcpserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import com.esotericsoftware.minlog.Log;
+
+/** Starts a {@link TcpServer} which echoes messages and many {@link TcpClient}s on localhost which each send at a fixed rate.
+ * Sending is open loop: each message has an intended send time and latency is measured from that time, so a stalled server
+ * increases the reported latency rather than reducing the number of samples (coordinated omission). Throughput and round trip
+ * latency percentiles are printed for each interval and for the whole run.
+ * <p>
+ * Usage: {@code LoadGenerator [-clients 100] [-rate 100] [-size 64] [-protocol default|text|binary] [-seconds 30] [-interval 1]
+ * [-threads 4] [-port 54556] [-host localhost] [-noserver]}. The rate is messages per second for each client. */
+public class LoadGenerator {
+	int clients = 100, rate = 100, size = 64, seconds = 30, interval = 1, threads = Runtime.getRuntime().availableProcessors();
+	int port = 54556;
+	String protocol = "default", host = "localhost";
+	boolean server = true;
+
+	final Histogram intervalLatency = new Histogram(), totalLatency = new Histogram();
+	final LongAdder sent = new LongAdder(), received = new LongAdder(), dropped = new LongAdder();
+	volatile boolean running = true;
+
+	public void run () throws Exception {
+		Log.WARN();
+
+		TcpServer tcpServer = null;
+		if (server) {
+			tcpServer = new TcpServer("server", "LoadServer", port) {
+				protected Protocol newProtocol () {
+					return LoadGenerator.this.newProtocol();
+				}
+
+				public void receive (Connection connection, String event, String payload, byte[] bytes, int count) {
+					if (event == null)
+						connection.send(null, bytes, 0, count);
+					else if (bytes == null)
+						connection.send(event + '\n');
+					else
+						connection.send(event + ' ' + payload, bytes, 0, count);
+				}
+			};
+			tcpServer.start();
+		}
+
+		ArrayList<Client> clientList = new ArrayList();
+		for (int i = 0; i < clients; i++) {
+			Client client = new Client(i);
+			client.start();
+			clientList.add(client);
+		}
+		for (Client client : clientList) {
+			if (!client.waitForConnection(10000)) throw new RuntimeException("Unable to connect: " + client);
+		}
+		System.out.println(clients + " clients connected, " + protocol + " protocol, " + size + " bytes, " + rate
+			+ " msgs/sec/client, " + (long)clients * rate + " msgs/sec total.");
+
+		Thread[] pacers = new Thread[Math.max(1, Math.min(threads, clients))];
+		for (int i = 0; i < pacers.length; i++) {
+			ArrayList<Client> subset = new ArrayList();
+			for (int ii = i; ii < clients; ii += pacers.length)
+				subset.add(clientList.get(ii));
+			pacers[i] = new Thread("Pacer" + i) {
+				public void run () {
+					pace(subset.toArray(new Client[subset.size()]));
+				}
+			};
+			pacers[i].setDaemon(true);
+			pacers[i].start();
+		}
+
+		System.out.println("   sec     sent/s     recv/s  dropped   p50 ms   p99 ms  p999 ms   max ms");
+		long start = System.nanoTime(), lastSent = 0, lastReceived = 0;
+		for (int second = interval; second <= seconds; second += interval) {
+			Thread.sleep(Math.max(0, start + TimeUnit.SECONDS.toNanos(second) - System.nanoTime()) / 1000000);
+			Histogram snapshot = intervalLatency.snapshot();
+			intervalLatency.reset();
+			totalLatency.add(snapshot);
+			long sent = this.sent.sum(), received = this.received.sum();
+			System.out.printf("%6d %10d %10d %8d %8.2f %8.2f %8.2f %8.2f%n", second, (sent - lastSent) / interval,
+				(received - lastReceived) / interval, dropped.sum(), millis(snapshot.getValueAtPercentile(50)),
+				millis(snapshot.getValueAtPercentile(99)), millis(snapshot.getValueAtPercentile(99.9)), millis(snapshot.getMax()));
+			lastSent = sent;
+			lastReceived = received;
+		}
+		running = false;
+
+		System.out.printf("Total: sent %d, received %d, dropped %d, %.0f msgs/sec%n", sent.sum(), received.sum(), dropped.sum(),
+			received.sum() / (double)seconds);
+		System.out.printf("Latency ms: p50 %.2f, p90 %.2f, p99 %.2f, p999 %.2f, p9999 %.2f, max %.2f%n",
+			millis(totalLatency.getValueAtPercentile(50)), millis(totalLatency.getValueAtPercentile(90)),
+			millis(totalLatency.getValueAtPercentile(99)), millis(totalLatency.getValueAtPercentile(99.9)),
+			millis(totalLatency.getValueAtPercentile(99.99)), millis(totalLatency.getMax()));
+
+		Log.NONE(); // Avoid errors for messages still in flight.
+		for (Client client : clientList)
+			client.stop();
+		if (tcpServer != null) tcpServer.stop();
+	}
+
+	/** Sends for each client when its next intended send time is reached. A client that falls behind sends immediately, keeping
+	 * its intended send times. */
+	void pace (Client[] clients) {
+		long period = TimeUnit.SECONDS.toNanos(1) / rate, now = System.nanoTime();
+		for (int i = 0, n = clients.length; i < n; i++)
+			clients[i].next = now + period * i / n;
+		while (running) {
+			long next = Long.MAX_VALUE;
+			now = System.nanoTime();
+			for (Client client : clients) {
+				while (client.next <= now && running) {
+					client.send(client.next);
+					client.next += period;
+				}
+				next = Math.min(next, client.next);
+			}
+			long wait = next - System.nanoTime();
+			if (wait > 0) LockSupport.parkNanos(wait);
+		}
+	}
+
+	Protocol newProtocol () {
+		switch (protocol) {
+		case "text":
+			return new TextProtocol(StandardCharsets.ISO_8859_1, "\n");
+		case "binary":
+			return new LengthProtocol();
+		default:
+			return new DefaultProtocol();
+		}
+	}
+
+	static double millis (long nanos) {
+		return nanos / 1000000d;
+	}
+
+	class Client extends TcpClient {
+		final boolean text, binary;
+		final byte[] bytes;
+		final String padding;
+		long next;
+
+		Client (int index) {
+			super("client", "LoadClient" + index, host, port, LoadGenerator.this.newProtocol());
+			setRetryDelays(100, 500, 1000);
+			text = protocol.equals("text");
+			binary = protocol.equals("binary");
+			if (binary) {
+				bytes = LengthProtocol.frame(Math.max(8, size));
+				padding = null;
+			} else if (text) {
+				char[] chars = new char[size];
+				Arrays.fill(chars, 'x');
+				padding = new String(chars);
+				bytes = null;
+			} else {
+				bytes = new byte[size];
+				padding = null;
+			}
+		}
+
+		/** @param intended The time the message should have been sent, echoed back to measure latency. */
+		void send (long intended) {
+			try {
+				if (binary) {
+					synchronized (bytes) {
+						for (int i = 0; i < 8; i++)
+							bytes[4 + i] = (byte)(intended >>> (56 - i * 8));
+						send(null, bytes, 0, bytes.length);
+					}
+				} else if (text)
+					send(intended + " " + padding + '\n');
+				else
+					send("ping " + intended, bytes, 0, bytes.length);
+				sent.increment();
+			} catch (IllegalStateException ex) { // Send queue is full.
+				dropped.increment();
+			}
+		}
+
+		public void receive (String event, String payload, byte[] bytes, int count) {
+			long intended;
+			if (binary) {
+				intended = 0;
+				for (int i = 0; i < 8; i++)
+					intended = intended << 8 | (bytes[4 + i] & 0xff);
+			} else if (text) {
+				int index = event.indexOf(' '); // No padding with -size 0.
+				intended = Long.parseLong(index == -1 ? event : event.substring(0, index));
+			} else
+				intended = Long.parseLong(payload);
+			intervalLatency.record(System.nanoTime() - intended);
+			received.increment();
+		}
+	}
+
+	static public void main (String[] args) throws Exception {
+		LoadGenerator generator = new LoadGenerator();
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+			case "-clients":
+				generator.clients = Integer.parseInt(args[++i]);
+				break;
+			case "-rate":
+				generator.rate = Integer.parseInt(args[++i]);
+				break;
+			case "-size":
+				generator.size = Integer.parseInt(args[++i]);
+				break;
+			case "-protocol":
+				generator.protocol = args[++i];
+				break;
+			case "-seconds":
+				generator.seconds = Integer.parseInt(args[++i]);
+				break;
+			case "-interval":
+				generator.interval = Integer.parseInt(args[++i]);
+				break;
+			case "-threads":
+				generator.threads = Integer.parseInt(args[++i]);
+				break;
+			case "-port":
+				generator.port = Integer.parseInt(args[++i]);
+				break;
+			case "-host":
+				generator.host = args[++i];
+				break;
+			case "-noserver":
+				generator.server = false;
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown argument: " + args[i]);
+			}
+		}
+		generator.run();
+		System.exit(0);
+	}
+}
@@ -0,0 +1,150 @@
+/* Copyright (c) 2017-2021, Esoteric Software
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following
+ * conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.esotericsoftware.tcpserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.esotericsoftware.minlog.Log;
+/** Measures round trips through a {@link TcpServer} which echoes each message to a {@link TcpClient} on localhost. Each JMH
+ * thread has its own client, so the number of connections is set with {@code -t}. Throughput mode reports messages/sec, sample
+ * mode reports the p50, p99 and p999 latencies. */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackBenchmark {
+	static final int port = 54555;
+
+	@Param({"default", "text", "binary"}) String protocol;
+	@Param({"16", "1024", "65536"}) int size;
+
+	TcpServer server;
+
+	@Setup(Level.Trial)
+	public void setup () {
+		Log.WARN();
+		server = new TcpServer("server", "BenchmarkServer", port) {
+			protected Protocol newProtocol () {
+				return LoopbackBenchmark.this.newProtocol();
+			}
+
+			public void receive (Connection connection, String event, String payload, byte[] bytes, int count) {
+				if (event == null)
+					connection.send(null, bytes, 0, count);
+				else if (bytes == null)
+					connection.send(event + '\n');
+				else
+					connection.send(event, bytes, 0, count);
+			}
+		};
+		server.start();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown () {
+		server.stop();
+	}
+
+	Protocol newProtocol () {
+		switch (protocol) {
+		case "text":
+			return new TextProtocol(StandardCharsets.ISO_8859_1, "\n");
+		case "binary":
+			return new LengthProtocol();
+		default:
+			return new DefaultProtocol();
+		}
+	}
+
+	@Benchmark
+	public void roundTrip (Client client) throws InterruptedException {
+		client.send();
+		client.received.acquire();
+	}
+
+	@State(Scope.Thread)
+	static public class Client {
+		final Semaphore received = new Semaphore(0);
+		TcpClient client;
+		String message;
+		byte[] bytes;
+		boolean text, binary;
+
+		@Setup(Level.Trial)
+		public void setup (LoopbackBenchmark benchmark) {
+			text = benchmark.protocol.equals("text");
+			binary = benchmark.protocol.equals("binary");
+			if (text) {
+				char[] chars = new char[benchmark.size];
+				Arrays.fill(chars, 'x');
+				message = new String(chars) + '\n';
+			} else if (binary) {
+				bytes = LengthProtocol.frame(benchmark.size);
+			} else {
+				message = "echo";
+				bytes = new byte[benchmark.size];
+			}
+
+			client = new TcpClient("client", "BenchmarkClient", "localhost", port, benchmark.newProtocol()) {
+				public void receive (String event, String payload, byte[] bytes, int count) {
+					received.release();
+				}
+			};
+			client.setRetryDelays(100);
+			client.start();
+			if (!client.waitForConnection(10000)) throw new RuntimeException("Unable to connect.");
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown () {
+			client.stop();
+		}
+
+		void send () {
+			if (text)
+				client.send(message);
+			else if (binary)
+				client.send(null, bytes, 0, bytes.length);
+			else
+				client.send(message, bytes, 0, bytes.length);
+		}
+	}
+}
@@ -0,0 +1,66 @@
+/* Copyright (c) 2017-2021, Esoteric Software
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following
+ * conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.esotericsoftware.tcpserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/** A connection which reads and writes streams in memory rather than a socket, for benchmarking protocols. */
+public class MemoryConnection extends Connection {
+	int received;
+
+	public MemoryConnection (Protocol protocol, InputStream input, OutputStream output) throws IOException {
+		super("benchmark", "Benchmark", new MemorySocket(input, output), protocol);
+	}
+
+	public void receive (String event, String payload, byte[] bytes, int count) {
+		received++;
+	}
+
+	static class MemorySocket extends Socket {
+		private final InputStream input;
+		private final OutputStream output;
+
+		MemorySocket (InputStream input, OutputStream output) {
+			this.input = input;
+			this.output = output;
+		}
+
+		public InputStream getInputStream () {
+			return input;
+		}
+
+		public OutputStream getOutputStream () {
+			return output;
+		}
+	}
+
+	static class NullOutputStream extends OutputStream {
+		public void write (int b) {
+		}
+
+		public void write (byte[] bytes, int offset, int length) {
+		}
+	}
+}
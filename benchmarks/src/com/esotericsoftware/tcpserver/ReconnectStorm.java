@@ -0,0 +1,222 @@
+/* Copyright (c) 2017-2021, Esoteric Software
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following
+ * conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.esotericsoftware.tcpserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import com.esotericsoftware.minlog.Log;
+
+/** Simulates many clients reconnecting after a server restart to compare {@link Backoff} strategies. All clients start
+ * connecting at the same instant while the server is down, then the server starts listening. Each client is a {@link Retry} on a
+ * shared scheduler which opens a socket, so thousands of clients don't need a thread each. Once connected a client closes its
+ * socket and pauses, keeping file descriptors and ephemeral ports free.
+ * <p>
+ * For each strategy the connection attempts and accepts per bin are printed, along with the total attempts, the peak accepts in a
+ * bin and the time until all clients connected. Without jitter the clients arrive in spikes, with jitter the accept rate is
+ * smoothed at the cost of some clients connecting later.
+ * <p>
+ * Usage: {@code ReconnectStorm [-clients 10000] [-downtime 3000] [-seconds 30] [-bin 250] [-threads 8] [-port 54557]
+ * [-strategy all|delays|exponential|full|decorrelated]}. */
+public class ReconnectStorm {
+	int clients = 10000, downtime = 3000, seconds = 30, bin = 250, threads = 8, port = 54557;
+	String strategy = "all";
+
+	public void run () throws Exception {
+		Log.WARN();
+		String[] strategies = strategy.equals("all") ? new String[] {"delays", "exponential", "full", "decorrelated"}
+			: new String[] {strategy};
+		ArrayList<Result> results = new ArrayList();
+		for (String name : strategies)
+			results.add(run(name));
+
+		System.out.println();
+		System.out.println("strategy       attempts  peak accepts/bin  connected  all connected ms");
+		for (Result result : results) {
+			System.out.printf("%-13s %9d %17d %10d %17s%n", result.strategy, result.attempts, result.peak, result.connected,
+				result.connected == clients ? String.valueOf(result.allConnected) : "-");
+		}
+	}
+
+	Result run (String name) throws Exception {
+		int bins = seconds * 1000 / bin;
+		AtomicIntegerArray attempts = new AtomicIntegerArray(bins), accepts = new AtomicIntegerArray(bins);
+		AtomicInteger connected = new AtomicInteger();
+		ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(threads);
+		scheduler.setRemoveOnCancelPolicy(true);
+
+		long start = System.nanoTime();
+		ArrayList<Client> clientList = new ArrayList(clients);
+		for (int i = 0; i < clients; i++) {
+			Client client = new Client(i, start, attempts, accepts, connected);
+			client.setBackoff(newBackoff(name));
+			client.setScheduler(scheduler);
+			clientList.add(client);
+		}
+		for (Client client : clientList)
+			client.start();
+
+		Thread.sleep(downtime);
+		ServerSocket server = new ServerSocket();
+		server.setReuseAddress(true);
+		server.bind(new InetSocketAddress("localhost", port), 4096);
+		Thread acceptor = new Thread("Acceptor") {
+			public void run () {
+				while (true) {
+					try {
+						server.accept().close();
+					} catch (IOException ex) {
+						return;
+					}
+				}
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		long end = start + TimeUnit.SECONDS.toNanos(seconds);
+		while (connected.get() < clients && System.nanoTime() < end)
+			Thread.sleep(10);
+		long allConnected = (System.nanoTime() - start) / 1000000;
+
+		for (Client client : clientList)
+			client.stop();
+		scheduler.shutdownNow();
+		server.close();
+		acceptor.join();
+
+		Result result = new Result();
+		result.strategy = name;
+		result.connected = connected.get();
+		result.allConnected = allConnected;
+		System.out.println();
+		System.out.println(name + ": " + clients + " clients, server down for " + downtime + " ms");
+		System.out.println("    ms  attempts   accepts");
+		int last = (int)Math.min(bins - 1, allConnected / bin);
+		for (int i = 0; i <= last; i++) {
+			int count = attempts.get(i);
+			result.attempts += count;
+			result.peak = Math.max(result.peak, accepts.get(i));
+			System.out.printf("%6d %9d %9d %s%n", i * bin, count, accepts.get(i), bar(count));
+		}
+		return result;
+	}
+
+	Backoff newBackoff (String name) {
+		switch (name) {
+		case "delays":
+			return new Backoff.Delays(1000, 3000, 5000, 8000, 13000);
+		case "exponential":
+			return new Backoff.Exponential(250, 8000);
+		case "full":
+			return new Backoff.FullJitter(250, 8000);
+		case "decorrelated":
+			return new Backoff.DecorrelatedJitter(250, 8000);
+		default:
+			throw new IllegalArgumentException("Unknown strategy: " + name);
+		}
+	}
+
+	String bar (int count) {
+		int length = (int)Math.min(60, Math.ceil(count * 60d / clients));
+		StringBuilder buffer = new StringBuilder(length);
+		for (int i = 0; i < length; i++)
+			buffer.append('#');
+		return buffer.toString();
+	}
+
+	class Client extends Retry {
+		final long start;
+		final AtomicIntegerArray attempts, accepts;
+		final AtomicInteger connected;
+
+		Client (int index, long start, AtomicIntegerArray attempts, AtomicIntegerArray accepts, AtomicInteger connected) {
+			super("client", "StormClient" + index);
+			this.start = start;
+			this.attempts = attempts;
+			this.accepts = accepts;
+			this.connected = connected;
+		}
+
+		protected void retry () {
+			int index = (int)((System.nanoTime() - start) / 1000000 / bin);
+			if (index < attempts.length()) attempts.incrementAndGet(index);
+			try (Socket socket = new Socket()) {
+				socket.connect(new InetSocketAddress("localhost", port), 1000);
+				socket.setSoLinger(true, 0); // Reset instead of TIME_WAIT, so runs don't exhaust ephemeral ports.
+			} catch (IOException ex) {
+				failed();
+				return;
+			}
+			if (index < accepts.length()) accepts.incrementAndGet(index);
+			success();
+			connected.incrementAndGet();
+			pause();
+		}
+	}
+
+	static class Result {
+		String strategy;
+		int attempts, peak, connected;
+		long allConnected;
+	}
+
+	static public void main (String[] args) throws Exception {
+		ReconnectStorm storm = new ReconnectStorm();
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+			case "-clients":
+				storm.clients = Integer.parseInt(args[++i]);
+				break;
+			case "-downtime":
+				storm.downtime = Integer.parseInt(args[++i]);
+				break;
+			case "-seconds":
+				storm.seconds = Integer.parseInt(args[++i]);
+				break;
+			case "-bin":
+				storm.bin = Integer.parseInt(args[++i]);
+				break;
+			case "-threads":
+				storm.threads = Integer.parseInt(args[++i]);
+				break;
+			case "-port":
+				storm.port = Integer.parseInt(args[++i]);
+				break;
+			case "-strategy":
+				storm.strategy = args[++i];
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown argument: " + args[i]);
+			}
+		}
+		storm.run();
+		System.exit(0);
+	}
+}
@@ -0,0 +1,93 @@
+/* Copyright (c) 2017-2021, Esoteric Software
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following
+ * conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.esotericsoftware.tcpserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.esotericsoftware.minlog.Log;
+import com.esotericsoftware.tcpserver.MemoryConnection.NullOutputStream;
+import com.esotericsoftware.tcpserver.TextProtocol.TextReader;
+
+/** Measures splitting lines with {@link TextReader}, which scans for the delimiter in {@code nextLine}. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TextReaderBenchmark {
+	static private final int batch = 1000;
+
+	@Param({"16", "256", "4096"}) int length;
+	@Param({"lf", "crlf"}) String newline;
+
+	private TextProtocol protocol;
+	private MemoryConnection connection;
+	private ByteArrayInputStream input;
+
+	@Setup
+	public void setup () throws IOException {
+		Log.WARN();
+		String delimiter = newline.equals("crlf") ? "\r\n" : "\n";
+		StringBuilder buffer = new StringBuilder((length + delimiter.length()) * batch);
+		for (int i = 0; i < batch; i++) {
+			for (int ii = 0; ii < length; ii++)
+				buffer.append((char)('a' + ii % 26));
+			buffer.append(delimiter);
+		}
+		protocol = new TextProtocol(StandardCharsets.ISO_8859_1, delimiter);
+		input = new ByteArrayInputStream(buffer.toString().getBytes(StandardCharsets.ISO_8859_1));
+		connection = new MemoryConnection(protocol, input, new NullOutputStream());
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(batch)
+	public void readLine (Blackhole blackhole) throws IOException {
+		input.reset();
+		TextReader reader = protocol.newTextReader(connection);
+		while (true) {
+			String line = reader.readLine();
+			if (line == null) {
+				if (reader.isClosed()) break;
+				continue;
+			}
+			blackhole.consume(line);
+		}
+	}
+}
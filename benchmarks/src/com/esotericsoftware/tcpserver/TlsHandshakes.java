@@ -0,0 +1,196 @@
+/* Copyright (c) 2017-2021, Esoteric Software
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following
+ * conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.esotericsoftware.tcpserver;
+
+import java.io.File;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509ExtendedTrustManager;
+
+import com.esotericsoftware.minlog.Log;
+
+/** Connects clients to a TLS {@link TcpServer} on localhost for several rounds and prints the full and resumed handshakes seen by
+ * the clients and the server. All clients share one context, so after the first round they should resume sessions. The client's
+ * trust manager counts the server certificates it checks, which happens only for a full handshake, so it shows whether the
+ * handshakes counted as resumed really were, for TLS 1.3 as well as TLS 1.2.
+ * <p>
+ * The key store holds a self-signed certificate used by both sides, eg generated with:
+ * <pre>
+ * keytool -genkeypair -alias localhost -keyalg EC -dname CN=localhost -ext SAN=dns:localhost,ip:127.0.0.1 -storetype PKCS12
+ *    -keystore localhost.p12 -storepass password
+ * </pre>
+ * Usage: {@code TlsHandshakes -keystore localhost.p12 [-password password] [-clients 20] [-rounds 3] [-hold 250]
+ * [-protocol TLSv1.3] [-port 54558]}. The hold is the milliseconds clients stay connected each round. With TLS 1.3 the server
+ * sends session tickets after the handshake, so a client which disconnects sooner may have no ticket to resume with. */
+public class TlsHandshakes {
+	File keyStore;
+	String password = "password", protocol = "TLSv1.3";
+	int clients = 20, rounds = 3, hold = 250, port = 54558;
+
+	final AtomicInteger certificateChecks = new AtomicInteger();
+
+	public void run () throws Exception {
+		Log.WARN();
+		if (keyStore == null) throw new IllegalArgumentException("-keystore is required.");
+		System.setProperty("jdk.tls.client.protocols", protocol);
+
+		TcpServer server = new TcpServer("server", "TlsServer", port) {};
+		server.setSslContext(Tls.newContext(keyStore, password));
+		server.setSetupThreads(4);
+		server.start();
+
+		SSLContext context = newClientContext(Tls.load(keyStore, password));
+		System.out.println(clients + " clients, " + protocol);
+		System.out.println("round  client full  client resumed  server full  server resumed  certificate checks");
+		long serverFull = 0, serverResumed = 0;
+		int checks = 0;
+		for (int round = 1; round <= rounds; round++) {
+			ArrayList<TcpClient> clientList = new ArrayList(clients);
+			for (int i = 0; i < clients; i++) {
+				TcpClient client = new TcpClient("client", "TlsClient" + i, "localhost", port);
+				client.setSslContext(context);
+				client.setVerifyHostname(true);
+				client.start();
+				clientList.add(client);
+			}
+			for (TcpClient client : clientList)
+				if (!client.waitForConnection(10000)) throw new RuntimeException("Client did not connect: " + client);
+			Thread.sleep(hold);
+			long clientFull = 0, clientResumed = 0;
+			for (TcpClient client : clientList) {
+				client.stop();
+				long handshakes = client.getMetrics().getHandshakes(), resumed = client.getMetrics().getResumedHandshakes();
+				clientFull += handshakes - resumed;
+				clientResumed += resumed;
+			}
+
+			// The server may record a handshake just after the client's completes.
+			Metrics metrics = server.getMetrics();
+			for (int i = 0; i < 100 && metrics.getHandshakes() < (long)clients * round; i++)
+				Thread.sleep(10);
+			long full = metrics.getHandshakes() - metrics.getResumedHandshakes() - serverFull;
+			long resumed = metrics.getResumedHandshakes() - serverResumed;
+			serverFull += full;
+			serverResumed += resumed;
+			int roundChecks = certificateChecks.get() - checks;
+			checks += roundChecks;
+			System.out.printf("%5d %12d %15d %12d %15d %19d%s%n", round, clientFull, clientResumed, full, resumed, roundChecks,
+				clientFull == roundChecks ? "" : "  (mismatch)");
+		}
+		server.stop();
+	}
+
+	/** Returns a context which trusts the key store and counts the certificate checks. */
+	SSLContext newClientContext (KeyStore trustStore) throws Exception {
+		TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		factory.init(trustStore);
+		X509ExtendedTrustManager trust = null;
+		for (TrustManager manager : factory.getTrustManagers())
+			if (manager instanceof X509ExtendedTrustManager) trust = (X509ExtendedTrustManager)manager;
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(null, new TrustManager[] {new CountingTrustManager(trust)}, null);
+		context.getClientSessionContext().setSessionCacheSize(Tls.sessionCacheSize);
+		context.getClientSessionContext().setSessionTimeout(Tls.sessionTimeout);
+		return context;
+	}
+
+	class CountingTrustManager extends X509ExtendedTrustManager {
+		final X509ExtendedTrustManager trust;
+
+		CountingTrustManager (X509ExtendedTrustManager trust) {
+			this.trust = trust;
+		}
+
+		public void checkServerTrusted (X509Certificate[] chain, String authType, Socket socket) throws CertificateException {
+			certificateChecks.incrementAndGet();
+			trust.checkServerTrusted(chain, authType, socket);
+		}
+
+		public void checkServerTrusted (X509Certificate[] chain, String authType, SSLEngine engine) throws CertificateException {
+			certificateChecks.incrementAndGet();
+			trust.checkServerTrusted(chain, authType, engine);
+		}
+
+		public void checkServerTrusted (X509Certificate[] chain, String authType) throws CertificateException {
+			certificateChecks.incrementAndGet();
+			trust.checkServerTrusted(chain, authType);
+		}
+
+		public void checkClientTrusted (X509Certificate[] chain, String authType, Socket socket) throws CertificateException {
+			trust.checkClientTrusted(chain, authType, socket);
+		}
+
+		public void checkClientTrusted (X509Certificate[] chain, String authType, SSLEngine engine) throws CertificateException {
+			trust.checkClientTrusted(chain, authType, engine);
+		}
+
+		public void checkClientTrusted (X509Certificate[] chain, String authType) throws CertificateException {
+			trust.checkClientTrusted(chain, authType);
+		}
+
+		public X509Certificate[] getAcceptedIssuers () {
+			return trust.getAcceptedIssuers();
+		}
+	}
+
+	static public void main (String[] args) throws Exception {
+		TlsHandshakes test = new TlsHandshakes();
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+			case "-keystore":
+				test.keyStore = new File(args[++i]);
+				break;
+			case "-password":
+				test.password = args[++i];
+				break;
+			case "-clients":
+				test.clients = Integer.parseInt(args[++i]);
+				break;
+			case "-rounds":
+				test.rounds = Integer.parseInt(args[++i]);
+				break;
+			case "-hold":
+				test.hold = Integer.parseInt(args[++i]);
+				break;
+			case "-protocol":
+				test.protocol = args[++i];
+				break;
+			case "-port":
+				test.port = Integer.parseInt(args[++i]);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown argument: " + args[i]);
+			}
+		}
+		test.run();
+		System.exit(0);
+	}
+}
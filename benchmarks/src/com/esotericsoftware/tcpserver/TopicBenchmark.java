@@ -0,0 +1,132 @@
+/* Copyright (c) 2017-2021, Esoteric Software
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following
+ * conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.esotericsoftware.tcpserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.esotericsoftware.minlog.Log;
+import com.esotericsoftware.tcpserver.MemoryConnection.NullOutputStream;
+import com.esotericsoftware.tcpserver.Protocol.ProtocolWrite;
+
+/** Measures {@link Topics#publish(String, String, byte[], int, int)} with many topics, compared to filtering every connection's
+ * subscriptions for each publish. Publications are counted rather than queued, so only the routing is measured. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TopicBenchmark {
+	@Param({"100000"}) int topics;
+	@Param({"1000"}) int connections;
+	/** The number of prefix subscriptions, eg <code>topic12*</code>. */
+	@Param({"0", "1000"}) int prefixes;
+
+	private final byte[] bytes = new byte[64];
+	private Topics index;
+	private MemoryConnection[] subscribers;
+	private HashSet<String>[] filters;
+	private String[] names;
+
+	@Setup
+	public void setup () throws IOException {
+		Log.WARN();
+		index = new Topics();
+		subscribers = new MemoryConnection[connections];
+		filters = new HashSet[connections];
+		for (int i = 0; i < connections; i++) {
+			subscribers[i] = new MemoryConnection(new CountingProtocol(), new ByteArrayInputStream(new byte[0]),
+				new NullOutputStream());
+			filters[i] = new HashSet();
+		}
+		names = new String[topics];
+		for (int i = 0; i < topics; i++) {
+			names[i] = "topic" + i;
+			int connection = i % connections;
+			index.subscribe(subscribers[connection], names[i]);
+			filters[connection].add(names[i]);
+		}
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		for (int i = 0; i < prefixes; i++)
+			index.subscribe(subscribers[random.nextInt(connections)], "topic" + i + "*");
+	}
+
+	@Benchmark
+	public int publish () {
+		String topic = names[ThreadLocalRandom.current().nextInt(topics)];
+		return index.publish(topic, "tick", bytes, 0, bytes.length);
+	}
+
+	/** Checks every connection's subscriptions, as application code does without topics. */
+	@Benchmark
+	public int filterAll () {
+		String topic = names[ThreadLocalRandom.current().nextInt(topics)];
+		int sent = 0;
+		for (int i = 0, n = connections; i < n; i++) {
+			if (filters[i].contains(topic)) {
+				subscribers[i].send("tick", bytes, 0, bytes.length);
+				sent++;
+			}
+		}
+		return sent;
+	}
+
+	static class CountingProtocol implements ProtocolWrite {
+		int count;
+
+		public void writeThread (Connection connection) {
+		}
+
+		public void send (Connection connection, String message) {
+			count++;
+		}
+
+		public void send (Connection connection, String message, byte[] bytes, int offset, int count) {
+			this.count++;
+		}
+
+		public boolean sendBlocking (Connection connection, String message, byte[] bytes, int offset, int count) {
+			this.count++;
+			return true;
+		}
+
+		public boolean publish (Connection connection, Topics.Publication publication) {
+			count++;
+			return true;
+		}
+	}
+}
@@ -0,0 +1,136 @@
+/* Copyright (c) 2017-2021, Esoteric Software
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following
+ * conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.esotericsoftware.tcpserver;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.esotericsoftware.minlog.Log;
+
+/** Sends messages over a {@link UdpConnection} on localhost while both sides drop a fraction of their datagrams, then checks that
+ * every message arrived exactly once and that ordered messages arrived in order. Prints the latency percentiles, retransmits and
+ * datagrams dropped by the simulation. Every other message is sent unordered when the mode is mixed.
+ * <p>
+ * Usage: {@code UdpLossSimulation [-loss 0.1] [-messages 20000] [-rate 2000] [-size 64] [-mode ordered|unordered|mixed]
+ * [-port 54559]}. The rate is messages per second. */
+public class UdpLossSimulation {
+	double loss = 0.1;
+	int messages = 20000, rate = 2000, size = 64, port = 54559;
+	String mode = "ordered";
+
+	final Histogram latency = new Histogram();
+	final AtomicInteger received = new AtomicInteger(), duplicates = new AtomicInteger(), outOfOrder = new AtomicInteger();
+	final AtomicLong lastOrdered = new AtomicLong(-1);
+
+	public void run () throws Exception {
+		Log.WARN();
+
+		final boolean[] seen = new boolean[messages];
+		ReliableUdpServer server = new ReliableUdpServer("server", "LossServer", port) {
+			public void receive (UdpConnection connection, String event, String payload, byte[] bytes, int count) {
+				int space = payload.indexOf(' ');
+				int index = Integer.parseInt(payload.substring(0, space));
+				latency.record(System.nanoTime() - Long.parseLong(payload.substring(space + 1)));
+				synchronized (seen) {
+					if (seen[index]) {
+						duplicates.incrementAndGet();
+						return;
+					}
+					seen[index] = true;
+				}
+				if (event.equals("o")) {
+					if (index < lastOrdered.get()) outOfOrder.incrementAndGet();
+					lastOrdered.set(index);
+				}
+				received.incrementAndGet();
+			}
+		};
+		ReliableUdpServer client = new ReliableUdpServer("client", "LossClient");
+		client.setAccept(false);
+		server.setLoss(loss);
+		client.setLoss(loss);
+		server.start();
+		client.start();
+
+		UdpConnection connection = client.connect("localhost", port, 5000);
+		byte[] bytes = new byte[size];
+		long start = System.nanoTime(), interval = 1000000000L / rate;
+		for (int i = 0; i < messages; i++) {
+			long next = start + i * interval;
+			while (System.nanoTime() < next)
+				Thread.yield();
+			boolean ordered = mode.equals("ordered") || (mode.equals("mixed") && i % 2 == 0);
+			String message = (ordered ? "o " : "u ") + i + " " + System.nanoTime();
+			while (!(ordered ? connection.send(message, bytes, 0, size) : connection.sendUnordered(message, bytes, 0, size)))
+				Thread.sleep(1);
+		}
+		long end = System.currentTimeMillis() + 30000;
+		while (received.get() < messages && System.currentTimeMillis() < end)
+			Thread.sleep(10);
+
+		System.out.println(mode + ", " + (loss * 100) + "% loss each way, " + messages + " messages at " + rate + "/s");
+		System.out.println("Received: " + received.get() + " of " + messages + ", duplicates: " + duplicates.get()
+			+ ", out of order: " + outOfOrder.get());
+		System.out.println("Retransmits: " + connection.getRetransmits() + ", dropped: " + (client.getLost() + server.getLost())
+			+ ", RTT: " + connection.getRoundTripTime() / 1000 + " us, RTO: " + connection.getRetransmitTimeout() / 1000000 + " ms");
+		System.out.printf("Latency ms: p50 %.2f, p90 %.2f, p99 %.2f, p99.9 %.2f, max %.2f%n", latency.getValueAtPercentile(50) / 1e6,
+			latency.getValueAtPercentile(90) / 1e6, latency.getValueAtPercentile(99) / 1e6, latency.getValueAtPercentile(99.9) / 1e6,
+			latency.getMax() / 1e6);
+		connection.close();
+		client.stop();
+		server.stop();
+		if (received.get() != messages || duplicates.get() > 0 || outOfOrder.get() > 0) {
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+
+	static public void main (String[] args) throws Exception {
+		UdpLossSimulation test = new UdpLossSimulation();
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+			case "-loss":
+				test.loss = Double.parseDouble(args[++i]);
+				break;
+			case "-messages":
+				test.messages = Integer.parseInt(args[++i]);
+				break;
+			case "-rate":
+				test.rate = Integer.parseInt(args[++i]);
+				break;
+			case "-size":
+				test.size = Integer.parseInt(args[++i]);
+				break;
+			case "-mode":
+				test.mode = args[++i];
+				break;
+			case "-port":
+				test.port = Integer.parseInt(args[++i]);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown argument: " + args[i]);
+			}
+		}
+		test.run();
+	}
+}
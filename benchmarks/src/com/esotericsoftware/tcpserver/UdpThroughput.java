@@ -0,0 +1,167 @@
+/* Copyright (c) 2017-2021, Esoteric Software
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following
+ * conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.esotericsoftware.tcpserver;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.esotericsoftware.minlog.Log;
+import com.esotericsoftware.tcpserver.UdpChannelServer.Packet;
+
+/** Sends datagrams as fast as possible from several threads on localhost to a {@link UdpChannelServer} or a {@link UdpServer} and
+ * prints the packets sent, received and handled each second. Datagrams the OS dropped because the socket buffer was full are
+ * those sent but not received. The work option spins for that many nanoseconds per datagram to simulate handling.
+ * <p>
+ * Usage: {@code UdpThroughput [-engine channel|socket] [-receivers 1] [-workers 0] [-senders 2] [-size 64] [-work 0] [-seconds 10]
+ * [-port 54558]}. */
+public class UdpThroughput {
+	String engine = "channel";
+	int receivers = 1, workers, senders = 2, size = 64, work, seconds = 10, port = 54558;
+
+	final LongAdder sent = new LongAdder(), handled = new LongAdder();
+	volatile boolean running = true;
+
+	public void run () throws Exception {
+		Log.WARN();
+
+		Retry server;
+		UdpChannelServer channelServer = null;
+		if (engine.equals("channel")) {
+			channelServer = new UdpChannelServer("server", "UdpThroughput", port) {
+				protected void received (Packet packet) {
+					handle();
+				}
+			};
+			channelServer.setReceivers(receivers);
+			channelServer.setWorkers(workers);
+			channelServer.setSocketBufferSize(4 * 1024 * 1024);
+			server = channelServer;
+		} else {
+			server = new UdpServer("server", "UdpThroughput", port, size) {
+				protected void received (DatagramPacket packet) {
+					handle();
+				}
+			};
+		}
+		server.start();
+		Thread.sleep(500);
+
+		for (int i = 0; i < senders; i++) {
+			Thread thread = new Thread("Sender" + i) {
+				public void run () {
+					send();
+				}
+			};
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		System.out.println(engine + ": " + receivers + " receivers, " + workers + " workers, " + senders + " senders, " + size
+			+ " bytes, " + work + " ns work");
+		System.out.println("        sent/s    received/s     handled/s    dropped/s");
+		long lastSent = 0, lastReceived = 0, lastHandled = 0, lastDropped = 0;
+		long totalHandled = 0;
+		for (int i = 0; i < seconds; i++) {
+			Thread.sleep(1000);
+			long sent = this.sent.sum(), handled = this.handled.sum();
+			long received = channelServer != null ? channelServer.getReceived() : handled;
+			long dropped = channelServer != null ? channelServer.getDropped() : 0;
+			System.out.printf("%14d %13d %13d %12d%n", sent - lastSent, received - lastReceived, handled - lastHandled,
+				dropped - lastDropped);
+			totalHandled += handled - lastHandled;
+			lastSent = sent;
+			lastReceived = received;
+			lastHandled = handled;
+			lastDropped = dropped;
+		}
+		System.out.println("Average handled/s: " + totalHandled / seconds);
+		running = false;
+		server.stop();
+	}
+
+	void handle () {
+		if (work > 0) {
+			long end = System.nanoTime() + work;
+			while (System.nanoTime() < end) {
+			}
+		}
+		handled.increment();
+	}
+
+	void send () {
+		try (DatagramChannel channel = DatagramChannel.open()) {
+			channel.connect(new InetSocketAddress("localhost", port));
+			ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+			while (running) {
+				buffer.clear();
+				try {
+					channel.write(buffer);
+				} catch (IOException ex) { // Eg ECONNREFUSED from an earlier datagram.
+					continue;
+				}
+				sent.increment();
+			}
+		} catch (IOException ex) {
+			ex.printStackTrace();
+		}
+	}
+
+	static public void main (String[] args) throws Exception {
+		UdpThroughput test = new UdpThroughput();
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+			case "-engine":
+				test.engine = args[++i];
+				break;
+			case "-receivers":
+				test.receivers = Integer.parseInt(args[++i]);
+				break;
+			case "-workers":
+				test.workers = Integer.parseInt(args[++i]);
+				break;
+			case "-senders":
+				test.senders = Integer.parseInt(args[++i]);
+				break;
+			case "-size":
+				test.size = Integer.parseInt(args[++i]);
+				break;
+			case "-work":
+				test.work = Integer.parseInt(args[++i]);
+				break;
+			case "-seconds":
+				test.seconds = Integer.parseInt(args[++i]);
+				break;
+			case "-port":
+				test.port = Integer.parseInt(args[++i]);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown argument: " + args[i]);
+			}
+		}
+		test.run();
+		System.exit(0);
+	}
+}
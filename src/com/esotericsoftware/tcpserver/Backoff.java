@@ -0,0 +1,95 @@
+/* Copyright (c) 2017-2021, Esoteric Software
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following
+ * conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.esotericsoftware.tcpserver;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/** Computes how long {@link Retry} waits after a failure. Jittered strategies keep many clients which failed at the same time,
+ * eg when a server restarts, from retrying in lockstep. */
+public interface Backoff {
+	/** @param retryCount The number of failures since the last success, not including this one.
+	 * @param previousDelay The delay returned for the previous failure, or 0.
+	 * @return The delay in milliseconds, or 0 to stop retrying. */
+	public int delay (int retryCount, int previousDelay);
+
+	/** Uses a list of delays. If more failures occur than entries, the last entry is used. */
+	static public class Delays implements Backoff {
+		private final int[] delays;
+
+		public Delays (int... delays) {
+			if (delays.length == 0) throw new IllegalArgumentException("delays cannot be empty.");
+			this.delays = delays;
+		}
+
+		public int delay (int retryCount, int previousDelay) {
+			return delays[Math.min(retryCount, delays.length - 1)];
+		}
+	}
+
+	/** Doubles the delay for each failure, up to a maximum. */
+	static public class Exponential implements Backoff {
+		final int base, max;
+
+		/** @param base The first delay, must be > 0. */
+		public Exponential (int base, int max) {
+			if (base <= 0) throw new IllegalArgumentException("base must be > 0: " + base);
+			if (max < base) throw new IllegalArgumentException("max must be >= base: " + max);
+			this.base = base;
+			this.max = max;
+		}
+
+		public int delay (int retryCount, int previousDelay) {
+			return (int)Math.min(max, (long)base << Math.min(retryCount, 31));
+		}
+	}
+
+	/** A random delay between 1 and the {@link Exponential exponential} delay. This spreads retries the most, but a client may
+	 * retry quickly several times in a row. */
+	static public class FullJitter extends Exponential {
+		public FullJitter (int base, int max) {
+			super(base, max);
+		}
+
+		public int delay (int retryCount, int previousDelay) {
+			return 1 + ThreadLocalRandom.current().nextInt(super.delay(retryCount, previousDelay));
+		}
+	}
+
+	/** A random delay between the base and 3 times the previous delay, up to a maximum. Delays grow like exponential backoff but
+	 * each client's delays are spread independently. */
+	static public class DecorrelatedJitter implements Backoff {
+		final int base, max;
+
+		/** @param base The minimum delay, must be > 0. */
+		public DecorrelatedJitter (int base, int max) {
+			if (base <= 0) throw new IllegalArgumentException("base must be > 0: " + base);
+			if (max < base) throw new IllegalArgumentException("max must be >= base: " + max);
+			this.base = base;
+			this.max = max;
+		}
+
+		public int delay (int retryCount, int previousDelay) {
+			long upper = Math.max(base, previousDelay) * 3L;
+			return (int)Math.min(max, base + ThreadLocalRandom.current().nextLong(upper - base + 1));
+		}
+	}
+}
@@ -5,6 +5,7 @@ import static com.esotericsoftware.minlog.Log.*;
 import static com.esotericsoftware.tcpserver.Util.*;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.concurrent.ArrayBlockingQueue;
 
@@ -41,11 +42,15 @@ public class BinaryProtocolWrite implements ProtocolWrite {
 		if (message != null) throw new IllegalArgumentException("message must be null.");
 		if (connection.isClosed()) return false;
 		try {
+			long sent;
 			synchronized (outputLock) {
 				if (TRACE) trace(connection.category, "Sent: " + text(bytes, offset, count));
+				long start = Metrics.start();
 				connection.output.write(bytes, offset, count);
 				connection.output.flush();
+				sent = connection.metrics.written(start);
 			}
+			connection.metrics.throttle(sent);
 			return true;
 		} catch (IOException ex) {
 			if (ERROR && !connection.isClosed())
@@ -55,6 +60,19 @@ public class BinaryProtocolWrite implements ProtocolWrite {
 		}
 	}
 
+	public int getSendQueueSize () {
+		return sends.size();
+	}
+
+	public void drainSends (Connection connection, OutboundBuffer buffer) {
+		ArrayList<byte[]> drained = new ArrayList();
+		sends.drainTo(drained);
+		ArrayList<OutboundBuffer.Entry> entries = new ArrayList(drained.size());
+		for (byte[] bytes : drained)
+			entries.add(new OutboundBuffer.Entry(null, bytes));
+		buffer.addFirst(entries);
+	}
+
 	static private String text (byte[] bytes, int offset, int count) {
 		StringBuilder buffer = new StringBuilder(32);
 		buffer.append(count);
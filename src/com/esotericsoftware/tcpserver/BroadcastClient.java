@@ -25,10 +25,15 @@ import static com.esotericsoftware.tcpserver.Util.*;
 
 import java.io.IOException;
 import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
 import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public class BroadcastClient extends Retry {
-	private int port, timeoutMillis = 3000;
+	private int port, timeoutMillis = 3000, collectMillis;
 	private final UdpBroadcast broadcast;
 	private final byte[] receive = new byte[BroadcastServer.prefix.length];
 	private final byte[] request = new byte[BroadcastServer.prefix.length];
@@ -41,8 +46,13 @@ public class BroadcastClient extends Retry {
 	}
 
 	protected void retry () {
-		DatagramPacket packet = find(category, broadcast, port, timeoutMillis, requestBuffer(), receiveBuffer());
-		if (running && packet != null) received(packet);
+		if (collectMillis > 0) {
+			List<Response> responses = findAll(category, broadcast, port, collectMillis, requestBuffer(), receiveBuffer().length);
+			if (running && !responses.isEmpty()) received(responses);
+		} else {
+			DatagramPacket packet = find(category, broadcast, port, timeoutMillis, requestBuffer(), receiveBuffer());
+			if (running && packet != null) received(packet);
+		}
 		failed(); // Always sleep.
 	}
 
@@ -62,6 +72,13 @@ public class BroadcastClient extends Retry {
 	protected void received (DatagramPacket packet) {
 	}
 
+	/** Called with the responses collected when {@link #setCollect(int) collecting} is enabled, fastest first. By default,
+	 * {@link #received(DatagramPacket)} is called with the fastest response. */
+	protected void received (List<Response> responses) {
+		Response response = responses.get(0);
+		received(new DatagramPacket(response.data, response.data.length, response.address, response.port));
+	}
+
 	public int getPort () {
 		return port;
 	}
@@ -78,6 +95,16 @@ public class BroadcastClient extends Retry {
 		timeoutMillis = millis;
 	}
 
+	public int getCollect () {
+		return collectMillis;
+	}
+
+	/** When > 0, each try waits this long for responses from all servers rather than using only the first response, then calls
+	 * {@link #received(List)}. Default is 0. */
+	public void setCollect (int millis) {
+		collectMillis = millis;
+	}
+
 	/** @return May be null. */
 	static public DatagramPacket find (String category, UdpBroadcast broadcast, int port, int timeoutMillis) {
 		byte[] buffer = new byte[BroadcastServer.prefix.length];
@@ -119,4 +146,101 @@ public class BroadcastClient extends Retry {
 			closeQuietly(broadcast);
 		}
 	}
+
+	/** Broadcasts a request and collects the responses from all servers which respond within the window. Identical responses from
+	 * the same address and port, eg when the request reaches a server through more than one broadcast address, are ignored.
+	 * @param receiveLength The maximum size of a response.
+	 * @return The responses in order of round trip time, fastest first. May be empty. */
+	static public List<Response> findAll (String category, UdpBroadcast broadcast, int port, int windowMillis,
+		byte[] requestBuffer, int receiveLength) {
+
+		System.arraycopy(BroadcastServer.prefix, 0, requestBuffer, 0, BroadcastServer.prefix.length);
+
+		ArrayList<Response> responses = new ArrayList();
+		try {
+			broadcast.bind();
+			DatagramSocket socket = broadcast.getSocket();
+
+			if (DEBUG) debug(category, "Broadcast to port: UDP " + port);
+			long start = System.nanoTime(), end = start + windowMillis * 1000000L;
+			broadcast.broadcast(port, requestBuffer);
+
+			byte[] buffer = new byte[receiveLength];
+			DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+			outer:
+			while (true) {
+				int remaining = (int)((end - System.nanoTime()) / 1000000);
+				if (remaining < 1) break;
+				socket.setSoTimeout(remaining);
+				packet.setLength(buffer.length);
+				try {
+					socket.receive(packet);
+				} catch (SocketTimeoutException ex) {
+					break;
+				}
+				long rtt = System.nanoTime() - start;
+
+				if (!BroadcastServer.hasPrefix(packet)) {
+					if (DEBUG) debug(category, "Client received invalid UDP packet, prefix: " + Util.toString(packet));
+					continue;
+				}
+				byte[] data = Arrays.copyOfRange(buffer, packet.getOffset(), packet.getOffset() + packet.getLength());
+				for (Response response : responses) {
+					if (response.port == packet.getPort() && response.address.equals(packet.getAddress())
+						&& Arrays.equals(response.data, data)) continue outer;
+				}
+				// Responses arrive in order of round trip time since they are all timed from the same request.
+				responses.add(new Response(packet.getAddress(), packet.getPort(), rtt, data));
+			}
+		} catch (IOException ex) {
+			if (ERROR) error(category, "Host discovery failed.", ex);
+		} finally {
+			closeQuietly(broadcast);
+		}
+		if (INFO) {
+			if (responses.isEmpty())
+				info(category, "No servers discovered.");
+			else
+				info(category, "Discovered servers: " + responses);
+		}
+		return responses;
+	}
+
+	/** A response to {@link BroadcastClient#findAll(String, UdpBroadcast, int, int, byte[], int) findAll}. */
+	static public class Response {
+		final InetAddress address;
+		final int port;
+		final long roundTripTime;
+		final byte[] data;
+
+		Response (InetAddress address, int port, long roundTripTime, byte[] data) {
+			this.address = address;
+			this.port = port;
+			this.roundTripTime = roundTripTime;
+			this.data = data;
+		}
+
+		public InetAddress getAddress () {
+			return address;
+		}
+
+		/** Returns the UDP port the server responded from. */
+		public int getPort () {
+			return port;
+		}
+
+		/** Returns the nanoseconds from sending the request until this response was received. */
+		public long getRoundTripTime () {
+			return roundTripTime;
+		}
+
+		/** Returns the response data, which starts with {@link BroadcastServer#prefix}. */
+		public byte[] getData () {
+			return data;
+		}
+
+		public String toString () {
+			return address.getHostAddress() + ":" + port + " (" + roundTripTime / 1000 + " us)";
+		}
+	}
 }
@@ -0,0 +1,154 @@
+/* Copyright (c) 2017-2021, Esoteric Software
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following
+ * conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.esotericsoftware.tcpserver;
+
+import static com.esotericsoftware.minlog.Log.*;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import com.esotericsoftware.tcpserver.ChannelProtocol.Chunked;
+import com.esotericsoftware.tcpserver.DefaultProtocol.Send;
+
+/** An ordered stream of messages carried with other channels over one connection. All methods are thread safe.
+ * @see ChannelProtocol */
+public class Channel {
+	final ChannelProtocol protocol;
+	final int id;
+
+	// Guarded by the protocol's lock.
+	final ArrayDeque<Send> queue = new ArrayDeque();
+	/** The bytes of the first message in the queue which have been written. */
+	int written;
+	/** The bytes which may be written before the peer acknowledges more. */
+	int window;
+	/** True when in the protocol's ready queue or being written. */
+	boolean scheduled;
+	/** The bytes received but not yet acknowledged to the peer. */
+	int unacknowledged;
+	/** The unacknowledged byte count of each message received but not yet {@link #consumed() consumed}. */
+	final ArrayDeque<Held> held = new ArrayDeque();
+	volatile boolean manualConsume;
+
+	/** The message being reassembled, used only by the read thread. */
+	Chunked chunked;
+
+	public Channel (ChannelProtocol protocol, int id) {
+		this.protocol = protocol;
+		this.id = id;
+	}
+
+	/** Returns true if the first queued message can be written. Called with the protocol's lock held. */
+	boolean sendable () {
+		Send send = queue.peek();
+		return send != null && (window > 0 || send.count == written);
+	}
+
+	/** Queues a message to be sent on this channel.
+	 * @throws IllegalStateException if the channel's queue is full. */
+	public void send (String message) {
+		send(message, null, 0, 0);
+	}
+
+	/** Queues a message to be sent on this channel. The bytes are copied.
+	 * @throws IllegalStateException if the channel's queue is full. */
+	public void send (String message, byte[] bytes, int offset, int count) {
+		if (message == null) throw new IllegalArgumentException("message cannot be null.");
+		if (bytes == null) {
+			if (count != 0) throw new IllegalArgumentException("bytes cannot be null when count != 0: " + count);
+		} else {
+			if (count < 0) throw new IllegalArgumentException("count cannot be < 0");
+		}
+
+		Connection connection = protocol.connection;
+		if (TRACE && connection != null)
+			trace(connection.category, "Channel " + id + " queued: " + message + (count > 0 ? ", " + count : ""));
+		Send send = new Send();
+		send.message = message;
+		if (count > 0) send.bytes = Arrays.copyOfRange(bytes, offset, offset + count);
+		send.count = count;
+		send.queued = Metrics.start();
+		synchronized (protocol.lock) {
+			if (!protocol.offer(this, send)) throw new IllegalStateException("Queue full");
+		}
+	}
+
+	/** Called on the connection's read thread when a message is received on this channel. By default, calls
+	 * {@link Connection#receive(String, String, byte[], int)}. The bytes are only valid until this method returns. */
+	public void receive (String event, String payload, byte[] bytes, int count) {
+		Connection connection = protocol.connection;
+		if (connection != null) connection.receive(event, payload, bytes, count);
+	}
+
+	/** If true, the window for a received message is not given back to the peer until {@link #consumed()} is called. This allows
+	 * messages to be processed on another thread while the peer stops sending when too many are waiting. Default is false. */
+	public void setManualConsume (boolean manualConsume) {
+		this.manualConsume = manualConsume;
+	}
+
+	/** When {@link #setManualConsume(boolean) manual consume} is true, must be called once for each message received after it
+	 * has been processed. */
+	public void consumed () {
+		synchronized (protocol.lock) {
+			Held held = this.held.poll();
+			// A message received on a previous connection has nothing to acknowledge to the current one.
+			if (held == null || held.generation != protocol.generation) return;
+			protocol.acknowledge(this, held.count);
+		}
+	}
+
+	public int getId () {
+		return id;
+	}
+
+	/** Returns the current connection, or null. */
+	public Connection getConnection () {
+		return protocol.connection;
+	}
+
+	/** Returns the number of messages queued which have not been completely written. */
+	public int getSendQueueSize () {
+		synchronized (protocol.lock) {
+			return queue.size();
+		}
+	}
+
+	/** Returns the bytes which may be written before the peer acknowledges more. */
+	public int getWindow () {
+		synchronized (protocol.lock) {
+			return window;
+		}
+	}
+
+	public String toString () {
+		return "Channel " + id;
+	}
+
+	/** The bytes to acknowledge for a received message and the connection it was received on. */
+	static class Held {
+		final int generation, count;
+
+		Held (int generation, int count) {
+			this.generation = generation;
+			this.count = count;
+		}
+	}
+}
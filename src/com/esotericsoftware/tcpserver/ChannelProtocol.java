@@ -0,0 +1,398 @@
+/* Copyright (c) 2017-2021, Esoteric Software
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following
+ * conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.esotericsoftware.tcpserver;
+
+import static com.esotericsoftware.minlog.Log.*;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/** A {@link DefaultProtocol} which carries many independent {@link Channel channels} over one connection. Each channel's
+ * messages are received in order, independently of other channels. Messages are written in chunks, taking turns between
+ * channels, so a large message on one channel doesn't delay the others. Each channel has a flow control window: the bytes it
+ * may write before the peer acknowledges receiving them, so a channel whose peer is slow to consume stops sending without
+ * blocking the others. Both ends of a connection must use this protocol with the same {@link #setWindow(int) window}.
+ * <p>
+ * Messages sent with {@link Connection#send(String)} use channel 0, which passes messages to
+ * {@link Connection#receive(String, String, byte[], int)}. Other channels are created by {@link #getChannel(int)} or when the
+ * peer first sends on them, using {@link #newChannel(int)}. The peer can only create channels up to the
+ * {@link #setMaxChannels(int) maximum}.
+ * <p>
+ * A {@link TcpClient} uses the same protocol for each connection, so channels and their queued messages are kept across
+ * reconnects. A message which was partially written is written again from the start. */
+public class ChannelProtocol extends DefaultProtocol {
+	/** The prefix of the first chunk of a message, followed by the channel, the total byte count, and the message. */
+	static final String first = "\0ch ";
+	/** The prefix of the remaining chunks of a message, followed by the channel. */
+	static final String more = "\0chm ";
+	/** The prefix of a flow control update, followed by the channel and the bytes the sender may write. */
+	static final String window = "\0window ";
+
+	final Object lock = new Object();
+	private final HashMap<Integer, Channel> channels = new HashMap();
+	private final ArrayDeque<String> controls = new ArrayDeque();
+	/** Channels which have a message to write and window to write it, in the order they take turns. */
+	private final ArrayDeque<Channel> ready = new ArrayDeque();
+	volatile Connection connection;
+	private int windowSize = 256 * 1024, chunkSize = 16 * 1024, capacity = 1024, maxChannels = 1024;
+	/** The channel whose message is being passed to receive, used only by the read thread. */
+	private Channel receiving;
+	/** Incremented for each connection, so messages held from a previous connection are not acknowledged to the next. */
+	int generation;
+
+	public void readThread (Connection connection) throws IOException {
+		synchronized (lock) {
+			generation++;
+			controls.clear(); // Cleared before reading, so window updates for the new connection aren't lost.
+			for (Channel channel : channels.values()) {
+				channel.chunked = null;
+				channel.unacknowledged = 0;
+			}
+		}
+		super.readThread(connection);
+	}
+
+	public void writeThread (Connection connection) {
+		synchronized (lock) {
+			this.connection = connection;
+			ready.clear();
+			for (Channel channel : channels.values()) {
+				channel.window = windowSize;
+				channel.written = 0;
+				channel.scheduled = channel.sendable();
+				if (channel.scheduled) ready.add(channel);
+			}
+		}
+
+		while (!connection.closed) {
+			String control;
+			Channel channel = null;
+			Send send = null;
+			int written = 0, count = 0;
+			synchronized (lock) {
+				try {
+					while ((control = controls.poll()) == null && (channel = ready.poll()) == null)
+						lock.wait();
+				} catch (InterruptedException ex) {
+					continue;
+				}
+				if (channel != null) {
+					send = channel.queue.peek();
+					written = channel.written;
+					count = Math.min(Math.min(send.count - written, chunkSize), channel.window);
+				}
+			}
+
+			if (control != null) {
+				sendBlocking(connection, control, null, 0, 0);
+				continue;
+			}
+
+			if (written == 0) connection.metrics.queued(send.queued);
+			String message = written == 0 ? first + channel.id + ' ' + send.count + ' ' + send.message : more + channel.id;
+			if (TRACE && send.count > count) {
+				trace(connection.category, "Channel " + channel.id + " chunk " + (written + count) + "/" + send.count + ": "
+					+ send.message);
+			}
+			sendBlocking(connection, message, send.bytes, written, count);
+
+			synchronized (lock) {
+				if (this.connection != connection || channel.queue.peek() != send) continue; // Reconnected.
+				channel.written += count;
+				channel.window -= count;
+				if (channel.written == send.count) {
+					channel.queue.poll();
+					channel.written = 0;
+				}
+				channel.scheduled = channel.sendable();
+				if (channel.scheduled) ready.add(channel);
+			}
+		}
+	}
+
+	/** Sends without conflation, as messages are queued by channel. */
+	public void sendConflated (Connection connection, Object key, String message, byte[] bytes, int offset, int count) {
+		send(connection, message, bytes, offset, count);
+	}
+
+	public boolean publish (Connection connection, Topics.Publication publication) {
+		try {
+			send(connection, publication.getProtocolMessage(), publication.bytes, 0, publication.count);
+			return true;
+		} catch (IllegalStateException ex) { // Queue full.
+			return false;
+		}
+	}
+
+	protected boolean sendControl (Connection connection, String message) {
+		synchronized (lock) {
+			if (controls.size() >= capacity) return false;
+			controls.add(message);
+			lock.notifyAll();
+		}
+		return true;
+	}
+
+	public void send (Connection connection, String message) {
+		getChannel(0).send(message, null, 0, 0);
+	}
+
+	public void send (Connection connection, String message, byte[] bytes, int offset, int count) {
+		getChannel(0).send(message, bytes, offset, count);
+	}
+
+	/** Sends without the sequence number, as control messages are not ordered with a channel's messages. */
+	public void sendSequenced (Connection connection, long sequence, String message, byte[] bytes, int offset, int count) {
+		send(connection, message, bytes, offset, count);
+	}
+
+	public boolean sendSequencedBlocking (Connection connection, long sequence, String message, byte[] bytes, int offset,
+		int count) {
+		return sendBlocking(connection, message, bytes, offset, count);
+	}
+
+	/** Queues a message for a channel. Called with the lock held.
+	 * @return false if the channel's queue is full. */
+	boolean offer (Channel channel, Send send) {
+		if (channel.queue.size() >= capacity) return false;
+		channel.queue.add(send);
+		if (!channel.scheduled && channel.sendable()) {
+			channel.scheduled = true;
+			ready.add(channel);
+			lock.notifyAll();
+		}
+		return true;
+	}
+
+	/** Returns the channel with the specified ID, creating it with {@link #newChannel(int)} if needed. */
+	public Channel getChannel (int id) {
+		if (id < 0) throw new IllegalArgumentException("id must be >= 0: " + id);
+		synchronized (lock) {
+			Channel channel = channels.get(id);
+			if (channel == null) {
+				channel = newChannel(id);
+				channel.window = windowSize;
+				channels.put(id, channel);
+			}
+			return channel;
+		}
+	}
+
+	/** Returns the channel the peer sent on, creating it if the {@link #setMaxChannels(int) maximum} has not been reached. */
+	private Channel peerChannel (int id) throws IOException {
+		synchronized (lock) {
+			Channel channel = channels.get(id);
+			if (channel != null) return channel;
+			if (channels.size() >= maxChannels) throw new IOException("Too many channels: " + channels.size());
+		}
+		return getChannel(id);
+	}
+
+	/** Called to create a channel, either by {@link #getChannel(int)} or when the peer first sends on a channel. Subclasses can
+	 * return a channel which overrides {@link Channel#receive(String, String, byte[], int)}. Called with the lock held. */
+	protected Channel newChannel (int id) {
+		return new Channel(this, id);
+	}
+
+	protected void control (Connection connection, String message, byte[] bytes, int count) throws IOException {
+		if (message.startsWith(first)) {
+			int idEnd = message.indexOf(' ', first.length()), totalEnd = message.indexOf(' ', idEnd + 1);
+			if (idEnd == -1 || totalEnd == -1) throw new IOException("Invalid channel message: " + message.substring(1));
+			int id, total;
+			try {
+				id = Integer.parseInt(message.substring(first.length(), idEnd));
+				total = Integer.parseInt(message.substring(idEnd + 1, totalEnd));
+			} catch (NumberFormatException ex) {
+				throw new IOException("Invalid channel message: " + message.substring(1));
+			}
+			if (id < 0 || total < count) throw new IOException("Invalid channel message: " + message.substring(1));
+			Channel channel = peerChannel(id);
+			if (channel.chunked != null) throw new IOException("Channel message not complete: " + id);
+			message = message.substring(totalEnd + 1);
+			if (count == total)
+				deliver(connection, channel, message, bytes, count, count);
+			else {
+				Chunked chunked = new Chunked();
+				chunked.message = message;
+				chunked.bytes = new byte[total];
+				channel.chunked = chunked;
+				received(connection, channel, bytes, count);
+			}
+		} else if (message.startsWith(more)) {
+			Channel channel;
+			try {
+				int id = Integer.parseInt(message.substring(more.length()));
+				synchronized (lock) {
+					channel = channels.get(id);
+				}
+			} catch (NumberFormatException ex) {
+				throw new IOException("Invalid channel message: " + message.substring(1));
+			}
+			Chunked chunked = channel == null ? null : channel.chunked;
+			if (chunked == null || chunked.count + count > chunked.bytes.length)
+				throw new IOException("Invalid channel message: " + message.substring(1));
+			received(connection, channel, bytes, count);
+		} else if (message.startsWith(window)) {
+			int index = message.indexOf(' ', window.length());
+			int id, size;
+			try {
+				id = Integer.parseInt(message.substring(window.length(), index));
+				size = Integer.parseInt(message.substring(index + 1));
+			} catch (RuntimeException ex) {
+				throw new IOException("Invalid window: " + message.substring(1));
+			}
+			if (TRACE) trace(connection.category, "Channel " + id + " window: +" + size);
+			synchronized (lock) {
+				Channel channel = channels.get(id);
+				if (channel == null) { // The window is granted when the channel is created.
+					if (DEBUG) debug(connection.category, "Window for unknown channel ignored: " + id);
+					return;
+				}
+				channel.window += size;
+				if (!channel.scheduled && channel.sendable()) {
+					channel.scheduled = true;
+					ready.add(channel);
+					lock.notifyAll();
+				}
+			}
+		} else
+			super.control(connection, message, bytes, count);
+	}
+
+	/** Adds a chunk to the message being reassembled for the channel. */
+	private void received (Connection connection, Channel channel, byte[] bytes, int count) throws IOException {
+		Chunked chunked = channel.chunked;
+		System.arraycopy(bytes, 0, chunked.bytes, chunked.count, count);
+		chunked.count += count;
+		if (chunked.count < chunked.bytes.length) {
+			// A message too large to fit in the window would never complete if its chunks waited to be consumed.
+			if (chunked.bytes.length > windowSize >> 1) {
+				acknowledge(channel, count);
+				chunked.acknowledged += count;
+			}
+			return;
+		}
+		channel.chunked = null;
+		deliver(connection, channel, chunked.message, chunked.bytes, chunked.count, chunked.count - chunked.acknowledged);
+	}
+
+	/** @param held The bytes which are acknowledged when the message is {@link Channel#consumed() consumed}. */
+	private void deliver (Connection connection, Channel channel, String message, byte[] bytes, int count, int held)
+		throws IOException {
+		receiving = channel;
+		try {
+			if (!dispatch(connection, message, bytes, count)) connection.close();
+		} finally {
+			receiving = null;
+		}
+		if (channel.manualConsume) {
+			synchronized (lock) {
+				channel.held.add(new Channel.Held(generation, held));
+			}
+		} else
+			acknowledge(channel, held);
+	}
+
+	protected void receive (Connection connection, String event, String payload, byte[] bytes, int count) {
+		Channel channel = receiving;
+		if (channel == null || channel.id == 0)
+			super.receive(connection, event, payload, bytes, count);
+		else
+			channel.receive(event, payload, bytes, count);
+	}
+
+	/** Grants the peer more window for the channel once enough bytes have been received. The window update is queued even when
+	 * the controls are at {@link #setCapacity(int) capacity}, as losing it would stall the channel. */
+	void acknowledge (Channel channel, int count) {
+		if (count == 0) return;
+		synchronized (lock) {
+			channel.unacknowledged += count;
+			if (channel.unacknowledged < windowSize >> 2) return;
+			controls.add(window + channel.id + ' ' + channel.unacknowledged);
+			channel.unacknowledged = 0;
+			lock.notifyAll();
+		}
+	}
+
+	public int getSendQueueSize () {
+		int size = 0;
+		synchronized (lock) {
+			size += controls.size();
+			for (Channel channel : channels.values())
+				size += channel.queue.size();
+		}
+		return size;
+	}
+
+	/** Does nothing, as queued messages are kept by their channel and sent after reconnecting. */
+	public void drainSends (Connection connection, OutboundBuffer buffer) {
+	}
+
+	public int getWindow () {
+		return windowSize;
+	}
+
+	/** Sets the bytes each channel may write before the peer acknowledges them. Both ends must use the same value. Takes effect
+	 * for new connections. Default is 262144. */
+	public void setWindow (int windowSize) {
+		if (windowSize < 1024) throw new IllegalArgumentException("windowSize must be >= 1024: " + windowSize);
+		this.windowSize = windowSize;
+	}
+
+	public int getChunkSize () {
+		return chunkSize;
+	}
+
+	/** Sets the maximum bytes of a message written before another channel can write. Default is 16384. */
+	public void setChunkSize (int chunkSize) {
+		if (chunkSize < 1) throw new IllegalArgumentException("chunkSize must be > 0: " + chunkSize);
+		this.chunkSize = chunkSize;
+	}
+
+	/** Sets the maximum messages queued in each channel. Default is 1024. */
+	public void setCapacity (int capacity) {
+		synchronized (lock) {
+			this.capacity = capacity;
+		}
+	}
+
+	public int getMaxChannels () {
+		synchronized (lock) {
+			return maxChannels;
+		}
+	}
+
+	/** Sets the number of channels above which the peer cannot create a channel by sending on it. A message on a new channel
+	 * past this closes the connection. Channels created by {@link #getChannel(int)} are not limited. Default is 1024. */
+	public void setMaxChannels (int maxChannels) {
+		if (maxChannels < 1) throw new IllegalArgumentException("maxChannels must be > 0: " + maxChannels);
+		synchronized (lock) {
+			this.maxChannels = maxChannels;
+		}
+	}
+
+	static class Chunked {
+		String message;
+		byte[] bytes;
+		int count, acknowledged;
+	}
+}
@@ -0,0 +1,134 @@
+/* Copyright (c) 2017-2021, Esoteric Software
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following
+ * conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.esotericsoftware.tcpserver;
+
+import static com.esotericsoftware.minlog.Log.*;
+
+/** Creates {@link TcpClient TCP clients} which forward their events to this object. Shared by {@link TcpClientPool} and
+ * {@link FailoverClient}. */
+abstract class ClientGroup {
+	final String category, name;
+	final Metrics metrics = new Metrics();
+	final Object waitForConnection = new Object();
+
+	ClientGroup (String category, String name) {
+		this.category = category;
+		this.name = name;
+	}
+
+	/** Returns the members. */
+	abstract TcpClient[] clients ();
+
+	/** Called to create each member, after this object has been constructed. The default implementation returns a client which
+	 * forwards events to this object. */
+	protected TcpClient newClient (int index, String host, int port) {
+		return new Member(name + index, host, port, newProtocol());
+	}
+
+	/** Returns a new protocol for each member. */
+	protected Protocol newProtocol () {
+		return new DefaultProtocol();
+	}
+
+	/** Called after a member's new connection has been started. */
+	public void connected (Connection connection) {
+	}
+
+	/** Called after a member's connection has closed. The member reconnects on its own. */
+	public void disconnected (Connection connection) {
+	}
+
+	/** Called when a message is received on any member's connection. */
+	public void receive (Connection connection, String event, String payload, byte[] bytes, int count) {
+	}
+
+	/** Returns true if any member is connected. */
+	public boolean isConnected () {
+		for (TcpClient client : clients())
+			if (client.isConnected()) return true;
+		return false;
+	}
+
+	/** Returns the metrics aggregated for all members. */
+	public Metrics getMetrics () {
+		return metrics;
+	}
+
+	public String getCategory () {
+		return category;
+	}
+
+	public String toString () {
+		return name;
+	}
+
+	/** @param connection May be null.
+	 * @param bytes May be null if count is 0. */
+	boolean send (Connection connection, String message, byte[] bytes, int offset, int count) {
+		if (connection == null) {
+			if (DEBUG) debug(category, "Unable to send, not connected: " + message);
+			return false;
+		}
+		if (bytes == null)
+			connection.send(message);
+		else
+			connection.send(message, bytes, offset, count);
+		return true;
+	}
+
+	/** @param connection May be null.
+	 * @param bytes May be null if count is 0. */
+	boolean sendBlocking (Connection connection, String message, byte[] bytes, int offset, int count) {
+		if (connection == null) {
+			if (DEBUG) debug(category, "Unable to send, not connected: " + message);
+			return false;
+		}
+		if (bytes == null) return connection.sendBlocking(message);
+		return connection.sendBlocking(message, bytes, offset, count);
+	}
+
+	/** A member which forwards its events and wakes threads waiting for a connection. */
+	class Member extends TcpClient {
+		public Member (String name, String host, int port, Protocol protocol) {
+			super(ClientGroup.this.category, name, host, port, protocol, ClientGroup.this.metrics);
+		}
+
+		public void connected (Connection connection) {
+			synchronized (waitForConnection) {
+				waitForConnection.notifyAll();
+			}
+			ClientGroup.this.connected(connection);
+		}
+
+		public void disconnected (Connection connection) {
+			ClientGroup.this.disconnected(connection);
+		}
+
+		public void receive (Connection connection, String event, String payload, byte[] bytes, int count) {
+			ClientGroup.this.receive(connection, event, payload, bytes, count);
+		}
+
+		public void published (Connection connection, String topic, String event, String payload, byte[] bytes, int count) {
+			ClientGroup.this.receive(connection, event, payload, bytes, count);
+		}
+	}
+}
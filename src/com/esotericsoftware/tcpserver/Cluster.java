@@ -0,0 +1,640 @@
+/* Copyright (c) 2017-2021, Esoteric Software
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following
+ * conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.esotericsoftware.tcpserver;
+
+import static com.esotericsoftware.minlog.Log.*;
+import static com.esotericsoftware.tcpserver.Util.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.esotericsoftware.tcpserver.BroadcastClient.Response;
+import com.esotericsoftware.tcpserver.OutboundBuffer.Overflow;
+import com.esotericsoftware.tcpserver.TimerWheel.Timer;
+
+/** Links several {@link TcpServer} processes so messages sent or published on one node are also delivered to the clients of
+ * every other node. Each node accepts links on a cluster port and connects to each peer with a {@link TcpClient}. Peers are
+ * {@link #addPeer(String, int) added} explicitly, learned from other nodes, or found using
+ * {@link #setDiscovery(UdpBroadcast, int) discovery}.
+ * <p>
+ * Messages are collected for the {@link #setBatchDelay(int) batch delay} and relayed to all peers together. Each message carries
+ * the ID of the node it was sent on and a sequence number, so a message which reaches a node more than once is delivered only
+ * once. All methods are thread safe. */
+public class Cluster {
+	static final String hello = "hello", peersMessage = "peers", relay = "relay";
+	static final int typeSend = 0, typePublish = 1;
+
+	final String category, name;
+	final TcpServer server;
+	final String id;
+	private final TcpServer links;
+	final ConcurrentHashMap<String, Peer> peers = new ConcurrentHashMap();
+	private final HashSet<String> ignored = new HashSet();
+	private final HashMap<String, Origin> origins = new HashMap();
+	private final Object batchLock = new Object();
+	private final ByteArrayOutputStream batchBytes = new ByteArrayOutputStream(1024);
+	private final DataOutputStream batch = new DataOutputStream(batchBytes);
+	private int batchCount;
+	private long sequence;
+	private Timer batchTimer;
+	private final Runnable flushTask = new Runnable() {
+		public void run () {
+			flush();
+		}
+	};
+	private volatile int batchDelay = 5, batchSize = 32 * 1024, bufferSize = 4 * 1024 * 1024;
+	private volatile boolean forward, running;
+	private long originTimeout = 5 * 60 * 1000, lastPrune;
+	private BroadcastServer discoveryServer;
+	private BroadcastClient discoveryClient;
+	private final LongAdder relayed = new LongAdder(), received = new LongAdder(), duplicates = new LongAdder(),
+		dropped = new LongAdder();
+
+	/** @param server Receives messages sent or published on other nodes.
+	 * @param port The TCP port other nodes connect to. */
+	public Cluster (String category, String name, TcpServer server, int port) {
+		this.category = category;
+		this.name = name;
+		this.server = server;
+
+		byte[] bytes = new byte[8];
+		ThreadLocalRandom.current().nextBytes(bytes);
+		StringBuilder buffer = new StringBuilder(16);
+		for (byte b : bytes)
+			buffer.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		id = buffer.toString();
+
+		links = new TcpServer(category, name + "Links", port) {
+			public void receive (Connection connection, String event, String payload, byte[] bytes, int count) {
+				linkReceive(connection, event, payload, bytes, count);
+			}
+		};
+	}
+
+	/** Starts accepting links from other nodes, connecting to peers, and discovery if it was set. */
+	public void start () {
+		synchronized (peers) {
+			running = true;
+			links.start();
+			for (Peer peer : peers.values())
+				peer.start();
+			if (discoveryServer != null) {
+				discoveryServer.start();
+				discoveryClient.start();
+			}
+		}
+	}
+
+	/** Flushes the current batch, then closes all links. */
+	public void stop () {
+		flush();
+		ArrayList<Peer> stop;
+		synchronized (peers) {
+			running = false;
+			stop = new ArrayList(peers.values());
+			if (discoveryServer != null) {
+				discoveryServer.stop();
+				discoveryClient.stop();
+			}
+		}
+		for (Peer peer : stop)
+			peer.stop();
+		links.stop();
+	}
+
+	/** Connects to the node listening on the host and port. Peers known by that node are then added as well, and it connects back
+	 * to this node if it is not already connected.
+	 * @return false if the peer was already added or is this node. */
+	public boolean addPeer (String host, int port) {
+		String key = host + ":" + port;
+		Peer peer;
+		synchronized (peers) {
+			if (ignored.contains(key) || peers.containsKey(key)) return false;
+			peer = new Peer(host, port, key);
+			peers.put(key, peer);
+			if (running) peer.start();
+		}
+		if (DEBUG) debug(category, "Cluster peer added: " + key);
+		return true;
+	}
+
+	/** @return false if the peer was not found. */
+	public boolean removePeer (String host, int port) {
+		Peer peer = peers.remove(host + ":" + port);
+		if (peer == null) return false;
+		peer.stop();
+		return true;
+	}
+
+	/** Returns the host:port of each peer. */
+	public String[] getPeers () {
+		return peers.keySet().toArray(new String[0]);
+	}
+
+	/** Returns the number of peers which are currently connected. */
+	public int getConnectedPeerCount () {
+		int count = 0;
+		for (Peer peer : peers.values())
+			if (peer.isConnected() && peer.peerId != null) count++;
+		return count;
+	}
+
+	/** Sends the message to all connections of this node's server and relays it to all other nodes. */
+	public void send (String message) {
+		server.send(message);
+		add(id, 0, null, message, null, 0, -1);
+	}
+
+	/** @see #send(String, byte[], int, int) */
+	public void send (String message, byte... bytes) {
+		send(message, bytes, 0, bytes.length);
+	}
+
+	public void send (String message, byte[] bytes, int offset, int count) {
+		server.send(message, bytes, offset, count);
+		add(id, 0, null, message, bytes, offset, count);
+	}
+
+	/** Publishes the message to subscribers of this node's server and relays it to all other nodes.
+	 * @return The number of subscribers on this node the message was queued for. */
+	public int publish (String topic, String message) {
+		int count = server.publish(topic, message);
+		add(id, 0, topic, message, null, 0, -1);
+		return count;
+	}
+
+	/** @see #publish(String, String, byte[], int, int) */
+	public int publish (String topic, String message, byte... bytes) {
+		return publish(topic, message, bytes, 0, bytes.length);
+	}
+
+	/** @see #publish(String, String) */
+	public int publish (String topic, String message, byte[] bytes, int offset, int count) {
+		int subscribers = server.publish(topic, message, bytes, offset, count);
+		add(id, 0, topic, message, bytes, offset, count);
+		return subscribers;
+	}
+
+	/** Called when a message sent or published on another node is received. By default, sends or publishes it using this node's
+	 * server.
+	 * @param topic Null if the message was sent to all connections.
+	 * @param bytes Null if the message was sent without bytes. The array is reused after this method returns. */
+	public void received (String origin, String topic, String message, byte[] bytes, int count) {
+		if (bytes == null) {
+			if (topic == null)
+				server.send(message);
+			else
+				server.publish(topic, message);
+		} else {
+			bytes = Arrays.copyOf(bytes, count);
+			if (topic == null)
+				server.send(message, bytes, 0, count);
+			else
+				server.publish(topic, message, bytes, 0, count);
+		}
+	}
+
+	/** Appends a message to the batch.
+	 * @param sequence 0 to use the next sequence number for this node.
+	 * @param count -1 if there are no bytes. */
+	private void add (String origin, long sequence, String topic, String message, byte[] bytes, int offset, int count) {
+		byte[] messageBytes = message.getBytes(StandardCharsets.UTF_8);
+		byte[] topicBytes = topic == null ? null : topic.getBytes(StandardCharsets.UTF_8);
+		synchronized (batchLock) {
+			if (sequence == 0) sequence = ++this.sequence;
+			try {
+				batch.writeUTF(origin);
+				batch.writeLong(sequence);
+				if (topicBytes == null)
+					batch.write(typeSend);
+				else {
+					batch.write(typePublish);
+					writeVarint(topicBytes.length, batch);
+					batch.write(topicBytes);
+				}
+				writeVarint(messageBytes.length, batch);
+				batch.write(messageBytes);
+				writeVarint(count + 1, batch);
+				if (count > 0) batch.write(bytes, offset, count);
+			} catch (IOException ex) { // Doesn't happen.
+				throw new RuntimeException(ex);
+			}
+			batchCount++;
+			if (batchBytes.size() >= batchSize || batchDelay == 0)
+				flush();
+			else if (batchTimer == null) //
+				batchTimer = TimerWheel.getShared().schedule(flushTask, batchDelay);
+		}
+	}
+
+	/** Relays the messages collected so far to all peers without waiting for the {@link #setBatchDelay(int) batch delay}. */
+	public void flush () {
+		synchronized (batchLock) {
+			if (batchTimer != null) {
+				batchTimer.cancel();
+				batchTimer = null;
+			}
+			if (batchCount == 0) return;
+			byte[] bytes = batchBytes.toByteArray();
+			String message = relay + " " + batchCount;
+			relayed.add(batchCount);
+			int count = batchCount;
+			batchBytes.reset();
+			batchCount = 0;
+			// Queued while holding the lock so batches are relayed in order.
+			for (Peer peer : peers.values())
+				if (!peer.self) peer.relay(message, bytes, count);
+		}
+	}
+
+	void linkReceive (Connection connection, String event, String payload, byte[] bytes, int count) {
+		if (event.equals(relay)) {
+			try {
+				receiveBatch(bytes, count);
+			} catch (IOException ex) {
+				if (ERROR) error(category, "Invalid cluster batch.", ex);
+				connection.close();
+			}
+		} else if (event.equals(hello)) {
+			// A node has linked to this one: hello <id> <port>
+			String[] values = payload.split(" ");
+			connection.send(hello + " " + id);
+			if (values[0].equals(id)) return;
+			StringBuilder buffer = new StringBuilder(peersMessage);
+			for (Peer peer : peers.values()) {
+				String address = peer.getAddress();
+				if (address != null) buffer.append(' ').append(address);
+			}
+			connection.send(buffer.toString());
+			InetAddress address = connection.getRemoteAddress();
+			if (address != null && !hasPeer(values[0], null)) addPeer(address.getHostAddress(), Integer.parseInt(values[1]));
+		}
+	}
+
+	private void receiveBatch (byte[] bytes, int count) throws IOException {
+		DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes, 0, count));
+		long now = System.currentTimeMillis();
+		byte[] data = new byte[64];
+		while (input.available() > 0) {
+			String origin = input.readUTF();
+			long sequence = input.readLong();
+			String topic = null;
+			if (input.read() == typePublish) topic = readString(input);
+			String message = readString(input);
+			int dataCount = readVarint(input) - 1;
+			if (dataCount > 0) {
+				if (dataCount > data.length) data = new byte[dataCount];
+				input.readFully(data, 0, dataCount);
+			}
+
+			if (origin.equals(id) || !isNew(origin, sequence, now)) {
+				duplicates.increment();
+				continue;
+			}
+			received.increment();
+			if (TRACE) trace(category, "Cluster message received from " + origin + ": " + message);
+			if (dataCount == -1)
+				received(origin, topic, message, null, 0);
+			else
+				received(origin, topic, message, data, dataCount);
+			if (forward) add(origin, sequence, topic, message, data, 0, dataCount);
+		}
+	}
+
+	static private String readString (DataInputStream input) throws IOException {
+		byte[] bytes = new byte[readVarint(input)];
+		input.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/** Returns true if the sequence has not been seen before for the origin. */
+	private boolean isNew (String origin, long sequence, long now) {
+		synchronized (origins) {
+			if (now - lastPrune > originTimeout / 2) {
+				lastPrune = now;
+				for (Iterator<Origin> iter = origins.values().iterator(); iter.hasNext();)
+					if (now - iter.next().lastSeen > originTimeout) iter.remove();
+			}
+			Origin entry = origins.get(origin);
+			if (entry == null) {
+				entry = new Origin();
+				origins.put(origin, entry);
+			}
+			entry.lastSeen = now;
+			return entry.add(sequence);
+		}
+	}
+
+	/** @param except May be null. */
+	boolean hasPeer (String peerId, Peer except) {
+		for (Peer peer : peers.values())
+			if (peer != except && peerId.equals(peer.peerId)) return true;
+		return false;
+	}
+
+	/** Sets the UDP port used to find other nodes. Each node responds to discovery requests on the port and broadcasts a request
+	 * every 5 seconds, adding the nodes which respond as peers. If the broadcast uses a multicast group, the node joins the group
+	 * to receive requests. Several processes on one host may use the same port. Must be called before {@link #start()}. */
+	public void setDiscovery (UdpBroadcast broadcast, int port) {
+		if (running) throw new IllegalStateException("Discovery must be set before the cluster is started.");
+		final byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+		final int prefixLength = BroadcastServer.prefix.length;
+
+		discoveryServer = new BroadcastServer(category, name + "Discovery", port) {
+			protected byte[] receiveBuffer () {
+				return new byte[prefixLength + 64];
+			}
+
+			protected boolean isValid (DatagramPacket packet) {
+				if (!super.isValid(packet)) return false;
+				// Ignore requests from this node.
+				String requestId = new String(packet.getData(), prefixLength, packet.getLength() - prefixLength,
+					StandardCharsets.UTF_8);
+				return !requestId.equals(id);
+			}
+
+			protected byte[] response (DatagramPacket packet) {
+				byte[] value = (id + " " + links.getPort()).getBytes(StandardCharsets.UTF_8);
+				byte[] response = Arrays.copyOf(prefix, prefixLength + value.length);
+				System.arraycopy(value, 0, response, prefixLength, value.length);
+				return response;
+			}
+		};
+
+		discoveryClient = new BroadcastClient(category, name + "Discover", broadcast, port) {
+			private final byte[] request = Arrays.copyOf(BroadcastServer.prefix, prefixLength + idBytes.length);
+			private final byte[] receive = new byte[prefixLength + 64];
+			{
+				System.arraycopy(idBytes, 0, request, prefixLength, idBytes.length);
+			}
+
+			protected byte[] requestBuffer () {
+				return request;
+			}
+
+			protected byte[] receiveBuffer () {
+				return receive;
+			}
+
+			protected void received (List<Response> responses) {
+				for (Response response : responses) {
+					byte[] data = response.getData();
+					String[] values = new String(data, prefixLength, data.length - prefixLength, StandardCharsets.UTF_8).split(" ");
+					if (values.length != 2 || values[0].equals(id) || hasPeer(values[0], null)) continue;
+					try {
+						addPeer(response.getAddress().getHostAddress(), Integer.parseInt(values[1]));
+					} catch (NumberFormatException ex) {
+						if (DEBUG) debug(category, "Invalid discovery response: " + response);
+					}
+				}
+			}
+		};
+		discoveryClient.setCollect(1000);
+		if (broadcast.isMulticast()) discoveryServer.setMulticast(broadcast.getGroup(), broadcast.getNetworkInterface());
+		discoveryClient.setRetryDelays(5000);
+	}
+
+	/** Returns the random ID which identifies this node to other nodes. */
+	public String getId () {
+		return id;
+	}
+
+	public int getPort () {
+		return links.getPort();
+	}
+
+	public TcpServer getServer () {
+		return server;
+	}
+
+	/** Returns the server which accepts links from other nodes. */
+	public TcpServer getLinks () {
+		return links;
+	}
+
+	public int getBatchDelay () {
+		return batchDelay;
+	}
+
+	/** Sets how long messages are collected before they are relayed. Default is 5.
+	 * @param millis 0 to relay each message immediately. */
+	public void setBatchDelay (int millis) {
+		batchDelay = millis;
+	}
+
+	public int getBatchSize () {
+		return batchSize;
+	}
+
+	/** Sets the size of a batch which causes it to be relayed without waiting for the batch delay. Default is 32 KB. */
+	public void setBatchSize (int bytes) {
+		batchSize = bytes;
+	}
+
+	public int getBufferSize () {
+		return bufferSize;
+	}
+
+	/** Sets the maximum bytes buffered for each peer while it is not connected, after which the oldest batches are dropped.
+	 * Applies to peers added afterward. Default is 4 MB. */
+	public void setBufferSize (int bytes) {
+		bufferSize = bytes;
+	}
+
+	public boolean getForward () {
+		return forward;
+	}
+
+	/** When true, messages received from other nodes are relayed again, so they reach nodes which are not linked directly to the
+	 * origin. Only needed when not every node can reach every other node. Default is false. */
+	public void setForward (boolean forward) {
+		this.forward = forward;
+	}
+
+	public long getOriginTimeout () {
+		return originTimeout;
+	}
+
+	/** Sets how long sequence numbers are kept for a node after its last message. Default is 5 minutes. */
+	public void setOriginTimeout (long millis) {
+		synchronized (origins) {
+			originTimeout = millis;
+		}
+	}
+
+	/** Returns the number of messages relayed to other nodes. */
+	public long getRelayed () {
+		return relayed.sum();
+	}
+
+	/** Returns the number of messages received from other nodes and delivered. */
+	public long getReceived () {
+		return received.sum();
+	}
+
+	/** Returns the number of messages received from other nodes which had already been delivered. */
+	public long getDuplicates () {
+		return duplicates.sum();
+	}
+
+	/** Returns the number of messages not relayed to a peer because its send queue was full. Messages dropped by a peer's
+	 * outbound buffer while it is disconnected are not counted. */
+	public long getDropped () {
+		return dropped.sum();
+	}
+
+	/** The highest sequence number received from a node and which of the 64 before it were received. Sequence numbers older than
+	 * that are treated as duplicates. */
+	static class Origin {
+		long highest, mask, lastSeen;
+
+		boolean add (long sequence) {
+			if (sequence > highest) {
+				long shift = sequence - highest;
+				mask = shift >= 64 ? 1 : (mask << shift) | 1;
+				highest = sequence;
+				return true;
+			}
+			long age = highest - sequence;
+			if (age >= 64) return false;
+			long bit = 1L << age;
+			if ((mask & bit) != 0) return false;
+			mask |= bit;
+			return true;
+		}
+	}
+
+	/** A link to another node. Batches are buffered while disconnected. */
+	class Peer extends TcpClient {
+		final String key;
+		volatile String peerId;
+		volatile boolean self;
+		/** Set while batches are being dropped, so the warning is logged once. Only used with the batch lock held. */
+		boolean dropping;
+
+		Peer (String host, int port, String key) {
+			super(Cluster.this.category, Cluster.this.name + "Peer", host, port);
+			this.key = key;
+			setOutboundBuffer(new OutboundBuffer(bufferSize, Overflow.dropOldest));
+		}
+
+		public void connected (Connection connection) {
+			connection.send(hello + " " + id + " " + links.getPort());
+		}
+
+		/** Sends a batch, dropping it if the connection's send queue is full so a slow peer doesn't stop relaying to the
+		 * others. */
+		void relay (String message, byte[] bytes, int count) {
+			try {
+				send(message, bytes, 0, bytes.length);
+				dropping = false;
+			} catch (IllegalStateException ex) { // Send queue full.
+				dropped.add(count);
+				if (WARN && !dropping) warn(category, "Cluster peer is not keeping up, dropping batches: " + getAddress());
+				dropping = true;
+			}
+		}
+
+		public void receive (String event, String payload, byte[] bytes, int count) {
+			if (event.equals(hello)) {
+				boolean remove;
+				synchronized (peers) {
+					remove = payload.equals(id) || hasPeer(payload, this);
+					if (remove) {
+						// Links to this node or to a node which is already linked under another address are not kept.
+						self = true;
+						ignored.add(key);
+						peers.remove(key);
+					} else
+						peerId = payload;
+				}
+				if (remove) {
+					if (DEBUG) debug(category, "Cluster peer removed, " + (payload.equals(id) ? "self" : "duplicate") + ": " + key);
+					stop();
+				} else if (INFO) //
+					info(category, "Cluster peer linked: " + key + " (" + payload + ")");
+			} else if (event.equals(peersMessage)) {
+				if (payload == null) return;
+				for (String address : payload.split(" ")) {
+					int index = address.lastIndexOf(':');
+					if (index != -1) addPeer(address.substring(0, index), Integer.parseInt(address.substring(index + 1)));
+				}
+			}
+		}
+
+		public void disconnected (Connection connection) {
+			if (peerId != null && INFO) info(category, "Cluster peer disconnected: " + key + " (" + peerId + ")");
+		}
+
+		/** Returns the address this node is connected to, as host:port, or null if not connected. */
+		String getAddress () {
+			Connection connection = getConnection();
+			if (connection == null || peerId == null) return null;
+			InetAddress address = connection.getRemoteAddress();
+			return address == null ? null : address.getHostAddress() + ":" + getPort();
+		}
+	}
+
+	/** Runs a node which relays <code>send</code> and <code>publish</code> messages from its clients to all nodes.
+	 * <p>
+	 * Arguments: <code>clientPort clusterPort [discoveryPort | host:port...]</code> */
+	static public void main (String[] args) throws Exception {
+		INFO();
+
+		final Cluster[] cluster = new Cluster[1];
+		TcpServer server = new TcpServer("server", "server", Integer.parseInt(args[0])) {
+			public void receive (Connection connection, String event, String payload, byte[] bytes, int count) {
+				if (event.equals("send"))
+					cluster[0].send(payload);
+				else if (event.equals("publish")) {
+					int index = payload.indexOf(' ');
+					cluster[0].publish(payload.substring(0, index), payload.substring(index + 1));
+				}
+			}
+		};
+		cluster[0] = new Cluster("cluster", "cluster", server, Integer.parseInt(args[1]));
+		for (int i = 2; i < args.length; i++) {
+			int index = args[i].lastIndexOf(':');
+			if (index == -1)
+				cluster[0].setDiscovery(new UdpBroadcast(InetAddress.getByName("127.255.255.255")), Integer.parseInt(args[i]));
+			else
+				cluster[0].addPeer(args[i].substring(0, index), Integer.parseInt(args[i].substring(index + 1)));
+		}
+		server.start();
+		cluster[0].start();
+	}
+}
@@ -23,15 +23,19 @@ package com.esotericsoftware.tcpserver;
 import static com.esotericsoftware.minlog.Log.*;
 import static com.esotericsoftware.tcpserver.Util.*;
 
+import java.io.BufferedOutputStream;
 import java.io.Closeable;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 
 import com.esotericsoftware.tcpserver.Protocol.ProtocolRead;
 import com.esotericsoftware.tcpserver.Protocol.ProtocolWrite;
+import com.esotericsoftware.tcpserver.TimerWheel.Timer;
 
 /** A bidirectional connection between the client and server. All methods are thread safe. */
 abstract public class Connection implements Closeable {
@@ -41,23 +45,55 @@ abstract public class Connection implements Closeable {
 	final Protocol protocol;
 	final DataInputStream input;
 	final DataOutputStream output;
+	final Metrics metrics;
+	final RateLimit sendLimit, receiveLimit;
 
 	Thread writeThread;
 	volatile boolean closed;
 
+	final Object timerLock = new Object();
+	private Timer idleTimer, heartbeatTimer;
+	Timer udpTimer;
+	private int idleTimeout, heartbeatInterval;
+	private volatile long roundTripTime, pingSent;
+
+	long sequence;
+	volatile HybridUdpServer udp;
+	volatile long udpToken;
+	volatile InetSocketAddress udpAddress;
+	volatile boolean udpReady;
+
 	Object userObject;
 
 	public Connection (String category, String name, Socket socket, Protocol protocol) throws IOException {
+		this(category, name, socket, protocol, null);
+	}
+
+	/** @param metrics The parent to aggregate this connection's metrics, may be null. */
+	public Connection (String category, String name, Socket socket, Protocol protocol, Metrics metrics) throws IOException {
+		this(category, name, socket, protocol, metrics, null, null);
+	}
+
+	/** @param metrics The parent to aggregate this connection's metrics, may be null.
+	 * @param sendLimit A limit shared with other connections, applied in addition to this connection's limit. May be null.
+	 * @param receiveLimit A limit shared with other connections, applied in addition to this connection's limit. May be null. */
+	public Connection (String category, String name, Socket socket, Protocol protocol, Metrics metrics, RateLimit sendLimit,
+		RateLimit receiveLimit) throws IOException {
 		if (!(protocol instanceof ProtocolRead) && !(protocol instanceof ProtocolWrite))
 			throw new IllegalArgumentException("protocol must extends ProtocolRead and/or ProtocolWrite.");
 		this.category = category;
 		this.name = name;
 		this.socket = socket;
 		this.protocol = protocol;
+		this.metrics = new Metrics(metrics);
+		this.sendLimit = this.metrics.sendLimit = new RateLimit(sendLimit);
+		this.receiveLimit = this.metrics.receiveLimit = new RateLimit(receiveLimit);
 
 		try {
-			input = new DataInputStream(socket.getInputStream());
-			output = new DataOutputStream(socket.getOutputStream());
+			input = new DataInputStream(this.metrics.input(socket.getInputStream()));
+			// Buffered so a message is written to the socket at once, rather than a segment for each field. Protocols flush after
+			// each message.
+			output = new DataOutputStream(new BufferedOutputStream(this.metrics.output(socket.getOutputStream())));
 		} catch (IOException ex) {
 			throw new IOException("Error opening socket streams.", ex);
 		}
@@ -118,6 +154,33 @@ abstract public class Connection implements Closeable {
 		((ProtocolWrite)protocol).send(this, message, bytes, offset, count);
 	}
 
+	/** Sends the string and bytes without waiting for the send to complete, replacing a queued message with the same key which
+	 * has not yet been written. Only the newest value for each key is sent, and messages with different keys keep their order.
+	 * Conflation is reported by {@link Metrics#getConflationRatio()}.
+	 * @param bytes May be null if count is 0.
+	 * @see ProtocolWrite#sendConflated(Connection, Object, String, byte[], int, int) */
+	public void sendConflated (Object key, String message, byte[] bytes, int offset, int count) {
+		((ProtocolWrite)protocol).sendConflated(this, key, message, bytes, offset, count);
+	}
+
+	/** @see #sendConflated(Object, String, byte[], int, int) */
+	public void sendConflated (Object key, String message, byte[] bytes) {
+		((ProtocolWrite)protocol).sendConflated(this, key, message, bytes, 0, bytes.length);
+	}
+
+	/** Asks the other side to send messages {@link Topics#publish(String, String, byte[], int, int) published} to the topic. A
+	 * topic ending with <code>*</code> is a prefix.
+	 * @return false if the protocol doesn't support topics or its queue is full. */
+	public boolean subscribe (String topic) {
+		Topics.checkTopic(topic);
+		return ((ProtocolWrite)protocol).subscribe(this, topic, true);
+	}
+
+	/** @return false if the protocol doesn't support topics or its queue is full. */
+	public boolean unsubscribe (String topic) {
+		return ((ProtocolWrite)protocol).subscribe(this, topic, false);
+	}
+
 	/** Sends the string, blocking until sending is complete.
 	 * @return false if the connection is closed or the send failed (which closes the connection). */
 	public boolean sendBlocking (String message) {
@@ -136,24 +199,207 @@ abstract public class Connection implements Closeable {
 		return ((ProtocolWrite)protocol).sendBlocking(this, message, bytes, offset, count);
 	}
 
+	/** Called when a message published to a topic is received. By default, calls
+	 * {@link #receive(String, String, byte[], int)}. */
+	public void published (String topic, String event, String payload, byte[] bytes, int count) {
+		receive(event, payload, bytes, count);
+	}
+
+	/** Sends a message as a single UDP datagram, if a UDP port was negotiated when connecting. Unlike TCP messages, it may be
+	 * lost, duplicated or arrive out of order. It is passed to the other side's {@link #receive(String, String, byte[], int)} on
+	 * its UDP thread.
+	 * @return false if UDP is not available or the datagram could not be sent.
+	 * @see TcpServer#setUdpPort(int)
+	 * @see TcpClient#setUdp(boolean) */
+	public boolean sendUdp (String message) {
+		return sendUdp(message, null, 0, 0);
+	}
+
+	public boolean sendUdp (String message, byte[] bytes) {
+		return sendUdp(message, bytes, 0, bytes.length);
+	}
+
+	/** @param bytes May be null if count is 0. */
+	public boolean sendUdp (String message, byte[] bytes, int offset, int count) {
+		if (message == null) throw new IllegalArgumentException("message cannot be null.");
+		HybridUdpServer udp = this.udp;
+		if (udp == null || closed) {
+			if (DEBUG) debug(category, "Unable to send, UDP not available: " + message);
+			return false;
+		}
+		if (TRACE) trace(category, "Sent UDP: " + message);
+		return udp.send(this, HybridUdpServer.message, message, bytes, offset, count);
+	}
+
+	/** Returns true once a datagram has been received from the other side, showing UDP works in both directions. */
+	public boolean isUdpReady () {
+		return udpReady;
+	}
+
+	/** Called when the other side offers a UDP port and token, eg {@link DefaultProtocol#udp}. */
+	void udpOffered (int port, long token) {
+		if (DEBUG) debug(category, "UDP not supported, offer ignored.");
+	}
+
+	/** Called when the other side asks to subscribe to or unsubscribe from a topic. */
+	void subscription (String topic, boolean subscribe) {
+		if (DEBUG) debug(category, "Topics not supported, subscription ignored: " + topic);
+	}
+
 	public Protocol getProtocol () {
 		return protocol;
 	}
 
+	public Metrics getMetrics () {
+		return metrics;
+	}
+
+	/** Returns the limit for messages written by this connection. When exceeded, the thread writing is paused, so messages wait
+	 * in the send queue and {@link #sendBlocking(String)} blocks. */
+	public RateLimit getSendLimit () {
+		return sendLimit;
+	}
+
+	/** Returns the limit for messages read by this connection. When exceeded, reading is paused so TCP pushes back on the
+	 * sender. */
+	public RateLimit getReceiveLimit () {
+		return receiveLimit;
+	}
+
+	/** Returns the number of messages queued by {@link #send(String)} which have not yet been written. */
+	public int getSendQueueSize () {
+		return protocol instanceof ProtocolWrite ? ((ProtocolWrite)protocol).getSendQueueSize() : 0;
+	}
+
 	public DataInputStream getInput () {
 		return input;
 	}
 
+	/** Returns the buffered output, which must be flushed after writing. */
 	public DataOutputStream getOutput () {
 		return output;
 	}
 
+	/** Returns the sequence number the other side sent with the message being received, eg with
+	 * {@link TcpClient#sendJournaled(String, byte[], int, int)}, or 0. Only valid on the read thread during
+	 * {@link #receive(String, String, byte[], int)}. A journaled message may be received again after a reconnect, so a receiver
+	 * can skip sequences it has already processed and reply with the sequence so the sender can {@link Journal#ack(long)
+	 * acknowledge} it. */
+	public long getSequence () {
+		return sequence;
+	}
+
 	/** @param bytes May be null if count is 0. */
 	abstract public void receive (String event, String payload, byte[] bytes, int count);
 
+	/** Called when the other side advises waiting before reconnecting, eg {@link DefaultProtocol#retryAfter}. */
+	void retryAfter (int millis) {
+	}
+
+	/** Called on the {@link TimerWheel#getShared() shared timer wheel} thread when no messages have been received for the
+	 * {@link #setIdleTimeout(int) idle timeout}. If the connection is not closed, this is called again each timeout while it
+	 * remains idle. The default implementation closes the connection. */
+	protected void idle () {
+		if (INFO) info(category, "Closing idle connection: " + socket.getInetAddress() + ":" + socket.getPort());
+		close();
+	}
+
+	/** If no messages are received for this long, {@link #idle()} is called. Idle is checked each timeout, so it is detected
+	 * after 1 to 2 times the timeout. Heartbeats count as messages.
+	 * @param millis 0 to disable. */
+	public void setIdleTimeout (int millis) {
+		synchronized (timerLock) {
+			idleTimeout = millis;
+			if (idleTimer != null) idleTimer.cancel();
+			idleTimer = null;
+			if (millis <= 0 || closed) return;
+			idleTimer = TimerWheel.getShared().schedule(new Runnable() {
+				int receives = metrics.receives;
+
+				public void run () {
+					if (closed) return;
+					int receives = metrics.receives;
+					if (receives == this.receives)
+						idle();
+					else
+						this.receives = receives;
+				}
+			}, millis, millis);
+		}
+	}
+
+	public int getIdleTimeout () {
+		return idleTimeout;
+	}
+
+	/** If no messages are sent for this long, a heartbeat is sent so the other side does not see the connection as idle. It is
+	 * checked each interval, so a heartbeat is sent after 1 to 2 times the interval. The other side's idle timeout should be
+	 * larger than twice the interval. Nothing is sent if the protocol does not support heartbeats.
+	 * @param millis 0 to disable. */
+	public void setHeartbeatInterval (int millis) {
+		synchronized (timerLock) {
+			heartbeatInterval = millis;
+			if (heartbeatTimer != null) heartbeatTimer.cancel();
+			heartbeatTimer = null;
+			if (millis <= 0 || closed || !(protocol instanceof ProtocolWrite)) return;
+			heartbeatTimer = TimerWheel.getShared().schedule(new Runnable() {
+				int sends = metrics.sends;
+
+				public void run () {
+					if (closed) return;
+					int sends = metrics.sends;
+					if (sends == this.sends) ((ProtocolWrite)protocol).sendHeartbeat(Connection.this);
+					this.sends = sends;
+				}
+			}, millis, millis);
+		}
+	}
+
+	public int getHeartbeatInterval () {
+		return heartbeatInterval;
+	}
+
+	/** Sends a ping to measure the {@link #getRoundTripTime() round trip time}. If a ping is already waiting for a reply, another
+	 * is sent but the {@link #getPingWaitTime() wait time} is measured from the first.
+	 * @return false if the protocol does not support pings or the ping could not be queued. */
+	public boolean ping () {
+		if (closed || !(protocol instanceof ProtocolWrite)) return false;
+		long time = System.nanoTime();
+		if (!((ProtocolWrite)protocol).sendPing(this, time)) return false;
+		if (pingSent == 0) pingSent = time;
+		return true;
+	}
+
+	/** Called by the protocol when a reply to {@link #ping()} is received.
+	 * @param time The {@link System#nanoTime()} when the ping was sent. */
+	void pong (long time) {
+		long rtt = Math.max(1, System.nanoTime() - time), srtt = roundTripTime;
+		roundTripTime = srtt == 0 ? rtt : srtt + (rtt - srtt) / 8; // Smoothed like TCP's SRTT.
+		pingSent = 0;
+	}
+
+	/** Returns the smoothed round trip time in nanoseconds measured by {@link #ping()}, or 0 if no ping has been answered. Each
+	 * new measurement is weighted 1/8. */
+	public long getRoundTripTime () {
+		return roundTripTime;
+	}
+
+	/** Returns the nanoseconds since the oldest ping which has not been answered was sent, or 0. */
+	public long getPingWaitTime () {
+		long pingSent = this.pingSent;
+		return pingSent == 0 ? 0 : Math.max(1, System.nanoTime() - pingSent);
+	}
+
 	public void close () {
 		if (INFO && !closed) info(category, "Client disconnected: " + socket.getInetAddress() + ":" + socket.getPort());
 		closed = true;
+		synchronized (timerLock) {
+			if (idleTimer != null) idleTimer.cancel();
+			if (heartbeatTimer != null) heartbeatTimer.cancel();
+			if (udpTimer != null) udpTimer.cancel();
+		}
+		HybridUdpServer udp = this.udp;
+		if (udp != null) udp.connections.remove(udpToken, this);
 		if (writeThread != null) writeThread.interrupt();
 		closeQuietly(output);
 		closeQuietly(input);
@@ -164,6 +410,11 @@ abstract public class Connection implements Closeable {
 		return closed;
 	}
 
+	/** @return May be null if the socket is not connected. */
+	public InetAddress getRemoteAddress () {
+		return socket.getInetAddress();
+	}
+
 	public String getCategory () {
 		return category;
 	}
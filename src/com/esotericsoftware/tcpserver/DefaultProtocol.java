@@ -23,10 +23,14 @@ package com.esotericsoftware.tcpserver;
 import static com.esotericsoftware.minlog.Log.*;
 import static com.esotericsoftware.tcpserver.Util.*;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.concurrent.ArrayBlockingQueue;
 
 import com.esotericsoftware.tcpserver.Protocol.ProtocolRead;
@@ -35,10 +39,37 @@ import com.esotericsoftware.tcpserver.Protocol.ProtocolWrite;
 /** The default protocol for sending a string and an optional byte array. */
 public class DefaultProtocol implements ProtocolRead, ProtocolWrite {
 	static private final byte[] empty = new byte[0];
+	/** The message sent for heartbeats, which is not passed to {@link Connection#receive(String, String, byte[], int)}. */
+	static public final String heartbeat = "\0";
+	/** The prefix of a message which tells a {@link TcpClient} the minimum milliseconds to wait before reconnecting, which is not
+	 * passed to {@link Connection#receive(String, String, byte[], int)}. */
+	static public final String retryAfter = "\0retryAfter ";
+	/** The prefix of messages for {@link #sendPing(Connection, long) pings} and their replies, which are not passed to
+	 * {@link Connection#receive(String, String, byte[], int)}. */
+	static public final String ping = "\0ping ", pong = "\0pong ";
+	/** The prefixes of messages to {@link Topics subscribe} and unsubscribe, followed by the topic. */
+	static public final String subscribe = "\0sub ", unsubscribe = "\0unsub ";
+	/** The prefix of a message published to a topic, followed by the topic and the message. It is passed to
+	 * {@link Connection#published(String, String, String, byte[], int)}. */
+	static public final String publish = "\0pub ";
+	/** The prefix of a message which offers a UDP port and token, followed by the port and token. It is passed to
+	 * {@link Connection#udpOffered(int, long)}. */
+	static public final String udp = "\0udp ";
+	/** The prefix of a message which carries the sequence number of the message after it, eg a {@link Journal} sequence. The
+	 * sequence is available from {@link Connection#getSequence()} while the next message is received. */
+	static public final String sequenced = "\0seq ";
 
-	private final Object outputLock = new Object();
-	private final ArrayBlockingQueue sends = new ArrayBlockingQueue(1024, true);
+	final Object outputLock = new Object();
+	final ArrayBlockingQueue sends = new ArrayBlockingQueue(1024, true);
+	/** Queued conflated messages by key, which have not yet been taken by the write thread. */
+	private final HashMap<Object, Send> conflated = new HashMap();
+	/** Written conflated messages, reused along with their byte arrays. */
+	private final ArrayDeque<Send> conflatedPool = new ArrayDeque();
 	byte[] data = empty;
+	/** Counts messages queued by {@link #send(Connection, String)}, so only every {@link #queueSampleRate}th is wrapped to record
+	 * its queue time. Races only skew which messages are sampled. */
+	private int stringSends;
+	static final int queueSampleRate = 16;
 
 	public void readThread (Connection connection) throws IOException {
 		DataInputStream input = connection.input;
@@ -46,41 +77,151 @@ public class DefaultProtocol implements ProtocolRead, ProtocolWrite {
 		while (!connection.closed) {
 			String message = input.readUTF();
 			if (message == null || connection.closed) break;
-			String event, payload;
-			int index = message.indexOf(" ");
-			if (index != -1) {
-				event = message.substring(0, index).trim();
-				payload = message.substring(index + 1).trim();
-			} else {
-				event = message.trim();
-				payload = "";
-			}
 
 			int dataLength = readVarint(input);
+			if (dataLength == -1) break; // End of stream.
 			if (dataLength > 0) {
 				if (data.length < dataLength) data = new byte[dataLength];
 				if (!readFully(connection, data, 0, dataLength)) break;
 			}
 
-			if (TRACE) trace(connection.category, "Received: " + event + ", " + payload + (dataLength > 0 ? ", " + dataLength : ""));
+			if (message.startsWith(heartbeat) && !message.startsWith(publish)) { // All control messages start with the heartbeat.
+				control(connection, message, data, dataLength);
+				connection.metrics.received(0);
+				continue;
+			}
+			if (!dispatch(connection, message, data, dataLength)) break;
+		}
+	}
+
+	/** Passes a message which is not a control message to {@link #receive(Connection, String, String, byte[], int)}.
+	 * @return false if the connection should be closed. */
+	boolean dispatch (Connection connection, String message, byte[] data, int dataLength) throws IOException {
+		String topic = null;
+		if (message.startsWith(publish)) {
+			int index = message.indexOf(' ', publish.length());
+			if (index == -1) {
+				if (ERROR) error(connection.category, "Invalid publish: " + message.substring(1));
+				return false;
+			}
+			topic = message.substring(publish.length(), index);
+			message = message.substring(index + 1);
+		}
+
+		String event, payload;
+		int index = message.indexOf(" ");
+		if (index != -1) {
+			event = message.substring(0, index).trim();
+			payload = message.substring(index + 1).trim();
+		} else {
+			event = message.trim();
+			payload = "";
+		}
+
+		if (TRACE) {
+			trace(connection.category, "Received: " + (topic != null ? topic + ": " : "") + event + ", " + payload
+				+ (dataLength > 0 ? ", " + dataLength : ""));
+		}
+		long start = Metrics.start();
+		try {
+			if (topic != null)
+				connection.published(topic, event, payload, data, dataLength);
+			else
+				receive(connection, event, payload, data, dataLength);
+			connection.metrics.received(start);
+		} catch (Throwable ex) {
+			if (ERROR) error(connection.category, "Error processing message: " + message, ex);
+			return false;
+		} finally {
+			connection.sequence = 0;
+		}
+		return true;
+	}
+
+	/** Called for messages which start with {@link #heartbeat}, which are used by the protocol and are not passed to
+	 * {@link Connection#receive(String, String, byte[], int)}. Calls {@link #control(Connection, String)} for messages without
+	 * bytes.
+	 * @throws IOException if the message is invalid, closing the connection. */
+	protected void control (Connection connection, String message, byte[] bytes, int count) throws IOException {
+		if (count != 0) throw new IOException("Invalid control message: " + message.substring(1));
+		control(connection, message);
+	}
+
+	/** Called for control messages without bytes.
+	 * @throws IOException if the message is invalid, closing the connection. */
+	protected void control (Connection connection, String message) throws IOException {
+		if (message.equals(heartbeat)) {
+			if (TRACE) trace(connection.category, "Received heartbeat.");
+		} else if (message.startsWith(retryAfter)) {
+			if (TRACE) trace(connection.category, "Received: " + message.substring(1));
+			try {
+				connection.retryAfter(Integer.parseInt(message.substring(retryAfter.length())));
+			} catch (NumberFormatException ex) {
+				if (ERROR) error(connection.category, "Invalid retry after: " + message.substring(1));
+			}
+		} else if (message.startsWith(subscribe)) {
+			if (TRACE) trace(connection.category, "Received: " + message.substring(1));
+			connection.subscription(message.substring(subscribe.length()), true);
+		} else if (message.startsWith(unsubscribe)) {
+			if (TRACE) trace(connection.category, "Received: " + message.substring(1));
+			connection.subscription(message.substring(unsubscribe.length()), false);
+		} else if (message.startsWith(sequenced)) {
+			try {
+				connection.sequence = Long.parseLong(message.substring(sequenced.length()));
+			} catch (NumberFormatException ex) {
+				throw new IOException("Invalid sequence: " + message.substring(1));
+			}
+		} else if (message.startsWith(udp)) {
+			if (TRACE) trace(connection.category, "Received: " + message.substring(1));
+			int port;
+			long token;
+			try {
+				int index = message.indexOf(' ', udp.length());
+				port = Integer.parseInt(message.substring(udp.length(), index));
+				token = Long.parseLong(message.substring(index + 1));
+			} catch (RuntimeException ex) {
+				throw new IOException("Invalid UDP offer: " + message.substring(1));
+			}
+			connection.udpOffered(port, token);
+		} else if (message.startsWith(ping) || message.startsWith(pong)) {
+			if (TRACE) trace(connection.category, "Received: " + message.substring(1));
+			long time;
 			try {
-				connection.receive(event, payload, data, dataLength);
-			} catch (Throwable ex) {
-				if (ERROR) error(connection.category, "Error processing message: " + message, ex);
-				break;
+				time = Long.parseLong(message.substring(ping.length()));
+			} catch (NumberFormatException ex) {
+				throw new IOException("Invalid ping: " + message.substring(1));
 			}
+			if (message.startsWith(ping))
+				sendControl(connection, pong + time);
+			else
+				connection.pong(time);
+		} else {
+			if (DEBUG) debug(connection.category, "Unknown control message: " + message.substring(1));
 		}
 	}
 
+	/** Called for each message received which is not a {@link #control(Connection, String) control message}. */
+	protected void receive (Connection connection, String event, String payload, byte[] bytes, int count) {
+		connection.receive(event, payload, bytes, count);
+	}
+
 	public void writeThread (Connection connection) {
 		while (!connection.closed) {
 			try {
 				Object object = sends.take();
 				if (object instanceof String)
 					sendBlocking(connection, (String)object, null, 0, 0);
+				else if (object instanceof Topics.Publication)
+					sendFrame(connection, (Topics.Publication)object);
 				else {
 					DefaultProtocol.Send send = (DefaultProtocol.Send)object;
-					sendBlocking(connection, send.message, send.bytes, 0, send.count);
+					boolean keyed = claim(send);
+					connection.metrics.queued(send.queued);
+					if (send.sequence != 0)
+						sendSequencedBlocking(connection, send.sequence, send.message, send.bytes, 0, send.count);
+					else
+						sendBlocking(connection, send.message, send.bytes, 0, send.count);
+					if (keyed) free(send);
 				}
 			} catch (InterruptedException ignored) {
 			}
@@ -91,7 +232,36 @@ public class DefaultProtocol implements ProtocolRead, ProtocolWrite {
 		if (message == null) throw new IllegalArgumentException("message cannot be null.");
 
 		if (TRACE) trace(connection.category, "Queued: " + message);
-		sends.add(message);
+		long queued = ++stringSends % queueSampleRate == 0 ? Metrics.start() : 0;
+		if (queued == 0)
+			sends.add(message);
+		else {
+			DefaultProtocol.Send send = new Send();
+			send.message = message;
+			send.queued = queued;
+			sends.add(send);
+		}
+	}
+
+	public boolean sendHeartbeat (Connection connection) {
+		if (TRACE) trace(connection.category, "Queued heartbeat.");
+		return sendControl(connection, heartbeat);
+	}
+
+	public boolean sendPing (Connection connection, long time) {
+		if (TRACE) trace(connection.category, "Queued ping.");
+		return sendControl(connection, ping + time);
+	}
+
+	public boolean offerUdp (Connection connection, int port, long token) {
+		if (TRACE) trace(connection.category, "Queued UDP offer: " + port);
+		return sendControl(connection, udp + port + " " + token);
+	}
+
+	/** Queues a {@link #control(Connection, String) control message}.
+	 * @return false if the queue is full. */
+	protected boolean sendControl (Connection connection, String message) {
+		return sends.offer(message);
 	}
 
 	public void send (Connection connection, String message, byte[] bytes, int offset, int count) {
@@ -107,10 +277,93 @@ public class DefaultProtocol implements ProtocolRead, ProtocolWrite {
 		send.message = message;
 		send.bytes = Arrays.copyOf(bytes, count);
 		send.count = count;
+		send.queued = Metrics.start();
 		sends.add(send);
 	}
 
+	public void sendConflated (Connection connection, Object key, String message, byte[] bytes, int offset, int count) {
+		if (key == null) throw new IllegalArgumentException("key cannot be null.");
+		if (message == null) throw new IllegalArgumentException("message cannot be null.");
+		if (bytes == null) {
+			if (count != 0) throw new IllegalArgumentException("bytes cannot be null when count != 0: " + count);
+		} else {
+			if (count < 0) throw new IllegalArgumentException("count cannot be < 0");
+		}
+
+		boolean replaced;
+		synchronized (conflated) {
+			Send send = conflated.get(key);
+			replaced = send != null;
+			if (!replaced) {
+				send = conflatedPool.poll();
+				if (send == null) send = new Send();
+			}
+			send.message = message;
+			if (count > 0) {
+				if (send.bytes == null || send.bytes.length < count) send.bytes = new byte[count];
+				System.arraycopy(bytes, offset, send.bytes, 0, count);
+			}
+			send.count = count;
+			if (!replaced) {
+				send.key = key;
+				send.queued = Metrics.start();
+				sends.add(send);
+				conflated.put(key, send);
+			}
+		}
+		if (TRACE) trace(connection.category, (replaced ? "Conflated: " : "Queued: ") + message + (count > 0 ? ", " + count : ""));
+		connection.metrics.conflated(replaced);
+	}
+
+	/** Removes a conflated message from the map, so it is no longer updated by
+	 * {@link #sendConflated(Connection, Object, String, byte[], int, int)}. Must be called before the message is written.
+	 * @return true if the message was conflated. */
+	boolean claim (Send send) {
+		if (send.key == null) return false;
+		synchronized (conflated) {
+			conflated.remove(send.key);
+			send.key = null;
+		}
+		return true;
+	}
+
+	/** Keeps a written conflated message for reuse. */
+	private void free (Send send) {
+		synchronized (conflated) {
+			send.message = null;
+			if (conflatedPool.size() < 64) conflatedPool.add(send);
+		}
+	}
+
 	public boolean sendBlocking (Connection connection, String message, byte[] bytes, int offset, int count) {
+		return writeBlocking(connection, 0, message, bytes, offset, count);
+	}
+
+	public void sendSequenced (Connection connection, long sequence, String message, byte[] bytes, int offset, int count) {
+		if (message == null) throw new IllegalArgumentException("message cannot be null.");
+		if (bytes == null) {
+			if (count != 0) throw new IllegalArgumentException("bytes cannot be null when count != 0: " + count);
+		} else {
+			if (count < 0) throw new IllegalArgumentException("count cannot be < 0");
+		}
+
+		if (TRACE) trace(connection.category, "Queued: " + sequence + ", " + message + ", " + count);
+		DefaultProtocol.Send send = new Send();
+		send.sequence = sequence;
+		send.message = message;
+		send.bytes = count == 0 ? null : Arrays.copyOfRange(bytes, offset, offset + count);
+		send.count = count;
+		send.queued = Metrics.start();
+		sends.add(send);
+	}
+
+	public boolean sendSequencedBlocking (Connection connection, long sequence, String message, byte[] bytes, int offset,
+		int count) {
+		return writeBlocking(connection, sequence, message, bytes, offset, count);
+	}
+
+	/** @param sequence If not 0, a {@link #sequenced} message is written first. */
+	private boolean writeBlocking (Connection connection, long sequence, String message, byte[] bytes, int offset, int count) {
 		if (message == null) throw new IllegalArgumentException("message cannot be null.");
 		if (bytes == null) {
 			if (count != 0) throw new IllegalArgumentException("bytes cannot be null when count != 0: " + count);
@@ -120,14 +373,16 @@ public class DefaultProtocol implements ProtocolRead, ProtocolWrite {
 
 		if (connection.closed) return false;
 		try {
+			long sent;
 			synchronized (outputLock) {
 				if (TRACE) trace(connection.category, "Sent: " + message + (count > 0 ? ", " + count : ""));
-				DataOutputStream output = connection.output;
-				output.writeUTF(message);
-				writeVarint(count, output);
-				if (count != 0) output.write(bytes, offset, count);
-				output.flush();
+				long start = Metrics.start();
+				if (sequence != 0) write(connection, sequenced + sequence, null, 0, 0);
+				write(connection, message, bytes, offset, count);
+				connection.output.flush();
+				sent = connection.metrics.written(start);
 			}
+			connection.metrics.throttle(sent);
 			return true;
 		} catch (IOException ex) {
 			if (ERROR && !connection.closed) error(connection.category, "Error writing to connection: " + message, ex);
@@ -136,9 +391,91 @@ public class DefaultProtocol implements ProtocolRead, ProtocolWrite {
 		}
 	}
 
+	/** Writes a publication's shared frame. */
+	void sendFrame (Connection connection, Topics.Publication publication) {
+		if (connection.closed) return;
+		try {
+			long sent;
+			synchronized (outputLock) {
+				if (TRACE) trace(connection.category, "Sent: " + publication.topic + ": " + publication.message);
+				long start = Metrics.start();
+				connection.output.write(publication.frame());
+				connection.output.flush();
+				sent = connection.metrics.written(start);
+			}
+			connection.metrics.throttle(sent);
+		} catch (IOException ex) {
+			if (ERROR && !connection.closed) error(connection.category, "Error writing to connection: " + publication.message, ex);
+			connection.close();
+		}
+	}
+
+	public boolean publish (Connection connection, Topics.Publication publication) {
+		return sends.offer(publication);
+	}
+
+	public boolean subscribe (Connection connection, String topic, boolean subscribe) {
+		return sendControl(connection, (subscribe ? DefaultProtocol.subscribe : unsubscribe) + topic);
+	}
+
+	/** Writes a message without flushing. Called with the output lock held. */
+	protected void write (Connection connection, String message, byte[] bytes, int offset, int count) throws IOException {
+		DataOutputStream output = connection.output;
+		output.writeUTF(message);
+		writeVarint(count, output);
+		if (count != 0) output.write(bytes, offset, count);
+	}
+
+	public int getSendQueueSize () {
+		return sends.size();
+	}
+
+	public void drainSends (Connection connection, OutboundBuffer buffer) {
+		ArrayList drained = new ArrayList();
+		sends.drainTo(drained);
+		ArrayList<OutboundBuffer.Entry> entries = new ArrayList(drained.size());
+		for (Object object : drained) {
+			if (object instanceof String) {
+				String message = (String)object;
+				if (!message.startsWith(heartbeat)) entries.add(new OutboundBuffer.Entry(message, null)); // Skip control messages.
+			} else if (object instanceof Topics.Publication) {
+				Topics.Publication publication = (Topics.Publication)object;
+				entries.add(new OutboundBuffer.Entry(publication.getProtocolMessage(), publication.bytes));
+			} else {
+				DefaultProtocol.Send send = (DefaultProtocol.Send)object;
+				claim(send);
+				byte[] bytes = send.count == 0 ? null : send.bytes;
+				if (bytes != null && bytes.length != send.count) bytes = Arrays.copyOf(bytes, send.count); // Conflated.
+				entries.add(new OutboundBuffer.Entry(send.message, bytes));
+			}
+		}
+		buffer.addFirst(entries);
+	}
+
+	/** Returns the bytes written for a message without bytes, eg for writing directly to a socket. */
+	static public byte[] frame (String message) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(message.length() + 3);
+		try {
+			DataOutputStream output = new DataOutputStream(bytes);
+			output.writeUTF(message);
+			writeVarint(0, output);
+		} catch (IOException ex) {
+			throw new IllegalArgumentException("Invalid message: " + message, ex);
+		}
+		return bytes.toByteArray();
+	}
+
+	/** Returns the bytes for a {@link #retryAfter} message, eg for {@link TcpServer#setRejectFrame(byte[])}. */
+	static public byte[] retryAfterFrame (int millis) {
+		return frame(retryAfter + millis);
+	}
+
 	static class Send {
+		/** Set while the message can be replaced by a conflated send. */
+		Object key;
 		String message;
 		byte[] bytes;
 		int count;
+		long queued, sequence;
 	}
 }
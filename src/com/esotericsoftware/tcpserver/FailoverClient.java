@@ -0,0 +1,275 @@
+/* Copyright (c) 2017-2021, Esoteric Software
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following
+ * conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.esotericsoftware.tcpserver;
+
+import static com.esotericsoftware.minlog.Log.*;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.esotericsoftware.tcpserver.Protocol.ProtocolWrite;
+import com.esotericsoftware.tcpserver.TimerWheel.Timer;
+
+/** Connects a {@link TcpClient} to each of a number of endpoints and sends to the fastest one which is healthy. Each connection
+ * is {@link Connection#ping() pinged} periodically to measure its round trip time. A connection is unhealthy when a ping has gone
+ * unanswered for the {@link #setPingTimeout(int) ping timeout}. All endpoints stay connected, so when one disconnects sends fail
+ * over to the next fastest immediately while it reconnects.
+ * <p>
+ * Round trip times are only measured with protocols that support pings, such as {@link DefaultProtocol}. Otherwise endpoints are
+ * used in the order they were added. Messages may arrive out of order when the endpoint used changes.
+ * <p>
+ * For latency critical sends, {@link #sendHedged(String, byte[], int, int, int)} sends to a second endpoint when no reply has
+ * arrived after a delay. */
+public class FailoverClient extends ClientGroup {
+	private volatile TcpClient[] clients = new TcpClient[0];
+	private int pingInterval = 1000, pingTimeout = 3000;
+	private Timer pingTimer;
+
+	public FailoverClient (String category, String name) {
+		super(category, name);
+	}
+
+	TcpClient[] clients () {
+		return clients;
+	}
+
+	/** Adds an endpoint. Endpoints added earlier are preferred when round trip times are not known. Must be called before
+	 * {@link #start()}.
+	 * @return The client for the endpoint, which can be configured before start. */
+	public synchronized TcpClient addEndpoint (String host, int port) {
+		TcpClient client = newClient(clients.length, host, port);
+		TcpClient[] clients = Arrays.copyOf(this.clients, this.clients.length + 1);
+		clients[clients.length - 1] = client;
+		this.clients = clients;
+		return client;
+	}
+
+	/** Starts connecting to all endpoints and pinging them each {@link #setPingInterval(int) ping interval}. */
+	public synchronized void start () {
+		if (clients.length == 0) throw new IllegalStateException("No endpoints have been added.");
+		for (TcpClient client : clients)
+			client.start();
+		if (pingTimer != null) pingTimer.cancel();
+		pingTimer = TimerWheel.getShared().schedule(new Runnable() {
+			public void run () {
+				for (TcpClient client : clients) {
+					Connection connection = client.getConnection();
+					if (connection != null) connection.ping();
+				}
+			}
+		}, pingInterval, pingInterval);
+	}
+
+	public synchronized void stop () {
+		if (pingTimer != null) {
+			pingTimer.cancel();
+			pingTimer = null;
+		}
+		for (TcpClient client : clients)
+			client.stop();
+	}
+
+	/** Returns the connection with the lowest round trip time which is healthy, else any connection, or null if no endpoints are
+	 * connected. */
+	public Connection getConnection () {
+		return getConnection(null);
+	}
+
+	/** @param exclude May be null. */
+	Connection getConnection (Connection exclude) {
+		long timeout = TimeUnit.MILLISECONDS.toNanos(pingTimeout);
+		Connection best = null, unhealthy = null;
+		long bestTime = Long.MAX_VALUE;
+		for (TcpClient client : clients) {
+			Connection connection = client.getConnection();
+			if (connection == null || connection == exclude) continue;
+			if (connection.getPingWaitTime() > timeout) {
+				if (unhealthy == null) unhealthy = connection;
+				continue;
+			}
+			long time = connection.getRoundTripTime();
+			if (time == 0) time = Long.MAX_VALUE - 1; // Not yet measured.
+			if (time < bestTime) {
+				best = connection;
+				bestTime = time;
+			}
+		}
+		return best != null ? best : unhealthy;
+	}
+
+	public boolean send (String message) {
+		return send(message, null, 0, 0);
+	}
+
+	public boolean send (String message, byte... bytes) {
+		return send(message, bytes, 0, bytes.length);
+	}
+
+	public boolean send (String message, byte[] bytes, int offset, int count) {
+		return send(getConnection(), message, bytes, offset, count);
+	}
+
+	public boolean sendBlocking (String message) {
+		return sendBlocking(message, null, 0, 0);
+	}
+
+	public boolean sendBlocking (String message, byte... bytes) {
+		return sendBlocking(message, bytes, 0, bytes.length);
+	}
+
+	/** Sends using the fastest healthy connection, blocking until sending is complete. If the send fails, it is tried once on the
+	 * next connection. */
+	public boolean sendBlocking (String message, byte[] bytes, int offset, int count) {
+		Connection connection = getConnection();
+		if (connection == null) {
+			if (DEBUG) debug(category, "Unable to send, not connected: " + message);
+			return false;
+		}
+		if (sendBlocking(connection, message, bytes, offset, count)) return true;
+		connection = getConnection(connection);
+		return connection != null && sendBlocking(connection, message, bytes, offset, count);
+	}
+
+	/** Sends using the fastest healthy connection. If {@link Hedge#complete()} is not called within the delay, eg when the reply is
+	 * received, the message is sent again using the next fastest connection. The other side must tolerate duplicates and the
+	 * first reply should be used.
+	 * @param bytes May be null if count is 0.
+	 * @param delay Milliseconds to wait before hedging, eg a high percentile of the reply time.
+	 * @return null if not connected. */
+	public Hedge sendHedged (String message, byte[] bytes, int offset, int count, int delay) {
+		Connection connection = getConnection();
+		if (connection == null) {
+			if (DEBUG) debug(category, "Unable to send, not connected: " + message);
+			return null;
+		}
+		Hedge hedge = new Hedge(connection, message, bytes == null ? null : Arrays.copyOfRange(bytes, offset, offset + count));
+		hedge.timer = TimerWheel.getShared().schedule(hedge, delay);
+		if (bytes == null)
+			connection.send(message);
+		else
+			connection.send(message, bytes, offset, count);
+		return hedge;
+	}
+
+	/** Called after an endpoint's new connection has been started. The default implementation pings it. */
+	public void connected (Connection connection) {
+		connection.ping();
+	}
+
+	/** Waits until any endpoint is connected.
+	 * @param millis 0 to wait forever. */
+	public boolean waitForConnection (long millis) {
+		long until = System.currentTimeMillis() + millis;
+		synchronized (waitForConnection) {
+			while (!isConnected()) {
+				long wait = 0;
+				if (millis > 0) {
+					wait = until - System.currentTimeMillis();
+					if (wait <= 0) return false;
+				}
+				try {
+					waitForConnection.wait(wait);
+				} catch (InterruptedException ignored) {
+				}
+			}
+		}
+		return true;
+	}
+
+	/** Returns the clients for each endpoint, in the order they were added. */
+	public TcpClient[] getClients () {
+		return clients;
+	}
+
+	public int getPingInterval () {
+		return pingInterval;
+	}
+
+	/** Sets how often each connection is pinged. Takes effect the next time {@link #start()} is called. Default is 1000. */
+	public void setPingInterval (int millis) {
+		if (millis <= 0) throw new IllegalArgumentException("millis must be > 0: " + millis);
+		pingInterval = millis;
+	}
+
+	public int getPingTimeout () {
+		return pingTimeout;
+	}
+
+	/** Sets how long a ping can go unanswered before the connection is not used if a healthy one is available. Default is
+	 * 3000. */
+	public void setPingTimeout (int millis) {
+		pingTimeout = millis;
+	}
+
+	/** A message sent by {@link FailoverClient#sendHedged(String, byte[], int, int, int)}. */
+	public class Hedge implements Runnable {
+		final Connection connection;
+		final String message;
+		final byte[] bytes;
+		private final AtomicBoolean complete = new AtomicBoolean();
+		volatile Connection hedgeConnection;
+		volatile Timer timer;
+
+		Hedge (Connection connection, String message, byte[] bytes) {
+			this.connection = connection;
+			this.message = message;
+			this.bytes = bytes;
+		}
+
+		public void run () {
+			if (complete.get()) return;
+			Connection connection = FailoverClient.this.getConnection(this.connection);
+			if (connection == null) return;
+			// Runs on the shared timer thread, so a full queue must not throw.
+			ProtocolWrite protocol = (ProtocolWrite)connection.getProtocol();
+			if (!protocol.offer(connection, message, bytes, 0, bytes == null ? 0 : bytes.length)) {
+				if (DEBUG) debug(category, "Unable to hedge, queue full: " + message);
+				return;
+			}
+			if (DEBUG) debug(category, "Hedging: " + message);
+			hedgeConnection = connection;
+		}
+
+		/** Marks the send complete so it is not hedged.
+		 * @return true if this is the first call, eg for the first reply. */
+		public boolean complete () {
+			if (!complete.compareAndSet(false, true)) return false;
+			timer.cancel();
+			return true;
+		}
+
+		public boolean isComplete () {
+			return complete.get();
+		}
+
+		/** Returns the connection the message was first sent on. */
+		public Connection getConnection () {
+			return connection;
+		}
+
+		/** Returns the connection the message was sent on again after the delay, or null if it was not hedged. */
+		public Connection getHedgeConnection () {
+			return hedgeConnection;
+		}
+	}
+}
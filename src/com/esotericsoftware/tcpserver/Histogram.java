@@ -0,0 +1,117 @@
+/* Copyright (c) 2017-2021, Esoteric Software
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following
+ * conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.esotericsoftware.tcpserver;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** Records values into log-linear buckets, with about 3% precision, without allocating. Values are typically nanoseconds. All
+ * methods are thread safe. */
+public class Histogram {
+	static private final int subBits = 5, subCount = 1 << subBits, bucketCount = (64 - subBits) * subCount;
+
+	private final AtomicLongArray counts = new AtomicLongArray(bucketCount);
+	private final AtomicLong total = new AtomicLong(), max = new AtomicLong();
+
+	/** @param value Negative values are recorded as 0. */
+	public void record (long value) {
+		if (value < 0) value = 0;
+		counts.incrementAndGet(index(value));
+		total.addAndGet(value);
+		long max = this.max.get();
+		while (value > max && !this.max.compareAndSet(max, value))
+			max = this.max.get();
+	}
+
+	/** Adds the values recorded by the specified histogram to this histogram. */
+	public void add (Histogram histogram) {
+		for (int i = 0; i < bucketCount; i++) {
+			long value = histogram.counts.get(i);
+			if (value != 0) counts.addAndGet(i, value);
+		}
+		total.addAndGet(histogram.total.get());
+		long value = histogram.max.get(), max = this.max.get();
+		while (value > max && !this.max.compareAndSet(max, value))
+			max = this.max.get();
+	}
+
+	/** Returns a copy of this histogram. Values recorded while the copy is made may be only partially included. */
+	public Histogram snapshot () {
+		Histogram snapshot = new Histogram();
+		snapshot.add(this);
+		return snapshot;
+	}
+
+	public void reset () {
+		for (int i = 0; i < bucketCount; i++)
+			counts.set(i, 0);
+		total.set(0);
+		max.set(0);
+	}
+
+	/** Returns the highest value equivalent to the bucket which contains the specified percentile of values.
+	 * @param percentile 0 to 100. */
+	public long getValueAtPercentile (double percentile) {
+		long count = getCount();
+		if (count == 0) return 0;
+		long target = Math.max(1, (long)Math.ceil(Math.min(percentile, 100) / 100 * count)), seen = 0;
+		for (int i = 0; i < bucketCount; i++) {
+			seen += counts.get(i);
+			if (seen >= target) return Math.min(highestValue(i), max.get());
+		}
+		return max.get();
+	}
+
+	public long getCount () {
+		long count = 0;
+		for (int i = 0; i < bucketCount; i++)
+			count += counts.get(i);
+		return count;
+	}
+
+	public long getMax () {
+		return max.get();
+	}
+
+	public double getMean () {
+		long count = getCount();
+		return count == 0 ? 0 : total.get() / (double)count;
+	}
+
+	public String toString () {
+		return "count=" + getCount() + " mean=" + (long)getMean() + " p50=" + getValueAtPercentile(50) + " p99="
+			+ getValueAtPercentile(99) + " p999=" + getValueAtPercentile(99.9) + " max=" + getMax();
+	}
+
+	static int index (long value) {
+		if (value < subCount << 1) return (int)value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - subBits;
+		return ((shift + 1) << subBits) + (int)(value >>> shift) - subCount;
+	}
+
+	static long highestValue (int index) {
+		if (index < subCount << 1) return index;
+		int shift = (index >>> subBits) - 1;
+		long sub = (index & (subCount - 1)) + subCount;
+		return ((sub + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,186 @@
+/* Copyright (c) 2017-2021, Esoteric Software
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following
+ * conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.esotericsoftware.tcpserver;
+
+import static com.esotericsoftware.minlog.Log.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Sends and receives unreliable datagrams for TCP {@link Connection connections} which negotiated a UDP port and token over
+ * TCP. Each datagram starts with the token, which routes it to its connection.
+ * <p>
+ * Datagram format: [token, 8 bytes][type, 1 byte][message length, varint][message, UTF-8][bytes]. The register type carries no
+ * message. The client sends registrations until the server echoes one, which tells the server the client's UDP address and
+ * tells the client datagrams reach the server. Only registrations change the address the server sends to, eg for NAT.
+ * <p>
+ * The token is sent in cleartext in every datagram, even when the TCP connection uses TLS. Anyone who can see the datagrams can
+ * send messages to the connection or register another address to receive its datagrams, so UDP should not carry sensitive
+ * data or commands which must be authenticated. */
+public class HybridUdpServer extends UdpServer {
+	static final byte message = 0, register = 1;
+	static final int headerLength = 9;
+
+	static private final SecureRandom random = new SecureRandom();
+
+	final ConcurrentHashMap<Long, Connection> connections = new ConcurrentHashMap();
+	private final boolean server;
+	private volatile int maxPacketSize = 1200;
+
+	/** @param server True if this side learns each connection's address from its registrations. */
+	HybridUdpServer (String category, String name, int port, boolean server) {
+		super(category, name, port, 65536);
+		this.server = server;
+		daemon = true;
+	}
+
+	protected void received (DatagramPacket packet) {
+		int length = packet.getLength();
+		if (length < headerLength) return;
+		byte[] buffer = packet.getData();
+		long token = readLong(buffer);
+		Connection connection = connections.get(token);
+		if (connection == null || connection.closed) {
+			if (TRACE) trace(category, "Datagram for unknown UDP token: " + Util.toString(packet));
+			return;
+		}
+		connection.udpReady = true;
+
+		switch (buffer[8]) {
+		case register:
+			if (server) {
+				// Only registrations change the address, so a datagram with a copied token can't redirect all of the datagrams.
+				InetSocketAddress address = (InetSocketAddress)packet.getSocketAddress();
+				if (!address.equals(connection.udpAddress)) {
+					if (DEBUG) debug(category, "UDP address: " + address.getAddress().getHostAddress() + ":" + address.getPort());
+					connection.udpAddress = address;
+				}
+				send(connection, register, null, null, 0, 0);
+			}
+			break;
+		case message:
+			int start = headerLength, messageLength = 0, shift = 0, b;
+			do {
+				if (start >= length || shift > 28) return;
+				b = buffer[start++];
+				messageLength |= (b & 0x7f) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			if (messageLength < 0 || messageLength > length - start) {
+				if (DEBUG) debug(category, "Invalid datagram: " + Util.toString(packet));
+				return;
+			}
+			String message = new String(buffer, start, messageLength, StandardCharsets.UTF_8);
+			start += messageLength;
+			byte[] bytes = start < length ? Arrays.copyOfRange(buffer, start, length) : null;
+
+			String event, payload;
+			int index = message.indexOf(" ");
+			if (index != -1) {
+				event = message.substring(0, index).trim();
+				payload = message.substring(index + 1).trim();
+			} else {
+				event = message.trim();
+				payload = "";
+			}
+			if (TRACE) trace(category, "Received UDP: " + event + ", " + payload + (bytes != null ? ", " + bytes.length : ""));
+			try {
+				connection.receive(event, payload, bytes, bytes == null ? 0 : bytes.length);
+			} catch (Throwable ex) {
+				if (ERROR) error(category, "Error processing UDP message: " + message, ex);
+			}
+			break;
+		}
+	}
+
+	/** Assigns the connection a new random token and routes datagrams with it to the connection. */
+	void add (Connection connection) {
+		long token;
+		do {
+			token = random.nextLong();
+		} while (token == 0 || connections.putIfAbsent(token, connection) != null);
+		connection.udpToken = token;
+		connection.udp = this;
+	}
+
+	/** @return false if the connection's UDP address is not known, the datagram is larger than the
+	 *         {@link #setMaxPacketSize(int) max packet size}, or it could not be sent. */
+	boolean send (Connection connection, byte type, String message, byte[] bytes, int offset, int count) {
+		InetSocketAddress address = connection.udpAddress;
+		if (address == null || socket == null) return false;
+		byte[] messageBytes = message == null ? null : message.getBytes(StandardCharsets.UTF_8);
+		ByteArrayOutputStream output = new ByteArrayOutputStream(
+			headerLength + 5 + (messageBytes == null ? 0 : messageBytes.length) + count);
+		long token = connection.udpToken;
+		for (int shift = 56; shift >= 0; shift -= 8)
+			output.write((int)(token >>> shift));
+		output.write(type);
+		if (messageBytes != null) {
+			try {
+				Util.writeVarint(messageBytes.length, output);
+			} catch (IOException ignored) { // Doesn't happen.
+			}
+			output.write(messageBytes, 0, messageBytes.length);
+		}
+		if (count > 0) output.write(bytes, offset, count);
+		if (output.size() > maxPacketSize) {
+			if (DEBUG) debug(category, "Unable to send, datagram is too large: " + output.size() + " > " + maxPacketSize);
+			return false;
+		}
+		try {
+			send(output.toByteArray(), address.getAddress(), address.getPort());
+			return true;
+		} catch (IOException ex) {
+			if (DEBUG) debug(category, "Unable to send UDP datagram: " + address.getAddress().getHostAddress() + ":" + address.getPort(),
+				ex);
+			return false;
+		}
+	}
+
+	/** Returns the local port, which may differ from {@link #getPort()} when bound to port 0, or 0 if not bound. */
+	int getLocalPort () {
+		return socket == null ? 0 : socket.getLocalPort();
+	}
+
+	public int getMaxPacketSize () {
+		return maxPacketSize;
+	}
+
+	/** Sets the largest datagram sent, including the 9 byte header. Default is 1200, which avoids IP fragmentation on most
+	 * networks. */
+	public void setMaxPacketSize (int maxPacketSize) {
+		this.maxPacketSize = maxPacketSize;
+	}
+
+	static long readLong (byte[] buffer) {
+		long value = 0;
+		for (int i = 0; i < 8; i++)
+			value = value << 8 | buffer[i] & 0xff;
+		return value;
+	}
+}
@@ -0,0 +1,516 @@
+/* Copyright (c) 2017-2021, Esoteric Software
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following
+ * conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.esotericsoftware.tcpserver;
+
+import static com.esotericsoftware.minlog.Log.*;
+import static com.esotericsoftware.tcpserver.Util.*;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/** An append-only journal of messages stored in memory-mapped segment files, so messages survive a process restart until they
+ * are acknowledged. Each message is given a sequence number, starting at 1. {@link #ack(long) Acknowledging} a sequence number
+ * acknowledges all messages up to it and deletes segments which contain only acknowledged messages.
+ * <p>
+ * Appends are written to the mapped file, which the OS writes to disk eventually. A force thread forces the written data to disk
+ * each {@link #setForceInterval(int) force interval}, and {@link #sync(long)} waits for a force. Many appends are made durable by
+ * a single force (group commit). After a crash, messages after the last force may be lost, but each record has a checksum so a
+ * partially written record is detected and discarded.
+ * <p>
+ * A record is a 4 byte payload length, a 4 byte CRC32 of the rest of the record, an 8 byte sequence number and the payload. The
+ * payload is a 4 byte message length (-1 for null), the UTF-8 message and the bytes. A length of 0 marks the end of a segment.
+ * @see TcpClient#setJournal(Journal) */
+public class Journal implements Closeable {
+	static private final String suffix = ".journal";
+	static private final int headerSize = 16;
+	static private final byte[] empty = new byte[0];
+
+	final String category;
+	final File directory;
+	final int segmentSize;
+	private final ArrayList<Segment> segments = new ArrayList();
+	private Segment current;
+	private long nextSequence = 1;
+	private volatile long lastSequence, ackSequence;
+	private final RandomAccessFile ackFile;
+	private final MappedByteBuffer ackBuffer;
+	private final CRC32 crc = new CRC32();
+
+	private final Object forceLock = new Object();
+	private long forcedSequence, forcedAckSequence;
+	private boolean forceRequested;
+	private int forceInterval = 100;
+	private final Thread forceThread;
+	private volatile boolean closed;
+
+	/** Opens the journal in the directory, creating it if needed, and recovers the messages which were not acknowledged.
+	 * @param segmentSize The size of each segment file. A message and its 20 byte header must fit in a segment. */
+	public Journal (String category, File directory, int segmentSize) throws IOException {
+		if (segmentSize < 1024) throw new IllegalArgumentException("segmentSize must be >= 1024: " + segmentSize);
+		this.category = category;
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Unable to create directory: " + directory);
+
+		ackFile = new RandomAccessFile(new File(directory, "ack"), "rw");
+		ackFile.setLength(8);
+		ackBuffer = ackFile.getChannel().map(MapMode.READ_WRITE, 0, 8);
+		ackSequence = ackBuffer.getLong(0);
+		forcedAckSequence = ackSequence;
+
+		try {
+			recover();
+		} catch (IOException ex) {
+			closeSegments();
+			closeQuietly(ackFile);
+			throw ex;
+		}
+
+		forceThread = new Thread("Journal") {
+			public void run () {
+				forceLoop();
+			}
+		};
+		forceThread.setDaemon(true);
+		forceThread.start();
+	}
+
+	private void recover () throws IOException {
+		File[] files = directory.listFiles();
+		ArrayList<Long> firstSequences = new ArrayList();
+		if (files != null) {
+			for (File file : files) {
+				String name = file.getName();
+				if (!name.endsWith(suffix)) continue;
+				try {
+					firstSequences.add(Long.parseLong(name.substring(0, name.length() - suffix.length())));
+				} catch (NumberFormatException ex) {
+					if (WARN) warn(category, "Ignoring invalid journal file: " + file);
+				}
+			}
+		}
+		Long[] sorted = firstSequences.toArray(new Long[firstSequences.size()]);
+		Arrays.sort(sorted);
+		for (int i = 0; i < sorted.length; i++) {
+			long firstSequence = sorted[i];
+			// Delete segments whose messages were all acknowledged but were not deleted before the process ended.
+			if (i + 1 < sorted.length && sorted[i + 1] <= ackSequence + 1) {
+				delete(file(firstSequence));
+				continue;
+			}
+			Segment segment = new Segment(firstSequence, file(firstSequence));
+			if (!segments.isEmpty() && segments.get(segments.size() - 1).lastSequence + 1 != firstSequence) {
+				if (WARN) warn(category, "Journal has a gap before segment: " + segment.file);
+			}
+			segment.scan();
+			segments.add(segment);
+		}
+		if (segments.isEmpty()) {
+			current = new Segment(ackSequence + 1, file(ackSequence + 1));
+			segments.add(current);
+		} else
+			current = segments.get(segments.size() - 1);
+		current.clearTail();
+		lastSequence = current.lastSequence;
+		nextSequence = lastSequence + 1;
+		if (DEBUG) {
+			debug(category, "Journal opened: " + directory + ", segments: " + segments.size() + ", unacknowledged: "
+				+ (lastSequence - ackSequence));
+		}
+	}
+
+	/** Appends a message.
+	 * @param message May be null.
+	 * @param bytes May be null if count is 0.
+	 * @return The sequence number of the message.
+	 * @throws IllegalArgumentException if the message is larger than a segment. */
+	public synchronized long append (String message, byte[] bytes, int offset, int count) throws IOException {
+		if (closed) throw new IOException("Journal is closed.");
+		byte[] messageBytes = message == null ? null : message.getBytes(StandardCharsets.UTF_8);
+		int length = 4 + (messageBytes == null ? 0 : messageBytes.length) + count, size = headerSize + length;
+		if (size > segmentSize) throw new IllegalArgumentException("Message is larger than the segment size: " + size);
+
+		MappedByteBuffer buffer = current.buffer;
+		if (segmentSize - current.end < size) {
+			roll();
+			buffer = current.buffer;
+		}
+		long sequence = nextSequence++;
+		int start = current.end;
+		buffer.position(start + 8);
+		buffer.putLong(sequence);
+		if (messageBytes == null)
+			buffer.putInt(-1);
+		else {
+			buffer.putInt(messageBytes.length);
+			buffer.put(messageBytes);
+		}
+		if (count > 0) buffer.put(bytes, offset, count);
+
+		ByteBuffer record = buffer.duplicate();
+		record.position(start + 8);
+		record.limit(start + size);
+		crc.reset();
+		crc.update(record);
+		buffer.putInt(start + 4, (int)crc.getValue());
+		buffer.putInt(start, length); // Written last, so a reader never sees a partial record.
+
+		current.lastSequence = sequence;
+		current.end = start + size;
+		lastSequence = sequence;
+		return sequence;
+	}
+
+	private void roll () throws IOException {
+		current.buffer.force(); // The force thread only forces the current segment.
+		Segment segment = new Segment(nextSequence, file(nextSequence));
+		segments.add(segment);
+		current = segment;
+		if (TRACE) trace(category, "Journal segment created: " + segment.file);
+	}
+
+	/** Acknowledges all messages up to and including the sequence number. Segments which contain only acknowledged messages are
+	 * deleted. */
+	public synchronized void ack (long sequence) {
+		if (sequence <= ackSequence) return;
+		if (sequence > lastSequence) throw new IllegalArgumentException("sequence cannot be > last sequence: " + sequence);
+		ackSequence = sequence;
+		ackBuffer.putLong(0, sequence);
+		while (segments.size() > 1 && segments.get(1).firstSequence <= sequence + 1) {
+			Segment segment = segments.remove(0);
+			segment.close();
+			delete(segment.file);
+		}
+	}
+
+	/** Waits until the message with the sequence number and all messages before it have been forced to disk. A force is started
+	 * immediately if none is in progress. */
+	public void sync (long sequence) throws IOException {
+		synchronized (forceLock) {
+			while (forcedSequence < sequence) {
+				if (closed) throw new IOException("Journal is closed.");
+				forceRequested = true;
+				forceLock.notifyAll();
+				try {
+					forceLock.wait();
+				} catch (InterruptedException ex) {
+					throw new IOException("Interrupted waiting for journal sync.", ex);
+				}
+			}
+		}
+	}
+
+	void forceLoop () {
+		while (!closed) {
+			synchronized (forceLock) {
+				if (!forceRequested) {
+					try {
+						forceLock.wait(forceInterval);
+					} catch (InterruptedException ignored) {
+					}
+				}
+				forceRequested = false;
+			}
+			force();
+		}
+	}
+
+	/** Forces appended messages and the acknowledged sequence number to disk. */
+	public void force () {
+		Segment segment;
+		long sequence, ackSequence;
+		synchronized (this) {
+			segment = current;
+			sequence = lastSequence;
+			ackSequence = this.ackSequence;
+		}
+		try {
+			synchronized (forceLock) {
+				if (sequence <= forcedSequence && ackSequence == forcedAckSequence) return;
+			}
+			if (!segment.closed) segment.buffer.force();
+			if (ackSequence != forcedAckSequence) ackBuffer.force();
+		} catch (Throwable ex) {
+			if (ERROR) error(category, "Error forcing journal: " + directory, ex);
+			return;
+		}
+		synchronized (forceLock) {
+			if (sequence > forcedSequence) forcedSequence = sequence;
+			forcedAckSequence = ackSequence;
+			forceLock.notifyAll();
+		}
+	}
+
+	/** Returns a reader positioned at the first message with a sequence number >= the specified sequence number. */
+	public Reader read (long sequence) {
+		return new Reader(sequence);
+	}
+
+	/** Returns a reader positioned at the first message which has not been acknowledged. */
+	public Reader readUnacknowledged () {
+		return new Reader(ackSequence + 1);
+	}
+
+	synchronized Segment segment (long sequence) {
+		Segment found = null;
+		for (Segment segment : segments) {
+			if (segment.firstSequence > sequence) break;
+			found = segment;
+		}
+		if (found == null && !segments.isEmpty()) found = segments.get(0);
+		return found;
+	}
+
+	synchronized Segment nextSegment (Segment segment) {
+		for (Segment next : segments)
+			if (next.firstSequence > segment.firstSequence) return next;
+		return null;
+	}
+
+	/** Returns the sequence number of the last message appended, or 0. */
+	public long getLastSequence () {
+		return lastSequence;
+	}
+
+	/** Returns the last sequence number {@link #ack(long) acknowledged}, or 0. */
+	public long getAckSequence () {
+		return ackSequence;
+	}
+
+	/** Returns the number of messages which have not been acknowledged. */
+	public long getUnacknowledgedCount () {
+		return lastSequence - ackSequence;
+	}
+
+	public synchronized int getSegmentCount () {
+		return segments.size();
+	}
+
+	public int getForceInterval () {
+		return forceInterval;
+	}
+
+	/** Sets how often appended messages are forced to disk. Default is 100.
+	 * @param millis 0 to only force when {@link #sync(long)} is called. */
+	public void setForceInterval (int millis) {
+		if (millis < 0) throw new IllegalArgumentException("millis must be >= 0: " + millis);
+		forceInterval = millis;
+		synchronized (forceLock) {
+			forceLock.notifyAll();
+		}
+	}
+
+	public File getDirectory () {
+		return directory;
+	}
+
+	/** Forces all data to disk and closes the segment files. */
+	public void close () {
+		if (closed) return;
+		force();
+		closed = true;
+		synchronized (forceLock) {
+			forceLock.notifyAll();
+		}
+		try {
+			forceThread.join();
+		} catch (InterruptedException ignored) {
+		}
+		synchronized (this) {
+			closeSegments();
+		}
+		closeQuietly(ackFile);
+	}
+
+	private void closeSegments () {
+		for (Segment segment : segments)
+			segment.close();
+	}
+
+	private File file (long firstSequence) {
+		return new File(directory, String.format("%019d", firstSequence) + suffix);
+	}
+
+	private void delete (File file) {
+		if (!file.delete() && file.exists()) {
+			if (WARN) warn(category, "Unable to delete journal segment: " + file);
+		} else if (TRACE) //
+			trace(category, "Journal segment deleted: " + file);
+	}
+
+	public String toString () {
+		return directory.toString();
+	}
+
+	/** A segment file, mapped in its entirety. */
+	class Segment {
+		final long firstSequence;
+		final File file;
+		final RandomAccessFile randomAccessFile;
+		final MappedByteBuffer buffer;
+		/** The end of the last complete record. */
+		volatile int end;
+		volatile long lastSequence;
+		volatile boolean closed;
+
+		Segment (long firstSequence, File file) throws IOException {
+			this.firstSequence = firstSequence;
+			this.file = file;
+			lastSequence = firstSequence - 1;
+			randomAccessFile = new RandomAccessFile(file, "rw");
+			try {
+				if (randomAccessFile.length() < segmentSize) randomAccessFile.setLength(segmentSize);
+				buffer = randomAccessFile.getChannel().map(MapMode.READ_WRITE, 0, segmentSize);
+			} catch (IOException ex) {
+				closeQuietly(randomAccessFile);
+				throw ex;
+			}
+		}
+
+		/** Finds the end of the valid records. */
+		void scan () {
+			CRC32 crc = new CRC32();
+			ByteBuffer record = buffer.duplicate();
+			int position = 0;
+			long sequence = firstSequence;
+			while (position + headerSize <= segmentSize) {
+				int length = buffer.getInt(position);
+				if (length < 4 || length > segmentSize - position - headerSize) break;
+				if (buffer.getLong(position + 8) != sequence) break;
+				record.limit(position + headerSize + length);
+				record.position(position + 8);
+				crc.reset();
+				crc.update(record);
+				if ((int)crc.getValue() != buffer.getInt(position + 4)) {
+					if (WARN) warn(category, "Journal record is corrupt, discarding it and after: " + file + ", " + sequence);
+					break;
+				}
+				position += headerSize + length;
+				sequence++;
+			}
+			end = position;
+			lastSequence = sequence - 1;
+		}
+
+		/** Zeroes everything after the end, so a partially written record can't be mistaken for one appended later. */
+		void clearTail () {
+			int i = end;
+			for (; i + 8 <= segmentSize; i += 8)
+				if (buffer.getLong(i) != 0) buffer.putLong(i, 0);
+			for (; i < segmentSize; i++)
+				buffer.put(i, (byte)0);
+		}
+
+		void close () {
+			closed = true;
+			closeQuietly(randomAccessFile);
+		}
+	}
+
+	/** Reads messages in sequence order, including messages appended after the reader was created. Not thread safe. */
+	public class Reader {
+		private long sequence;
+		private Segment segment;
+		private ByteBuffer buffer;
+		private int position;
+		private String message;
+		private byte[] bytes = empty;
+		private int count;
+
+		Reader (long sequence) {
+			this.sequence = sequence;
+		}
+
+		/** Reads the next message.
+		 * @return false if there are no more messages. */
+		public boolean next () {
+			while (true) {
+				if (segment == null) {
+					segment = segment(sequence);
+					if (segment == null) return false;
+					buffer = segment.buffer.duplicate();
+					position = 0;
+				}
+				if (position < segment.end) {
+					int length = buffer.getInt(position);
+					long sequence = buffer.getLong(position + 8);
+					int start = position + headerSize;
+					position = start + length;
+					if (sequence < this.sequence) continue;
+					this.sequence = sequence + 1;
+
+					int messageLength = buffer.getInt(start);
+					if (messageLength == -1) {
+						message = null;
+						messageLength = 0;
+					} else {
+						byte[] messageBytes = new byte[messageLength];
+						buffer.position(start + 4);
+						buffer.get(messageBytes);
+						message = new String(messageBytes, StandardCharsets.UTF_8);
+					}
+					count = length - 4 - messageLength;
+					if (bytes.length < count) bytes = new byte[count];
+					buffer.position(start + 4 + messageLength);
+					buffer.get(bytes, 0, count);
+					return true;
+				}
+				Segment next = nextSegment(segment);
+				if (position < segment.end) continue; // Appended before the next segment was created.
+				if (next == null) return false;
+				segment = next;
+				buffer = next.buffer.duplicate();
+				position = 0;
+			}
+		}
+
+		/** Returns the sequence number of the message last read. */
+		public long getSequence () {
+			return sequence - 1;
+		}
+
+		/** Returns the message last read, may be null. */
+		public String getMessage () {
+			return message;
+		}
+
+		/** Returns the bytes of the message last read. Only the first {@link #getCount() count} bytes are valid and the array is
+		 * reused by the next read. */
+		public byte[] getBytes () {
+			return bytes;
+		}
+
+		public int getCount () {
+			return count;
+		}
+	}
+}
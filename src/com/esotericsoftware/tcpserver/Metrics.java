@@ -0,0 +1,301 @@
+/* Copyright (c) 2017-2021, Esoteric Software
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following
+ * conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.esotericsoftware.tcpserver;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Counters for a connection, or aggregated for all connections of a server or client. Byte counts are updated once per message.
+ * Histograms are shared with the parent, so latencies are recorded only once per server or client. All methods are thread
+ * safe. */
+public class Metrics {
+	static volatile boolean enabled = true;
+
+	final Metrics parent;
+	private final LongAdder bytesSent = new LongAdder(), bytesReceived = new LongAdder();
+	private final LongAdder messagesSent = new LongAdder(), messagesReceived = new LongAdder();
+	private final LongAdder handshakes = new LongAdder(), resumedHandshakes = new LongAdder();
+	private final LongAdder conflatedSends = new LongAdder(), conflated = new LongAdder();
+	final Histogram queueTime, writeTime, receiveTime, handshakeTime;
+	/** Incremented for each message even when disabled, to detect idle connections. */
+	volatile int sends, receives;
+	/** Applied after each message is counted, so the thread reading or writing is paused when over the limit. */
+	RateLimit sendLimit, receiveLimit;
+	private CountingInputStream input;
+	private CountingOutputStream output;
+
+	public Metrics () {
+		this(null);
+	}
+
+	/** @param parent May be null. */
+	public Metrics (Metrics parent) {
+		this.parent = parent;
+		if (parent != null) {
+			queueTime = parent.queueTime;
+			writeTime = parent.writeTime;
+			receiveTime = parent.receiveTime;
+			handshakeTime = parent.handshakeTime;
+		} else {
+			queueTime = new Histogram();
+			writeTime = new Histogram();
+			receiveTime = new Histogram();
+			handshakeTime = new Histogram();
+		}
+	}
+
+	/** Called by the thread writing a message, after the message has been written.
+	 * @return The bytes written for the message, to pass to {@link #throttle(long)}. */
+	long messageSent () {
+		sends++;
+		long count = 0;
+		if (output != null) {
+			count = output.count;
+			output.count = 0;
+		}
+		if (enabled) {
+			for (Metrics metrics = this; metrics != null; metrics = metrics.parent) {
+				metrics.messagesSent.increment();
+				if (count > 0) metrics.bytesSent.add(count);
+			}
+		}
+		return count;
+	}
+
+	/** Pauses until the send limit allows a message with the specified bytes. Called after the message has been written, without
+	 * the output lock held so other writers on the connection aren't stalled. */
+	void throttle (long byteCount) {
+		RateLimit sendLimit = this.sendLimit;
+		if (sendLimit != null) sendLimit.acquire(byteCount);
+	}
+
+	/** Called by the thread reading messages, after a message has been read. May pause for the receive limit. */
+	void messageReceived () {
+		receives++;
+		long count = 0;
+		if (input != null) {
+			count = input.count;
+			input.count = 0;
+		}
+		if (enabled) {
+			for (Metrics metrics = this; metrics != null; metrics = metrics.parent) {
+				metrics.messagesReceived.increment();
+				if (count > 0) metrics.bytesReceived.add(count);
+			}
+		}
+		RateLimit receiveLimit = this.receiveLimit;
+		if (receiveLimit != null) receiveLimit.acquire(count);
+	}
+
+	/** @param queued The {@link System#nanoTime()} when the message was queued, or 0. */
+	void queued (long queued) {
+		if (queued != 0) queueTime.record(System.nanoTime() - queued);
+	}
+
+	/** @param start The {@link System#nanoTime()} when the write began, or 0.
+	 * @return The bytes written for the message, to pass to {@link #throttle(long)}. */
+	long written (long start) {
+		if (start != 0) writeTime.record(System.nanoTime() - start);
+		return messageSent();
+	}
+
+	/** @param start The {@link System#nanoTime()} when the receive handler was called, or 0. */
+	void received (long start) {
+		if (start != 0) receiveTime.record(System.nanoTime() - start);
+		messageReceived();
+	}
+
+	/** Called for each conflated send.
+	 * @param replaced True if the send replaced a queued message. */
+	void conflated (boolean replaced) {
+		if (!enabled) return;
+		for (Metrics metrics = this; metrics != null; metrics = metrics.parent) {
+			metrics.conflatedSends.increment();
+			if (replaced) metrics.conflated.increment();
+		}
+	}
+
+	/** Called after a TLS handshake completes.
+	 * @param start The {@link System#nanoTime()} when the handshake began, or 0. */
+	void handshake (long start, boolean resumed) {
+		if (start != 0) handshakeTime.record(System.nanoTime() - start);
+		if (!enabled) return;
+		for (Metrics metrics = this; metrics != null; metrics = metrics.parent) {
+			metrics.handshakes.increment();
+			if (resumed) metrics.resumedHandshakes.increment();
+		}
+	}
+
+	public long getBytesSent () {
+		return bytesSent.sum();
+	}
+
+	public long getBytesReceived () {
+		return bytesReceived.sum();
+	}
+
+	public long getMessagesSent () {
+		return messagesSent.sum();
+	}
+
+	public long getMessagesReceived () {
+		return messagesReceived.sum();
+	}
+
+	/** Returns the nanoseconds messages waited in a send queue before being written. For messages without bytes queued with
+	 * {@link Connection#send(String)}, only a sample is recorded. */
+	public Histogram getQueueTime () {
+		return queueTime;
+	}
+
+	/** Returns the nanoseconds taken to write and flush messages. */
+	public Histogram getWriteTime () {
+		return writeTime;
+	}
+
+	/** Returns the nanoseconds taken by the receive handler for messages. */
+	public Histogram getReceiveTime () {
+		return receiveTime;
+	}
+
+	/** Returns the number of messages sent with {@link Connection#sendConflated(Object, String, byte[], int, int)}. */
+	public long getConflatedSends () {
+		return conflatedSends.sum();
+	}
+
+	/** Returns the number of conflated sends which replaced a queued message rather than being queued. */
+	public long getConflated () {
+		return conflated.sum();
+	}
+
+	/** Returns the fraction of conflated sends which replaced a queued message, from 0 to 1. */
+	public double getConflationRatio () {
+		long sends = conflatedSends.sum();
+		return sends == 0 ? 0 : conflated.sum() / (double)sends;
+	}
+
+	/** Returns the number of TLS handshakes completed, including resumed handshakes. */
+	public long getHandshakes () {
+		return handshakes.sum();
+	}
+
+	/** Returns the number of TLS handshakes which resumed a previous session rather than doing a full handshake. */
+	public long getResumedHandshakes () {
+		return resumedHandshakes.sum();
+	}
+
+	/** Returns the nanoseconds taken by TLS handshakes. */
+	public Histogram getHandshakeTime () {
+		return handshakeTime;
+	}
+
+	/** Resets the counters and, if there is no parent, the histograms. */
+	public void reset () {
+		bytesSent.reset();
+		bytesReceived.reset();
+		messagesSent.reset();
+		messagesReceived.reset();
+		handshakes.reset();
+		resumedHandshakes.reset();
+		conflatedSends.reset();
+		conflated.reset();
+		if (parent == null) {
+			queueTime.reset();
+			writeTime.reset();
+			receiveTime.reset();
+			handshakeTime.reset();
+		}
+	}
+
+	public String toString () {
+		return "sent=" + getMessagesSent() + " (" + getBytesSent() + " B), received=" + getMessagesReceived() + " ("
+			+ getBytesReceived() + " B)";
+	}
+
+	/** Returns {@link System#nanoTime()}, or 0 if metrics are disabled. */
+	static long start () {
+		return enabled ? System.nanoTime() : 0;
+	}
+
+	/** When false, nothing is recorded. Default is true. */
+	static public void setEnabled (boolean enabled) {
+		Metrics.enabled = enabled;
+	}
+
+	static public boolean isEnabled () {
+		return enabled;
+	}
+
+	/** Returns a stream which counts bytes read. The count is added to the metrics for each message received. */
+	InputStream input (InputStream input) {
+		return this.input = new CountingInputStream(input);
+	}
+
+	/** Returns a stream which counts bytes written. The count is added to the metrics for each message sent. */
+	OutputStream output (OutputStream output) {
+		return this.output = new CountingOutputStream(output);
+	}
+
+	/** Counts with a plain field, as the stream is only read by one thread at a time. */
+	static class CountingInputStream extends FilterInputStream {
+		long count;
+
+		CountingInputStream (InputStream input) {
+			super(input);
+		}
+
+		public int read () throws IOException {
+			int value = in.read();
+			if (value != -1) count++;
+			return value;
+		}
+
+		public int read (byte[] bytes, int offset, int length) throws IOException {
+			int count = in.read(bytes, offset, length);
+			if (count > 0) this.count += count;
+			return count;
+		}
+	}
+
+	/** Counts with a plain field, as the stream is only written by one thread at a time. */
+	static class CountingOutputStream extends FilterOutputStream {
+		long count;
+
+		CountingOutputStream (OutputStream output) {
+			super(output);
+		}
+
+		public void write (int value) throws IOException {
+			out.write(value);
+			count++;
+		}
+
+		public void write (byte[] bytes, int offset, int length) throws IOException {
+			out.write(bytes, offset, length);
+			count += length;
+		}
+	}
+}
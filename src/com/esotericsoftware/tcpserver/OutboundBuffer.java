@@ -0,0 +1,224 @@
+/* Copyright (c) 2017-2021, Esoteric Software
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following
+ * conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.esotericsoftware.tcpserver;
+
+import static com.esotericsoftware.minlog.Log.*;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+
+/** A bounded queue of messages sent while a {@link TcpClient} is not connected, which are sent in order after it reconnects.
+ * Messages queued by the protocol but not yet written when a connection closes are moved back to the buffer. A message which
+ * was being written when the connection closed may still be lost. All methods are thread safe.
+ * @see TcpClient#setOutboundBuffer(OutboundBuffer) */
+public class OutboundBuffer {
+	private final ArrayDeque<Entry> entries = new ArrayDeque();
+	private final int maxBytes;
+	private final Overflow overflow;
+	private int bytes;
+	private boolean flushing;
+	private long added, flushed, dropped;
+
+	/** @param maxBytes The maximum total size of the buffered messages, where a message's size is the length of its string plus
+	 *           its bytes. */
+	public OutboundBuffer (int maxBytes, Overflow overflow) {
+		if (maxBytes <= 0) throw new IllegalArgumentException("maxBytes must be > 0: " + maxBytes);
+		if (overflow == null) throw new IllegalArgumentException("overflow cannot be null.");
+		this.maxBytes = maxBytes;
+		this.overflow = overflow;
+	}
+
+	/** Sends the message if connected and no earlier messages are buffered, otherwise buffers it.
+	 * @param connection May be null.
+	 * @return false if the message was dropped.
+	 * @throws IllegalStateException if the buffer is full and the overflow policy is {@link Overflow#fail}. */
+	synchronized boolean send (Connection connection, String message, byte[] bytes, int offset, int count) {
+		if (connection != null && !flushing && entries.isEmpty()) {
+			if (bytes == null)
+				connection.send(message);
+			else
+				connection.send(message, bytes, offset, count);
+			return true;
+		}
+		return add(new Entry(message, bytes == null ? null : Arrays.copyOfRange(bytes, offset, offset + count)), false);
+	}
+
+	private boolean add (Entry entry, boolean first) {
+		int size = entry.size();
+		if (size > maxBytes) {
+			dropped++;
+			if (WARN) warn("Message is larger than the outbound buffer: " + size + " > " + maxBytes);
+			return false;
+		}
+		while (bytes + size > maxBytes) {
+			switch (overflow) {
+			case dropOldest:
+				Entry oldest = entries.pollFirst();
+				bytes -= oldest.size();
+				dropped++;
+				continue;
+			case dropNewest:
+				dropped++;
+				return false;
+			case fail:
+				throw new IllegalStateException("Outbound buffer is full: " + bytes + " bytes");
+			case block:
+				try {
+					wait();
+				} catch (InterruptedException ex) {
+					dropped++;
+					return false;
+				}
+			}
+		}
+		if (first)
+			entries.addFirst(entry);
+		else
+			entries.addLast(entry);
+		bytes += size;
+		added++;
+		return true;
+	}
+
+	/** Buffers messages ahead of those already buffered, keeping their order. Used by protocols for messages which were queued but
+	 * not written when a connection closed. When full, messages at the end of the list are dropped. */
+	public synchronized void addFirst (List<Entry> entries) {
+		for (int i = entries.size() - 1; i >= 0; i--) {
+			Entry entry = entries.get(i);
+			if (bytes + entry.size() > maxBytes) {
+				dropped++;
+				continue;
+			}
+			add(entry, true);
+		}
+	}
+
+	/** Sends the buffered messages in order, blocking until each is written. Messages sent meanwhile are buffered after them.
+	 * @return false if the connection closed before all messages were sent. */
+	boolean flush (Connection connection) {
+		int count = 0;
+		try {
+			while (true) {
+				Entry entry;
+				synchronized (this) {
+					entry = entries.peekFirst();
+					if (entry == null) {
+						flushing = false;
+						return true;
+					}
+					flushing = true;
+				}
+				boolean sent = entry.bytes == null ? connection.sendBlocking(entry.message)
+					: connection.sendBlocking(entry.message, entry.bytes, 0, entry.bytes.length);
+				synchronized (this) {
+					if (!sent) {
+						flushing = false;
+						return false;
+					}
+					entries.pollFirst();
+					bytes -= entry.size();
+					flushed++;
+					count++;
+					notifyAll();
+				}
+			}
+		} finally {
+			if (DEBUG && count > 0) debug(connection.category, "Flushed outbound messages: " + count);
+		}
+	}
+
+	/** Removes all buffered messages. */
+	public synchronized void clear () {
+		dropped += entries.size();
+		entries.clear();
+		bytes = 0;
+		notifyAll();
+	}
+
+	/** Returns the number of messages buffered. */
+	public synchronized int getSize () {
+		return entries.size();
+	}
+
+	/** Returns the total size of the buffered messages. */
+	public synchronized int getBytes () {
+		return bytes;
+	}
+
+	public int getMaxBytes () {
+		return maxBytes;
+	}
+
+	public Overflow getOverflow () {
+		return overflow;
+	}
+
+	/** Returns the number of messages which have been buffered. */
+	public synchronized long getAddedCount () {
+		return added;
+	}
+
+	/** Returns the number of buffered messages which have been sent. */
+	public synchronized long getFlushedCount () {
+		return flushed;
+	}
+
+	/** Returns the number of messages which were dropped because the buffer was full or cleared. */
+	public synchronized long getDroppedCount () {
+		return dropped;
+	}
+
+	public synchronized String toString () {
+		return "messages: " + entries.size() + ", bytes: " + bytes + ", added: " + added + ", flushed: " + flushed + ", dropped: "
+			+ dropped;
+	}
+
+	/** A buffered message. */
+	static public class Entry {
+		final String message;
+		final byte[] bytes;
+
+		/** @param message May be null for protocols which only send bytes.
+		 * @param bytes May be null. Not copied. */
+		public Entry (String message, byte[] bytes) {
+			this.message = message;
+			this.bytes = bytes;
+		}
+
+		int size () {
+			return (message == null ? 0 : message.length()) + (bytes == null ? 0 : bytes.length);
+		}
+	}
+
+	/** What happens when a message is sent and the buffer is full. */
+	static public enum Overflow {
+		/** The oldest buffered messages are dropped to make room. */
+		dropOldest,
+		/** The new message is dropped. */
+		dropNewest,
+		/** An IllegalStateException is thrown. */
+		fail,
+		/** The sending thread waits until buffered messages have been sent. */
+		block
+	}
+}
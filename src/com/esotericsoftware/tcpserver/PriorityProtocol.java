@@ -0,0 +1,364 @@
+/* Copyright (c) 2017-2021, Esoteric Software
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following
+ * conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.esotericsoftware.tcpserver;
+
+import static com.esotericsoftware.minlog.Log.*;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/** A {@link DefaultProtocol} with a send queue for each priority class, called a lane, so urgent messages don't wait behind bulk
+ * data. Lane 0 has the highest priority. The write thread services the lanes with strict priority or weighted round robin.
+ * Messages with more bytes than the {@link #setChunkSize(int) chunk size} are written in chunks, so messages from other lanes
+ * can be written between the chunks. Messages in the same lane are received in order, messages in different lanes may not be.
+ * Both ends of a connection must use this protocol.
+ * <p>
+ * Control messages, such as heartbeats and pings, use lane 0. {@link #send(Connection, String)} uses the
+ * {@link #setDefaultLane(int) default lane}. {@link #sendBlocking(Connection, String, byte[], int, int)} writes immediately
+ * and does not use a lane. A message which was partially written when the connection was lost is written again from the start
+ * after reconnecting. */
+public class PriorityProtocol extends DefaultProtocol {
+	/** The lanes used by {@link #PriorityProtocol()}. */
+	static public final int control = 0, interactive = 1, bulk = 2;
+	/** The prefix of the first chunk of a message, followed by the lane, the total byte count, and the message. */
+	static final String chunk = "\0chunk ";
+	/** The prefix of the remaining chunks of a message, followed by the lane. */
+	static final String more = "\0more ";
+
+	final Lane[] lanes;
+	private final Object lock = new Object();
+	private int current, capacity = 1024, defaultLane;
+	private volatile int chunkSize = 16 * 1024, maxMessageSize = 16 * 1024 * 1024;
+	private volatile boolean strict = true;
+	/** The messages being reassembled for each lane, used only by the read thread. */
+	private final Chunked[] receiving;
+
+	/** Creates the {@link #control}, {@link #interactive}, and {@link #bulk} lanes with weights 4, 2, and 1. The default lane
+	 * is {@link #interactive}. */
+	public PriorityProtocol () {
+		this(4, 2, 1);
+		defaultLane = interactive;
+	}
+
+	/** @param weights The weight of each lane, the number of chunks it may write each round with weighted round robin. The
+	 *           default lane is the last lane. */
+	public PriorityProtocol (int... weights) {
+		if (weights.length == 0) throw new IllegalArgumentException("At least one lane is required.");
+		lanes = new Lane[weights.length];
+		for (int i = 0; i < weights.length; i++) {
+			lanes[i] = new Lane();
+			setWeight(i, weights[i]);
+		}
+		receiving = new Chunked[weights.length];
+		defaultLane = weights.length - 1;
+		lanes[0].credit = lanes[0].weight;
+	}
+
+	public void writeThread (Connection connection) {
+		synchronized (lock) {
+			// A message partially written on a previous connection is written again from the start.
+			for (Lane lane : lanes)
+				lane.written = 0;
+		}
+
+		while (!connection.closed) {
+			int index;
+			Send send;
+			int written;
+			synchronized (lock) {
+				try {
+					while ((index = next()) == -1)
+						lock.wait();
+				} catch (InterruptedException ex) {
+					continue;
+				}
+				send = lanes[index].queue.peek();
+				written = lanes[index].written;
+			}
+
+			if (written == 0) connection.metrics.queued(send.queued);
+			int count = send.count - written;
+			boolean sent;
+			if (written == 0 && count <= chunkSize)
+				sent = sendBlocking(connection, send.message, send.bytes, 0, count);
+			else {
+				count = Math.min(count, chunkSize);
+				String message = written == 0 ? chunk + index + ' ' + send.count + ' ' + send.message : more + index;
+				if (TRACE) trace(connection.category, "Chunk " + (written + count) + "/" + send.count + ": " + send.message);
+				sent = sendBlocking(connection, message, send.bytes, written, count);
+			}
+
+			synchronized (lock) {
+				if (!sent) { // Disconnected, the message is written again from the start.
+					lanes[index].written = 0;
+					continue;
+				}
+				Lane lane = lanes[index];
+				if (lane.queue.peek() != send) continue; // Drained.
+				lane.written += count;
+				if (lane.written == send.count) {
+					lane.queue.poll();
+					lane.written = 0;
+				}
+			}
+		}
+	}
+
+	/** Returns the lane to write next, or -1 if all lanes are empty. Called with the lock held. */
+	private int next () {
+		Lane[] lanes = this.lanes;
+		int n = lanes.length;
+		if (strict) {
+			for (int i = 0; i < n; i++)
+				if (!lanes[i].queue.isEmpty()) return i;
+			return -1;
+		}
+		for (int i = 0; i <= n; i++) {
+			Lane lane = lanes[current];
+			if (lane.credit > 0 && !lane.queue.isEmpty()) {
+				lane.credit--;
+				return current;
+			}
+			current = (current + 1) % n;
+			lanes[current].credit = lanes[current].weight;
+		}
+		return -1;
+	}
+
+	public void send (Connection connection, String message) {
+		send(connection, defaultLane, message, null, 0, 0);
+	}
+
+	public void send (Connection connection, String message, byte[] bytes, int offset, int count) {
+		send(connection, defaultLane, message, bytes, offset, count);
+	}
+
+	/** Sends without the sequence number, as control messages are not ordered with a lane's messages. */
+	public void sendSequenced (Connection connection, long sequence, String message, byte[] bytes, int offset, int count) {
+		send(connection, message, bytes, offset, count);
+	}
+
+	public boolean sendSequencedBlocking (Connection connection, long sequence, String message, byte[] bytes, int offset,
+		int count) {
+		return sendBlocking(connection, message, bytes, offset, count);
+	}
+
+	/** Queues a message in the specified lane.
+	 * @throws IllegalStateException if the lane's queue is full. */
+	public void send (Connection connection, int lane, String message, byte[] bytes, int offset, int count) {
+		if (message == null) throw new IllegalArgumentException("message cannot be null.");
+		if (bytes == null) {
+			if (count != 0) throw new IllegalArgumentException("bytes cannot be null when count != 0: " + count);
+		} else {
+			if (count < 0) throw new IllegalArgumentException("count cannot be < 0");
+		}
+
+		if (TRACE) trace(connection.category, "Queued, lane " + lane + ": " + message + (count > 0 ? ", " + count : ""));
+		Send send = new Send();
+		send.message = message;
+		if (count > 0) send.bytes = Arrays.copyOfRange(bytes, offset, offset + count);
+		send.count = count;
+		send.queued = Metrics.start();
+		if (!offer(lane, send)) throw new IllegalStateException("Queue full");
+	}
+
+	/** Sends without conflation, as messages are queued by lane. */
+	public void sendConflated (Connection connection, Object key, String message, byte[] bytes, int offset, int count) {
+		send(connection, message, bytes, offset, count);
+	}
+
+	public boolean publish (Connection connection, Topics.Publication publication) {
+		try {
+			send(connection, publication.getProtocolMessage(), publication.bytes, 0, publication.count);
+			return true;
+		} catch (IllegalStateException ex) { // Queue full.
+			return false;
+		}
+	}
+
+	protected boolean sendControl (Connection connection, String message) {
+		Send send = new Send();
+		send.message = message;
+		return offer(0, send);
+	}
+
+	private boolean offer (int lane, Send send) {
+		synchronized (lock) {
+			ArrayDeque<Send> queue = lanes[lane].queue;
+			if (queue.size() >= capacity) return false;
+			queue.add(send);
+			lock.notifyAll();
+		}
+		return true;
+	}
+
+	protected void control (Connection connection, String message, byte[] bytes, int count) throws IOException {
+		if (message.startsWith(chunk)) {
+			int laneEnd = message.indexOf(' ', chunk.length()), totalEnd = message.indexOf(' ', laneEnd + 1);
+			if (laneEnd == -1 || totalEnd == -1) throw new IOException("Invalid chunk: " + message.substring(1));
+			int total;
+			Chunked chunked = new Chunked();
+			try {
+				chunked.lane = Integer.parseInt(message.substring(chunk.length(), laneEnd));
+				total = Integer.parseInt(message.substring(laneEnd + 1, totalEnd));
+			} catch (NumberFormatException ex) {
+				throw new IOException("Invalid chunk: " + message.substring(1));
+			}
+			if (chunked.lane < 0 || chunked.lane >= receiving.length || total < count)
+				throw new IOException("Invalid chunk: " + message.substring(1));
+			if (total > maxMessageSize) throw new IOException("Chunked message too large: " + total + " > " + maxMessageSize);
+			chunked.message = message.substring(totalEnd + 1);
+			chunked.bytes = new byte[total];
+			receiving[chunked.lane] = chunked;
+			received(connection, chunked, bytes, count);
+		} else if (message.startsWith(more)) {
+			Chunked chunked = null;
+			try {
+				chunked = receiving[Integer.parseInt(message.substring(more.length()))];
+			} catch (RuntimeException ignored) {
+			}
+			if (chunked == null || chunked.count + count > chunked.bytes.length)
+				throw new IOException("Invalid chunk: " + message.substring(1));
+			received(connection, chunked, bytes, count);
+		} else
+			super.control(connection, message, bytes, count);
+	}
+
+	private void received (Connection connection, Chunked chunked, byte[] bytes, int count) throws IOException {
+		System.arraycopy(bytes, 0, chunked.bytes, chunked.count, count);
+		chunked.count += count;
+		if (chunked.count < chunked.bytes.length) return;
+		receiving[chunked.lane] = null;
+		if (!dispatch(connection, chunked.message, chunked.bytes, chunked.count)) connection.close();
+	}
+
+	public int getSendQueueSize () {
+		int size = 0;
+		synchronized (lock) {
+			for (Lane lane : lanes)
+				size += lane.queue.size();
+		}
+		return size;
+	}
+
+	/** Returns the number of messages queued in the specified lane. */
+	public int getSendQueueSize (int lane) {
+		synchronized (lock) {
+			return lanes[lane].queue.size();
+		}
+	}
+
+	public void drainSends (Connection connection, OutboundBuffer buffer) {
+		ArrayList<OutboundBuffer.Entry> entries = new ArrayList();
+		synchronized (lock) {
+			for (Lane lane : lanes) {
+				for (Send send : lane.queue) {
+					if (send.message.startsWith(heartbeat)) continue; // Skip control messages.
+					entries.add(new OutboundBuffer.Entry(send.message, send.bytes));
+				}
+				lane.queue.clear();
+				lane.written = 0;
+			}
+		}
+		buffer.addFirst(entries);
+	}
+
+	public int getChunkSize () {
+		return chunkSize;
+	}
+
+	/** Sets the maximum bytes written at once for a message before another message can be written. Default is 16384. */
+	public void setChunkSize (int chunkSize) {
+		if (chunkSize < 1) throw new IllegalArgumentException("chunkSize must be > 0: " + chunkSize);
+		this.chunkSize = chunkSize;
+	}
+
+	public int getMaxMessageSize () {
+		return maxMessageSize;
+	}
+
+	/** Sets the maximum bytes for a chunked message received from the other side, which are allocated when its first chunk is
+	 * received. A larger message closes the connection. Default is 16777216. */
+	public void setMaxMessageSize (int maxMessageSize) {
+		if (maxMessageSize < 1) throw new IllegalArgumentException("maxMessageSize must be > 0: " + maxMessageSize);
+		this.maxMessageSize = maxMessageSize;
+	}
+
+	public boolean getStrict () {
+		return strict;
+	}
+
+	/** If true, a lane is only written when all lanes with a higher priority are empty. If false, the lanes are written with
+	 * weighted round robin, so lower priority lanes are not starved. Default is true. */
+	public void setStrict (boolean strict) {
+		this.strict = strict;
+	}
+
+	public int getWeight (int lane) {
+		synchronized (lock) {
+			return lanes[lane].weight;
+		}
+	}
+
+	/** Sets the number of chunks or messages the lane may write each round when not {@link #setStrict(boolean) strict}. */
+	public void setWeight (int lane, int weight) {
+		if (weight < 1) throw new IllegalArgumentException("weight must be > 0: " + weight);
+		synchronized (lock) {
+			lanes[lane].weight = weight;
+		}
+	}
+
+	public int getDefaultLane () {
+		return defaultLane;
+	}
+
+	/** Sets the lane used by {@link #send(Connection, String)} and {@link #send(Connection, String, byte[], int, int)}. */
+	public void setDefaultLane (int lane) {
+		if (lane < 0 || lane >= lanes.length) throw new IllegalArgumentException("Invalid lane: " + lane);
+		defaultLane = lane;
+	}
+
+	public int getLaneCount () {
+		return lanes.length;
+	}
+
+	/** Sets the maximum messages queued in each lane. Default is 1024. */
+	public void setCapacity (int capacity) {
+		synchronized (lock) {
+			this.capacity = capacity;
+		}
+	}
+
+	static class Lane {
+		final ArrayDeque<Send> queue = new ArrayDeque();
+		int weight, credit;
+		/** The bytes of the first message in the queue which have been written as chunks. */
+		int written;
+	}
+
+	static class Chunked {
+		int lane, count;
+		String message;
+		byte[] bytes;
+	}
+}
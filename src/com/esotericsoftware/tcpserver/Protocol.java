@@ -20,9 +20,13 @@
 
 package com.esotericsoftware.tcpserver;
 
+import static com.esotericsoftware.tcpserver.Util.*;
+
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 
 /** Allows customizing the data that is sent and received. */
 public interface Protocol {
@@ -34,6 +38,23 @@ public interface Protocol {
 		return new ServerSocket(port);
 	}
 
+	/** Used instead of {@link #newServerSocket(int)} when a backlog or SO_REUSEPORT is configured.
+	 * @param backlog The maximum number of pending connections, or 0 for the default.
+	 * @param reusePort If true, SO_REUSEPORT is set so multiple sockets can listen on the same port (requires Java 9+ and an OS
+	 *           which supports it). */
+	default public ServerSocket newServerSocket (int port, int backlog, boolean reusePort) throws Exception {
+		if (!reusePort) return backlog > 0 ? new ServerSocket(port, backlog) : newServerSocket(port);
+		ServerSocketChannel channel = ServerSocketChannel.open();
+		try {
+			setReusePort(channel);
+			channel.bind(new InetSocketAddress(port), backlog);
+		} catch (IOException ex) {
+			closeQuietly(channel);
+			throw ex;
+		}
+		return channel.socket();
+	}
+
 	static public interface ProtocolRead extends Protocol {
 		public void readThread (Connection connection) throws IOException;
 	}
@@ -48,9 +69,98 @@ public interface Protocol {
 		 * @param bytes May be null if count is 0. */
 		public void send (Connection connection, String message, byte[] bytes, int offset, int count);
 
+		/** Like {@link #send(Connection, String, byte[], int, int)}, but returns false rather than throwing when the queue is
+		 * full.
+		 * @param bytes May be null if count is 0.
+		 * @return false if the queue is full. */
+		default public boolean offer (Connection connection, String message, byte[] bytes, int offset, int count) {
+			try {
+				if (bytes == null)
+					send(connection, message);
+				else
+					send(connection, message, bytes, offset, count);
+				return true;
+			} catch (IllegalStateException ex) { // Queue full.
+				return false;
+			}
+		}
+
 		/** Sends the string and bytes, blocking until sending is complete.
 		 * @param bytes May be null if count is 0.
 		 * @return false if the connection is closed or the send failed (which closes the connection). */
 		public boolean sendBlocking (Connection connection, String message, byte[] bytes, int offset, int count);
+
+		/** Sends the string and bytes without waiting for the send to complete. If a message with the same key is queued and has
+		 * not yet been written, it is replaced in place by this message, so only the newest value for each key is sent and
+		 * messages with different keys keep their order. By default, the message is sent without conflation.
+		 * @param bytes May be null if count is 0. */
+		default public void sendConflated (Connection connection, Object key, String message, byte[] bytes, int offset,
+			int count) {
+			send(connection, message, bytes, offset, count);
+		}
+
+		/** Queues a message {@link Topics#publish(String, String, byte[], int, int) published} to a topic. By default, the message
+		 * is sent with {@link #send(Connection, String, byte[], int, int)}, including the topic.
+		 * @return false if the queue is full. */
+		default public boolean publish (Connection connection, Topics.Publication publication) {
+			try {
+				send(connection, publication.getProtocolMessage(), publication.bytes, 0, publication.count);
+				return true;
+			} catch (IllegalStateException ex) { // Queue full.
+				return false;
+			}
+		}
+
+		/** Queues a message which asks the other side to add or remove a {@link Topics topic} subscription.
+		 * @return false if subscriptions are not supported or the queue is full. */
+		default public boolean subscribe (Connection connection, String topic, boolean subscribe) {
+			return false;
+		}
+
+		/** Queues a message with a sequence number, such as a {@link Journal} sequence, which the other side can use to
+		 * acknowledge the message and skip duplicates. By default, the message is sent without the sequence number.
+		 * @see Connection#getSequence() */
+		default public void sendSequenced (Connection connection, long sequence, String message, byte[] bytes, int offset,
+			int count) {
+			send(connection, message, bytes, offset, count);
+		}
+
+		/** Like {@link #sendSequenced(Connection, long, String, byte[], int, int)}, but writes the message before returning.
+		 * @return false if the connection was closed. */
+		default public boolean sendSequencedBlocking (Connection connection, long sequence, String message, byte[] bytes,
+			int offset, int count) {
+			return sendBlocking(connection, message, bytes, offset, count);
+		}
+
+		/** Queues a message which the other side's protocol discards, to keep the connection from being idle.
+		 * @return false if heartbeats are not supported. */
+		default public boolean sendHeartbeat (Connection connection) {
+			return false;
+		}
+
+		/** Queues a message which the other side's protocol answers by calling {@link Connection#pong(long)} with the time, to
+		 * measure the round trip time.
+		 * @param time The {@link System#nanoTime()} when the ping was sent.
+		 * @return false if pings are not supported. */
+		default public boolean sendPing (Connection connection, long time) {
+			return false;
+		}
+
+		/** Queues a message which offers the other side a UDP port and a token to start each datagram with, which the other side's
+		 * protocol passes to {@link Connection#udpOffered(int, long)}.
+		 * @return false if UDP is not supported or the queue is full. */
+		default public boolean offerUdp (Connection connection, int port, long token) {
+			return false;
+		}
+
+		/** Returns the number of queued messages which have not yet been written. */
+		default public int getSendQueueSize () {
+			return 0;
+		}
+
+		/** Moves queued messages which have not yet been written to the buffer, ahead of its other messages. Called after the
+		 * connection is closed. */
+		default public void drainSends (Connection connection, OutboundBuffer buffer) {
+		}
 	}
 }
@@ -0,0 +1,129 @@
+/* Copyright (c) 2017-2021, Esoteric Software
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following
+ * conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.esotericsoftware.tcpserver;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/** Limits the messages and bytes per second in one direction, for a connection or for all connections of a server or client.
+ * Receiving is limited by pausing reads after a message, so TCP pushes back on the sender. Sending is limited by pausing the
+ * thread writing after a message. A message which exceeds the available tokens is allowed, then the next message waits until
+ * the debt is repaid. The limits can be changed at any time. All methods are thread safe. */
+public class RateLimit {
+	final RateLimit parent;
+	private volatile TokenBucket messages, bytes;
+	private final LongAdder throttleTime = new LongAdder(), throttled = new LongAdder();
+
+	public RateLimit () {
+		this(null);
+	}
+
+	/** @param parent A limit shared with other connections, which is also applied. May be null. */
+	public RateLimit (RateLimit parent) {
+		this.parent = parent;
+	}
+
+	/** Sets the limits, with bursts of up to one second.
+	 * @param messagesPerSecond 0 for no message limit.
+	 * @param bytesPerSecond 0 for no byte limit. */
+	public void set (double messagesPerSecond, double bytesPerSecond) {
+		setMessages(messagesPerSecond, messagesPerSecond);
+		setBytes(bytesPerSecond, bytesPerSecond);
+	}
+
+	/** @param perSecond 0 for no limit.
+	 * @param burst The maximum messages allowed at once after being idle. */
+	public void setMessages (double perSecond, double burst) {
+		messages = update(messages, perSecond, burst);
+	}
+
+	/** @param perSecond 0 for no limit.
+	 * @param burst The maximum bytes allowed at once after being idle. */
+	public void setBytes (double perSecond, double burst) {
+		bytes = update(bytes, perSecond, burst);
+	}
+
+	static private TokenBucket update (TokenBucket bucket, double perSecond, double burst) {
+		if (perSecond <= 0) return null;
+		if (bucket == null) return new TokenBucket(perSecond, burst);
+		bucket.set(perSecond, burst);
+		return bucket;
+	}
+
+	/** Returns the messages per second, or 0 if not limited. */
+	public double getMessageRate () {
+		TokenBucket messages = this.messages;
+		return messages == null ? 0 : messages.getRate();
+	}
+
+	/** Returns the bytes per second, or 0 if not limited. */
+	public double getByteRate () {
+		TokenBucket bytes = this.bytes;
+		return bytes == null ? 0 : bytes.getRate();
+	}
+
+	/** Returns true if this or the parent has a limit. */
+	public boolean isLimited () {
+		return messages != null || bytes != null || (parent != null && parent.isLimited());
+	}
+
+	/** Takes tokens for a message from this limit and the parent, then sleeps until neither is in debt. */
+	void acquire (long byteCount) {
+		long wait = 0;
+		for (RateLimit limit = this; limit != null; limit = limit.parent) {
+			TokenBucket messages = limit.messages;
+			if (messages != null) wait = Math.max(wait, messages.take(1));
+			TokenBucket bytes = limit.bytes;
+			if (bytes != null && byteCount > 0) wait = Math.max(wait, bytes.take(byteCount));
+		}
+		if (wait <= 0) return;
+		long start = System.nanoTime();
+		try {
+			Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		long time = System.nanoTime() - start;
+		for (RateLimit limit = this; limit != null; limit = limit.parent) {
+			limit.throttleTime.add(time);
+			limit.throttled.increment();
+		}
+	}
+
+	/** Returns the total nanoseconds reads or writes were paused by this limit or one of its children. */
+	public long getThrottleTime () {
+		return throttleTime.sum();
+	}
+
+	/** Returns the number of times reads or writes were paused by this limit or one of its children. */
+	public long getThrottled () {
+		return throttled.sum();
+	}
+
+	public void reset () {
+		throttleTime.reset();
+		throttled.reset();
+	}
+
+	public String toString () {
+		return "messages/s=" + getMessageRate() + ", bytes/s=" + getByteRate() + ", throttled=" + getThrottled() + " ("
+			+ getThrottleTime() / 1000000 + " ms)";
+	}
+}
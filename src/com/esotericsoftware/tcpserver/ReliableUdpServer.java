@@ -0,0 +1,293 @@
+/* Copyright (c) 2017-2021, Esoteric Software
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following
+ * conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.esotericsoftware.tcpserver;
+
+import static com.esotericsoftware.minlog.Log.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.esotericsoftware.tcpserver.TimerWheel.Timer;
+
+/** A {@link UdpServer} which accepts {@link UdpConnection reliable connections} and can {@link #connect(String, int, int)
+ * connect} to other servers. A client uses port 0 and calls {@link #setAccept(boolean) setAccept(false)}.
+ * <p>
+ * Each datagram starts with a type byte and the connection ID chosen by the connecting side. A connection is opened by a
+ * <code>syn</code> which is answered by a <code>synAck</code>, then <code>data</code> datagrams carry a sequence number and
+ * are answered by an <code>ack</code> with the next expected sequence and a mask of the 64 sequences after it which were
+ * received. A <code>fin</code> closes the connection. */
+public class ReliableUdpServer extends UdpServer {
+	static final byte syn = 1, synAck = 2, data = 3, ack = 4, fin = 5;
+	/** The milliseconds without sending after which an acknowledgement is sent to keep the connection alive. */
+	static final int keepAlive = 1000;
+	static final int maxRetransmitTimeout = 3000;
+
+	final ConcurrentHashMap<Integer, UdpConnection> connections = new ConcurrentHashMap();
+	private volatile boolean accept = true;
+	private volatile double loss;
+	private volatile int maxPacketSize = 1200, sendCapacity = 1024, minRetransmitTimeout = 30, maxRetransmits = 15,
+		timeoutMillis = 10000;
+	private final LongAdder lost = new LongAdder();
+
+	public ReliableUdpServer (String category, String name) {
+		this(category, name, 0);
+	}
+
+	public ReliableUdpServer (String category, String name, int port) {
+		super(category, name, port, 65536);
+	}
+
+	protected void retry () {
+		Timer timer = TimerWheel.getShared().schedule(new Runnable() {
+			public void run () {
+				long now = System.nanoTime();
+				for (UdpConnection connection : connections.values())
+					connection.update(now);
+			}
+		}, 10, 10);
+		try {
+			super.retry();
+		} finally {
+			timer.cancel();
+		}
+	}
+
+	protected void stopped () {
+		for (UdpConnection connection : connections.values())
+			connection.close();
+		super.stopped();
+	}
+
+	protected void received (DatagramPacket packet) {
+		int length = packet.getLength();
+		if (length < 5) return;
+		byte[] buffer = packet.getData();
+		int id = readInt(buffer, 1);
+		InetAddress address = packet.getAddress();
+		int port = packet.getPort();
+
+		UdpConnection connection = connections.get(id);
+		if (connection != null && (connection.port != port || !connection.address.equals(address))) {
+			if (DEBUG) debug(category, "UDP connection ID from the wrong address: " + address.getHostAddress() + ":" + port);
+			return;
+		}
+		switch (buffer[0]) {
+		case syn:
+			if (connection == null) {
+				if (!accept) return;
+				connection = new UdpConnection(this, id, address, port);
+				if (connections.putIfAbsent(id, connection) != null) return;
+				sendHeader(synAck, id, address, port);
+				connection.connected();
+			} else
+				sendHeader(synAck, id, address, port); // The reply was lost.
+			break;
+		case synAck:
+			if (connection != null) connection.connected();
+			break;
+		case data:
+			if (length < 10) return;
+			if (connection == null)
+				sendHeader(fin, id, address, port); // Tell the other side the connection no longer exists.
+			else
+				connection.receiveData(buffer, length);
+			break;
+		case ack:
+			if (length < 17) return;
+			if (connection != null) connection.receiveAck(buffer);
+			break;
+		case fin:
+			if (connection != null) connection.close(false);
+			break;
+		default:
+			if (DEBUG) debug(category, "Invalid reliable UDP packet: " + Util.toString(packet));
+		}
+	}
+
+	private void sendHeader (byte type, int id, InetAddress address, int port) {
+		byte[] packet = new byte[5];
+		packet[0] = type;
+		writeInt(packet, 1, id);
+		sendPacket(packet, 5, address, port);
+	}
+
+	void sendPacket (byte[] packet, int length, InetAddress address, int port) {
+		double loss = this.loss;
+		if (loss > 0 && ThreadLocalRandom.current().nextDouble() < loss) {
+			lost.increment();
+			return;
+		}
+		if (socket == null) return;
+		try {
+			send(packet, 0, length, address, port);
+		} catch (IOException ex) {
+			if (DEBUG) debug(category, "Unable to send UDP packet: " + address.getHostAddress() + ":" + port, ex);
+		}
+	}
+
+	/** Opens a connection to another server, blocking until the handshake completes. The server must be started first.
+	 * @throws IOException if the server is not running or the handshake was not answered within the timeout. */
+	public UdpConnection connect (String host, int port, int timeoutMillis) throws IOException {
+		InetAddress address = InetAddress.getByName(host);
+		long end = System.currentTimeMillis() + timeoutMillis;
+		while (socket == null) {
+			if (!running || System.currentTimeMillis() > end) throw new IOException("UDP server is not running.");
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException ex) {
+				throw new IOException("Interrupted.", ex);
+			}
+		}
+
+		int id;
+		UdpConnection connection;
+		do {
+			id = ThreadLocalRandom.current().nextInt();
+			connection = new UdpConnection(this, id, address, port);
+		} while (connections.putIfAbsent(id, connection) != null);
+		connection.sendHandshake(System.nanoTime());
+		if (!connection.waitForConnection(Math.max(1, end - System.currentTimeMillis()))) {
+			connection.close();
+			throw new IOException("Unable to connect: " + host + ":" + port);
+		}
+		return connection;
+	}
+
+	void remove (UdpConnection connection) {
+		connections.remove(connection.id, connection);
+	}
+
+	/** Called after a connection's handshake completes, on the receive thread. */
+	public void connected (UdpConnection connection) {
+	}
+
+	public void disconnected (UdpConnection connection) {
+	}
+
+	/** Override to handle a connection receiving a message. Called on the receive thread. */
+	public void receive (UdpConnection connection, String event, String payload, byte[] bytes, int count) {
+	}
+
+	public List<UdpConnection> getConnections () {
+		return new ArrayList(connections.values());
+	}
+
+	public boolean getAccept () {
+		return accept;
+	}
+
+	/** When false, connections from other servers are not accepted. Default is true. */
+	public void setAccept (boolean accept) {
+		this.accept = accept;
+	}
+
+	public double getLoss () {
+		return loss;
+	}
+
+	/** Drops the fraction of outgoing datagrams at random, to simulate a lossy network.
+	 * @param loss 0 to 1. Default is 0. */
+	public void setLoss (double loss) {
+		if (loss < 0 || loss > 1) throw new IllegalArgumentException("loss must be 0-1: " + loss);
+		this.loss = loss;
+	}
+
+	/** Returns the number of datagrams dropped by the {@link #setLoss(double) loss} simulation. */
+	public long getLost () {
+		return lost.sum();
+	}
+
+	public int getMaxPacketSize () {
+		return maxPacketSize;
+	}
+
+	/** Sets the maximum size of a datagram, which limits the size of a message. Default is 1200, which fits in the MTU of most
+	 * networks. */
+	public void setMaxPacketSize (int maxPacketSize) {
+		if (maxPacketSize < 32 || maxPacketSize > 65507)
+			throw new IllegalArgumentException("maxPacketSize must be 32-65507: " + maxPacketSize);
+		this.maxPacketSize = maxPacketSize;
+	}
+
+	public int getSendCapacity () {
+		return sendCapacity;
+	}
+
+	/** Sets the number of messages each connection can queue while its window of {@value UdpConnection#window} unacknowledged
+	 * datagrams is full. Default is 1024. */
+	public void setSendCapacity (int sendCapacity) {
+		this.sendCapacity = sendCapacity;
+	}
+
+	public int getMinRetransmitTimeout () {
+		return minRetransmitTimeout;
+	}
+
+	/** Sets the minimum milliseconds before an unacknowledged datagram is retransmitted. Default is 30. */
+	public void setMinRetransmitTimeout (int millis) {
+		minRetransmitTimeout = millis;
+	}
+
+	public int getMaxRetransmits () {
+		return maxRetransmits;
+	}
+
+	/** Sets how many times a datagram is retransmitted before the connection is closed. Default is 15. */
+	public void setMaxRetransmits (int maxRetransmits) {
+		this.maxRetransmits = maxRetransmits;
+	}
+
+	public int getTimeout () {
+		return timeoutMillis;
+	}
+
+	/** Sets how long without receiving anything before a connection is closed. Default is 10000. */
+	public void setTimeout (int millis) {
+		timeoutMillis = millis;
+	}
+
+	static void writeInt (ByteArrayOutputStream output, int value) {
+		output.write(value >>> 24);
+		output.write(value >>> 16);
+		output.write(value >>> 8);
+		output.write(value);
+	}
+
+	static void writeInt (byte[] buffer, int offset, int value) {
+		buffer[offset] = (byte)(value >>> 24);
+		buffer[offset + 1] = (byte)(value >>> 16);
+		buffer[offset + 2] = (byte)(value >>> 8);
+		buffer[offset + 3] = (byte)value;
+	}
+
+	static int readInt (byte[] buffer, int offset) {
+		return (buffer[offset] & 0xff) << 24 | (buffer[offset + 1] & 0xff) << 16 | (buffer[offset + 2] & 0xff) << 8
+			| buffer[offset + 3] & 0xff;
+	}
+}
@@ -22,16 +22,34 @@ package com.esotericsoftware.tcpserver;
 
 import static com.esotericsoftware.minlog.Log.*;
 
-/** Manages a thread which calls {@link #retry()} repeatedly, sleeping when a try has failed. */
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/** Manages a thread which calls {@link #retry()} repeatedly, sleeping when a try has failed. Alternatively a
+ * {@link #setScheduler(ScheduledExecutorService) scheduler} can be used, so many instances share a few threads. */
 public abstract class Retry {
+	static private ScheduledExecutorService sharedScheduler;
+
 	protected final String category, name;
 	protected volatile boolean running;
 	boolean daemon;
 	final Object runLock = new Object();
 	volatile Thread retryThread;
+	private ScheduledExecutorService scheduler, activeScheduler;
+	private ScheduledFuture scheduled;
+	private Thread attemptThread;
+	private boolean paused;
+	/** True when the attempt thread stopped itself, so the attempt calls {@link #stopped()} when it finishes. */
+	private boolean selfStopped;
 	volatile int retryCount;
 	volatile boolean failed;
-	int[] retryDelays = new int[] {1 * 1000, 3 * 1000, 5 * 1000, 8 * 1000, 13 * 1000};
+	private volatile int retryAfter;
+	private int previousDelay;
+	Backoff backoff = new Backoff.Delays(1 * 1000, 3 * 1000, 5 * 1000, 8 * 1000, 13 * 1000);
 
 	public Retry (String category, String name) {
 		this.category = category;
@@ -39,13 +57,21 @@ public abstract class Retry {
 	}
 
 	/** Starts a thread which calls {@link #initialize()} and then repeatedly calls {@link #retry()}. If it is already running, it
-	 * is stopped and then started. */
+	 * is stopped and then started. If a {@link #setScheduler(ScheduledExecutorService) scheduler} is set, it is used instead of a
+	 * thread. */
 	public void start () {
 		synchronized (runLock) {
 			stop();
-			if (TRACE) trace(category, "Started retry thread: " + name);
 			retryCount = 0;
 			running = true;
+			activeScheduler = scheduler;
+			if (scheduler != null) {
+				if (TRACE) trace(category, "Started retry: " + name);
+				paused = false;
+				scheduled = activeScheduler.schedule(new Attempt(true), 0, TimeUnit.MILLISECONDS);
+				return;
+			}
+			if (TRACE) trace(category, "Started retry thread: " + name);
 			retryThread = new Thread(name) {
 				public void run () {
 					try {
@@ -56,9 +82,7 @@ public abstract class Retry {
 							retry();
 
 							if (failed) {
-								int delay = retryDelays[retryCount % retryDelays.length];
-								if (delay == 0) throw new RuntimeException("Retry thread failed: " + name);
-								retryCount++;
+								int delay = nextDelay();
 								try {
 									sleep(delay);
 								} catch (InterruptedException ignored) {
@@ -83,12 +107,64 @@ public abstract class Retry {
 		}
 	}
 
+	/** Returns the delay to sleep after a failure, which is at least the {@link #retryAfter(int) retry after} delay, if any.
+	 * @throws RuntimeException if the delay is zero. */
+	int nextDelay () {
+		int delay = backoff.delay(retryCount, previousDelay);
+		if (delay == 0) throw new RuntimeException("Retry thread failed: " + name);
+		delay = Math.max(delay, takeRetryAfter());
+		retryCount++;
+		previousDelay = delay;
+		return delay;
+	}
+
+	/** Returns the {@link #retryAfter(int) retry after} delay plus up to 25% at random, or 0 if none is set, and clears it. */
+	int takeRetryAfter () {
+		int millis = retryAfter;
+		if (millis <= 0) return 0;
+		retryAfter = 0;
+		return millis + ThreadLocalRandom.current().nextInt(millis / 4 + 1);
+	}
+
+	/** Returns the delay before the next try when {@link #resume() resumed}. */
+	int resumeDelay () {
+		return takeRetryAfter();
+	}
+
+	/** Sets the minimum delay before the next try, eg as advised by a server which is overloaded. Up to 25% more is added at
+	 * random so clients given the same delay don't retry in lockstep.
+	 * @param millis 0 to clear. */
+	public void retryAfter (int millis) {
+		retryAfter = millis;
+	}
+
 	/** Interrupts the retry thread and waits for it to terminate. If it is already stopped, nothing is done.
 	 * @return true if it was running. */
 	public boolean stop () {
 		synchronized (runLock) {
 			if (!running) return false;
 			running = false;
+			if (activeScheduler != null) {
+				if (scheduled != null) {
+					scheduled.cancel(false);
+					scheduled = null;
+				}
+				Thread attemptThread = this.attemptThread;
+				if (attemptThread == Thread.currentThread()) {
+					selfStopped = true;
+					return true;
+				}
+				if (TRACE) trace(category, "Waiting for retry to stop: " + name);
+				if (attemptThread != null) attemptThread.interrupt();
+				stopped();
+				while (this.attemptThread != null) {
+					try {
+						runLock.wait();
+					} catch (InterruptedException ex) {
+					}
+				}
+				return true;
+			}
 			Thread retryThread = this.retryThread;
 			if (retryThread == Thread.currentThread()) return true;
 			if (TRACE) trace(category, "Waiting for retry thread to stop: " + name);
@@ -104,6 +180,32 @@ public abstract class Retry {
 		}
 	}
 
+	/** When using a {@link #setScheduler(ScheduledExecutorService) scheduler}, {@link #retry()} may call this so retry is not
+	 * called again until {@link #resume()}. This allows waiting for an event without occupying a scheduler thread. Has no effect
+	 * when using a thread. */
+	protected void pause () {
+		synchronized (runLock) {
+			if (activeScheduler != null) paused = true;
+		}
+	}
+
+	/** Schedules {@link #retry()} to be called again after {@link #pause()}. */
+	protected void resume () {
+		synchronized (runLock) {
+			if (!paused) return;
+			paused = false;
+			if (running && attemptThread == null && scheduled == null)
+				scheduled = activeScheduler.schedule(new Attempt(false), resumeDelay(), TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/** Returns true if a scheduler was used rather than a thread the last time {@link #start()} was called. */
+	public boolean isScheduled () {
+		synchronized (runLock) {
+			return activeScheduler != null;
+		}
+	}
+
 	/** Called once after {@link #start()}, on the retry thread. */
 	protected void initialize () {
 	}
@@ -122,6 +224,7 @@ public abstract class Retry {
 	 * Can be called any time. Subclasses should call this from {@link #retry()} when the try was successful. */
 	public void success () {
 		retryCount = 0;
+		previousDelay = 0;
 	}
 
 	/** Inidicates failure so there will be a sleep before the next retry.
@@ -142,9 +245,21 @@ public abstract class Retry {
 	}
 
 	/** The delays to use for repeated failures. If more failures occur than entries, the last entry is used. If a delay is zero,
-	 * the retry thread is stopped by throwing an exception. */
+	 * the retry thread is stopped by throwing an exception.
+	 * @see Backoff.Delays */
 	public void setRetryDelays (int... retryDelays) {
-		this.retryDelays = retryDelays;
+		backoff = new Backoff.Delays(retryDelays);
+	}
+
+	public Backoff getBackoff () {
+		return backoff;
+	}
+
+	/** Sets how long to wait after failures. Default is {@link Backoff.Delays} of 1, 3, 5, 8 and 13 seconds. If the delay is
+	 * zero, the retry thread is stopped by throwing an exception. */
+	public void setBackoff (Backoff backoff) {
+		if (backoff == null) throw new IllegalArgumentException("backoff cannot be null.");
+		this.backoff = backoff;
 	}
 
 	/** Returns the number of retries since a success. */
@@ -164,6 +279,37 @@ public abstract class Retry {
 		this.daemon = daemon;
 	}
 
+	public ScheduledExecutorService getScheduler () {
+		return scheduler;
+	}
+
+	/** Sets the scheduler used to call {@link #retry()} and wait between failures, instead of a thread for each instance. Each
+	 * call to retry occupies a scheduler thread until it returns, so this is best for subclasses whose retry returns quickly or
+	 * {@link #pause() pauses}, such as {@link TcpClient}. Servers block in retry while running, so should not use a small shared
+	 * scheduler. Takes effect the next time {@link #start()} is called.
+	 * @param scheduler May be null to use a thread (the default).
+	 * @see #getSharedScheduler() */
+	public void setScheduler (ScheduledExecutorService scheduler) {
+		this.scheduler = scheduler;
+	}
+
+	/** Returns a scheduler with daemon threads, one per processor, which can be shared by many instances. */
+	static public synchronized ScheduledExecutorService getSharedScheduler () {
+		if (sharedScheduler == null) {
+			ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(Runtime.getRuntime().availableProcessors(),
+				new ThreadFactory() {
+					public Thread newThread (Runnable runnable) {
+						Thread thread = new Thread(runnable, "Retry");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+			scheduler.setRemoveOnCancelPolicy(true);
+			sharedScheduler = scheduler;
+		}
+		return sharedScheduler;
+	}
+
 	public String getCategory () {
 		return category;
 	}
@@ -171,4 +317,51 @@ public abstract class Retry {
 	public String toString () {
 		return name;
 	}
+
+	/** Calls {@link #retry()} once on a scheduler thread, then schedules the next attempt. */
+	class Attempt implements Runnable {
+		private final boolean initialize;
+
+		Attempt (boolean initialize) {
+			this.initialize = initialize;
+		}
+
+		public void run () {
+			synchronized (runLock) {
+				if (!running) return;
+				attemptThread = Thread.currentThread();
+				scheduled = null;
+			}
+			int delay = -1;
+			try {
+				if (initialize) initialize();
+				if (running) {
+					failed = false;
+					retry();
+					delay = failed ? nextDelay() : 0;
+				}
+			} catch (Throwable ex) {
+				if (ERROR) error(category, "Retry error: " + name, ex);
+			} finally {
+				synchronized (runLock) {
+					attemptThread = null;
+					if (selfStopped) {
+						selfStopped = false;
+						if (TRACE) trace(category, "Stopped retry: " + name);
+						stopped();
+					} else if (running) {
+						if (delay == -1) {
+							running = false;
+							if (TRACE) trace(category, "Stopped retry: " + name);
+							stopped();
+						} else if (!paused) {
+							scheduled = activeScheduler.schedule(new Attempt(false), delay, TimeUnit.MILLISECONDS);
+						}
+					}
+					Thread.interrupted();
+					runLock.notifyAll();
+				}
+			}
+		}
+	}
 }
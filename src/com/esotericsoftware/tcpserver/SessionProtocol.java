@@ -0,0 +1,658 @@
+/* Copyright (c) 2017-2021, Esoteric Software
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following
+ * conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.esotericsoftware.tcpserver;
+
+import static com.esotericsoftware.minlog.Log.*;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.esotericsoftware.tcpserver.TimerWheel.Timer;
+
+/** A {@link DefaultProtocol} which keeps a session across connections, so when a connection is replaced only the messages the
+ * other side did not receive are sent again. Messages are numbered in each direction and each side periodically acknowledges
+ * the messages it has received. Sent messages are kept in a bounded retransmit buffer until they are acknowledged.
+ * <p>
+ * When a connection starts, the client sends its session ID and the number of messages it has received, and the server replies
+ * with the same. Each side then resends the messages the other has not received, followed by any queued messages. If the server
+ * no longer has the session, a new session is started and the client resends all its unacknowledged messages.
+ * <p>
+ * A client uses a single instance for all its connections, eg {@code new TcpClient(category, name, host, port, new
+ * SessionProtocol())}. A server uses a new instance for each connection, sharing a {@link Sessions}, eg by returning
+ * {@code new SessionProtocol(sessions)} from {@link TcpServer#newProtocol()}. */
+public class SessionProtocol extends DefaultProtocol {
+	/** The prefix of the session handshake messages. */
+	static public final String hello = "\0session ";
+	/** The prefix of a message which acknowledges all messages up to a sequence number. */
+	static public final String ack = "\0ack ";
+
+	final Sessions sessions;
+	volatile Session session;
+	private final Object handshakeLock = new Object();
+	private Connection handshakeConnection, readyConnection;
+	private long peerReceived;
+	private Connection previousConnection;
+	/** The protocol of the connection a server session was resumed from, whose queued messages are sent on this connection. */
+	private SessionProtocol previousProtocol;
+	private final AtomicBoolean ackQueued = new AtomicBoolean();
+	private int ackEvery = 64, ackDelay = 50, handshakeTimeout = 10000;
+
+	/** Creates a protocol for a client, which keeps its session for all connections.
+	 * @param maxBytes The maximum size of the retransmit buffer. When full, sending blocks until messages are acknowledged. */
+	public SessionProtocol (int maxBytes) {
+		sessions = null;
+		session = new Session(null, maxBytes);
+	}
+
+	/** Creates a protocol for a client with a 1 MB retransmit buffer. */
+	public SessionProtocol () {
+		this(1024 * 1024);
+	}
+
+	/** Creates a protocol for a server connection, which finds or creates its session when the client's handshake is received. */
+	public SessionProtocol (Sessions sessions) {
+		if (sessions == null) throw new IllegalArgumentException("sessions cannot be null.");
+		this.sessions = sessions;
+	}
+
+	public void writeThread (final Connection connection) {
+		Timer ackTimer = null;
+		try {
+			try {
+				if (!handshake(connection)) {
+					connection.close();
+					return;
+				}
+			} catch (IOException ex) {
+				if (ERROR && !connection.closed) error(connection.category, "Session handshake failed.", ex);
+				connection.close();
+				return;
+			}
+			ackTimer = TimerWheel.getShared().schedule(new Runnable() {
+				public void run () {
+					if (!connection.closed) sendAck();
+				}
+			}, ackDelay, ackDelay);
+			super.writeThread(connection);
+		} finally {
+			if (ackTimer != null) ackTimer.cancel();
+			if (sessions != null) sessions.closed(session, connection); // Starts expiring a session the handshake created.
+		}
+	}
+
+	private boolean handshake (Connection connection) throws IOException {
+		synchronized (outputLock) {
+			if (sessions == null) {
+				Session session = this.session;
+				String message;
+				synchronized (session) {
+					message = hello + (session.id == null ? "-" : session.id) + " " + session.received;
+					previousConnection = session.connection;
+					session.connection = connection;
+				}
+				synchronized (handshakeLock) {
+					handshakeConnection = null;
+				}
+				super.write(connection, message, null, 0, 0);
+				connection.output.flush();
+			}
+
+			// Wait for the read thread to process the other side's handshake.
+			long until = System.currentTimeMillis() + handshakeTimeout;
+			synchronized (handshakeLock) {
+				while (handshakeConnection != connection) {
+					long wait = until - System.currentTimeMillis();
+					if (wait <= 0 || connection.closed) {
+						if (WARN && !connection.closed) warn(connection.category, "Timeout waiting for session handshake.");
+						return false;
+					}
+					try {
+						handshakeLock.wait(Math.min(wait, 100));
+					} catch (InterruptedException ignored) {
+					}
+				}
+			}
+
+			// Wait for the previous connection's write thread, which may store a message it took from the queue.
+			Connection previous = previousConnection;
+			previousConnection = null;
+			if (previous != null && previous.writeThread != null) {
+				try {
+					previous.writeThread.join(handshakeTimeout);
+				} catch (InterruptedException ignored) {
+				}
+				if (WARN && previous.writeThread.isAlive()) warn(connection.category, "Timeout waiting for previous write thread.");
+			}
+
+			Session session = this.session;
+			if (sessions != null) {
+				String message;
+				synchronized (session) {
+					message = hello + session.id + " " + session.received + " " + (session.resumed ? 1 : 0);
+				}
+				super.write(connection, message, null, 0, 0);
+			}
+			retransmit(connection, session);
+
+			// Messages queued for the previous connection, drained once its write thread is done so none it took are lost.
+			SessionProtocol previousProtocol = this.previousProtocol;
+			this.previousProtocol = null;
+			if (previousProtocol != null) writeQueued(connection, previousProtocol);
+
+			// Queued messages were sent before any sendBlocking waiting for the handshake.
+			writeQueued(connection, this);
+			connection.output.flush();
+		}
+		synchronized (handshakeLock) {
+			readyConnection = connection;
+			handshakeLock.notifyAll();
+		}
+		return true;
+	}
+
+	/** Writes the messages queued by the protocol without flushing. Control messages queued for a previous connection are
+	 * skipped. */
+	private void writeQueued (Connection connection, SessionProtocol protocol) throws IOException {
+		ArrayList queued = new ArrayList();
+		protocol.sends.drainTo(queued);
+		for (Object object : queued) {
+			if (object == ack) // Queued by sendAck.
+				ackQueued.set(false);
+			else if (object instanceof String) {
+				String message = (String)object;
+				if (protocol == this || !message.startsWith(heartbeat)) write(connection, message, null, 0, 0);
+			} else if (object instanceof Topics.Publication) {
+				Topics.Publication publication = (Topics.Publication)object;
+				write(connection, publication.getProtocolMessage(), publication.bytes, 0, publication.count);
+			} else {
+				DefaultProtocol.Send send = (DefaultProtocol.Send)object;
+				protocol.claim(send);
+				write(connection, send.message, send.bytes, 0, send.count);
+			}
+		}
+	}
+
+	/** Writes the messages the other side has not received. */
+	private void retransmit (Connection connection, Session session) throws IOException {
+		Session.Entry[] entries;
+		synchronized (session) {
+			session.acknowledge(peerReceived);
+			entries = session.unacked.toArray(new Session.Entry[session.unacked.size()]);
+		}
+		for (Session.Entry entry : entries)
+			super.write(connection, entry.message, entry.bytes, 0, entry.bytes == null ? 0 : entry.bytes.length);
+		if (DEBUG && entries.length > 0) debug(connection.category, "Session messages resent: " + entries.length);
+	}
+
+	protected void control (Connection connection, String message) throws IOException {
+		if (message.startsWith(ack)) {
+			long sequence;
+			try {
+				sequence = Long.parseLong(message.substring(ack.length()));
+			} catch (NumberFormatException ex) {
+				throw new IOException("Invalid session ack: " + message.substring(1));
+			}
+			if (TRACE) trace(connection.category, "Session ack: " + sequence);
+			Session session = this.session;
+			if (session != null) {
+				synchronized (session) {
+					session.acknowledge(sequence);
+				}
+			}
+		} else if (message.startsWith(hello)) {
+			if (DEBUG) debug(connection.category, "Session handshake: " + message.substring(1));
+			String[] values = message.substring(hello.length()).split(" ");
+			try {
+				if (sessions != null)
+					serverHello(connection, values[0], Long.parseLong(values[1]));
+				else
+					clientHello(connection, values[0], Long.parseLong(values[1]), values[2].equals("1"));
+			} catch (RuntimeException ex) {
+				throw new IOException("Invalid session handshake: " + message.substring(1), ex);
+			}
+			synchronized (handshakeLock) {
+				handshakeConnection = connection;
+				handshakeLock.notifyAll();
+			}
+		} else
+			super.control(connection, message);
+	}
+
+	/** Finds or creates the session for a client's handshake. */
+	private void serverHello (Connection connection, String id, long received) {
+		Session session = sessions.get(id);
+		if (session != null) {
+			synchronized (session) {
+				if (received < session.acked || received > session.sent) {
+					if (WARN) warn(connection.category, "Session cannot be resumed, client received: " + received + ", " + session);
+					session = null;
+				}
+			}
+		}
+		boolean resumed = session != null;
+		if (!resumed) {
+			session = sessions.create();
+			received = 0;
+		}
+		Connection replaced = null;
+		synchronized (session) {
+			session.resumed = resumed;
+			if (session.protocol != this) previousProtocol = session.protocol; // Its queued messages are sent by the handshake.
+			if (session.connection != null && session.connection != connection) {
+				replaced = session.connection;
+				previousConnection = replaced;
+			}
+			session.protocol = this;
+			session.connection = connection;
+			session.closedTime = 0;
+		}
+		// Closed without the session lock, as closing calls disconnected and other application code.
+		if (replaced != null) replaced.close();
+		peerReceived = received;
+		this.session = session;
+		if (INFO) info(connection.category, (resumed ? "Session resumed: " : "Session started: ") + session.id);
+	}
+
+	/** Updates the session from the server's handshake reply. */
+	private void clientHello (Connection connection, String id, long received, boolean resumed) throws IOException {
+		Session session = this.session;
+		synchronized (session) {
+			if (resumed) {
+				if (received < session.acked || received > session.sent)
+					throw new IOException("Session cannot be resumed, server received: " + received + ", " + session);
+				if (INFO) info(connection.category, "Session resumed: " + id);
+			} else {
+				if (INFO) {
+					info(connection.category, "Session started: " + id + (session.unacked.isEmpty() ? ""
+						: ", resending unacknowledged: " + session.unacked.size()));
+				}
+				session.restart(id);
+			}
+			peerReceived = received;
+		}
+	}
+
+	/** Counts messages and publications, which are both numbered by the session. */
+	boolean dispatch (Connection connection, String message, byte[] data, int dataLength) throws IOException {
+		Session session = this.session;
+		if (session == null) throw new IOException("Message received before the session handshake: " + message);
+		boolean sendAck;
+		synchronized (session) {
+			// Messages still being read from a replaced connection are discarded, they are resent on the new connection.
+			if (session.connection != connection) return true;
+			session.received++;
+			sendAck = session.received - session.ackSent >= ackEvery;
+		}
+		if (!super.dispatch(connection, message, data, dataLength)) return false;
+		if (sendAck) sendAck();
+		return true;
+	}
+
+	/** Queues an ack if messages have been received since the last ack. If the queue is full, the ack is written with the next
+	 * message instead. */
+	void sendAck () {
+		Session session = this.session;
+		if (session == null) return;
+		synchronized (session) {
+			if (session.received <= session.ackSent) return;
+		}
+		if (ackQueued.compareAndSet(false, true) && !sends.offer(ack)) ackQueued.set(false);
+	}
+
+	/** Writes an ack without flushing if messages have been received since the last ack. Called with the output lock held.
+	 * @return true if an ack was written. */
+	private boolean writeAck (Connection connection) throws IOException {
+		Session session = this.session;
+		long received;
+		synchronized (session) {
+			if (session.connection != connection) return false;
+			received = session.received;
+			if (received <= session.ackSent) return false;
+		}
+		if (TRACE) trace(connection.category, "Sent session ack: " + received);
+		super.write(connection, ack + received, null, 0, 0);
+		synchronized (session) {
+			if (received > session.ackSent) session.ackSent = received;
+		}
+		return true;
+	}
+
+	/** Writes and flushes an ack, if one is due.
+	 * @return false if the connection is closed. */
+	private boolean flushAck (Connection connection) {
+		if (connection.closed) return false;
+		try {
+			synchronized (outputLock) {
+				if (writeAck(connection)) connection.output.flush();
+			}
+			return true;
+		} catch (IOException ex) {
+			if (ERROR && !connection.closed) error(connection.category, "Error writing session ack.", ex);
+			connection.close();
+			return false;
+		}
+	}
+
+	/** Waits until the retransmit buffer has room for a message or the connection is closed. Acks are written while waiting
+	 * without holding the output lock, so the other side can make room even if it is also waiting for acks. */
+	private void awaitSpace (Connection connection, int size) {
+		Session session = this.session;
+		if (session == null) return; // Closed before the handshake.
+		while (true) {
+			synchronized (session) {
+				if (!session.isFull(size)) return;
+			}
+			if (!flushAck(connection)) return;
+			synchronized (session) {
+				if (!session.isFull(size)) return;
+				try {
+					session.wait(100);
+				} catch (InterruptedException ignored) {
+				}
+			}
+		}
+	}
+
+	/** Returns true if the message is numbered by the session: all but control messages, including publications. */
+	static boolean isSessionMessage (String message) {
+		return !message.startsWith(heartbeat) || message.startsWith(publish);
+	}
+
+	public void send (Connection connection, String message) {
+		SessionProtocol current = current();
+		if (current != this)
+			current.send(connection, message);
+		else
+			super.send(connection, message);
+	}
+
+	public void send (Connection connection, String message, byte[] bytes, int offset, int count) {
+		SessionProtocol current = current();
+		if (current != this)
+			current.send(connection, message, bytes, offset, count);
+		else
+			super.send(connection, message, bytes, offset, count);
+	}
+
+	/** Sends without the sequence number, as it would not be resent with the message. Messages are already numbered by the session. */
+	public void sendSequenced (Connection connection, long sequence, String message, byte[] bytes, int offset, int count) {
+		send(connection, message, bytes, offset, count);
+	}
+
+	public boolean sendSequencedBlocking (Connection connection, long sequence, String message, byte[] bytes, int offset,
+		int count) {
+		return sendBlocking(connection, message, bytes, offset, count);
+	}
+
+	/** Returns the protocol of the session's current server connection, so messages sent to a replaced connection are not
+	 * lost. */
+	private SessionProtocol current () {
+		Session session = this.session;
+		if (session == null || sessions == null) return this;
+		synchronized (session) {
+			return session.protocol != null ? session.protocol : this;
+		}
+	}
+
+	/** Sends publications as session messages, so they are numbered and resent like other messages. */
+	public boolean publish (Connection connection, Topics.Publication publication) {
+		try {
+			if (publication.count == 0)
+				send(connection, publication.getProtocolMessage());
+			else
+				send(connection, publication.getProtocolMessage(), publication.bytes, 0, publication.count);
+			return true;
+		} catch (IllegalStateException ex) { // Queue full.
+			return false;
+		}
+	}
+
+	public boolean sendBlocking (Connection connection, String message, byte[] bytes, int offset, int count) {
+		// Wait for the handshake, else the message could be sent before it.
+		synchronized (handshakeLock) {
+			while (readyConnection != connection && !connection.closed) {
+				try {
+					handshakeLock.wait(100);
+				} catch (InterruptedException ignored) {
+				}
+			}
+		}
+		if (message == ack) { // Queued by sendAck.
+			ackQueued.set(false);
+			return flushAck(connection);
+		}
+		boolean sessionMessage = isSessionMessage(message);
+		if (sessionMessage) awaitSpace(connection, message.length() + count);
+		if (connection.closed) {
+			// A queued message taken by the write thread as the connection closed is kept to send on the next connection.
+			if (Thread.currentThread() == connection.writeThread && sessionMessage) {
+				Session session = this.session;
+				if (session != null) session.add(message, bytes, offset, count);
+			}
+			return false;
+		}
+		return super.sendBlocking(connection, message, bytes, offset, count);
+	}
+
+	protected void write (Connection connection, String message, byte[] bytes, int offset, int count) throws IOException {
+		if (isSessionMessage(message)) {
+			session.add(message, bytes, offset, count); // Stored first, so it is resent if a write fails.
+			writeAck(connection); // Acks ride along with messages, so they are never stuck behind a full queue.
+		}
+		super.write(connection, message, bytes, offset, count);
+	}
+
+	public void drainSends (Connection connection, OutboundBuffer buffer) {
+		// Queued messages are kept for the next connection.
+	}
+
+	/** Returns the session, or null if a server connection has not yet received the client's handshake. */
+	public Session getSession () {
+		return session;
+	}
+
+	public int getAckEvery () {
+		return ackEvery;
+	}
+
+	/** Sets the number of messages received after which an ack is sent. Default is 64. */
+	public void setAckEvery (int ackEvery) {
+		if (ackEvery < 1) throw new IllegalArgumentException("ackEvery must be > 0: " + ackEvery);
+		this.ackEvery = ackEvery;
+	}
+
+	public int getAckDelay () {
+		return ackDelay;
+	}
+
+	/** Sets how often an ack is sent if messages have been received since the last ack. Takes effect for new connections.
+	 * Default is 50. */
+	public void setAckDelay (int millis) {
+		if (millis <= 0) throw new IllegalArgumentException("millis must be > 0: " + millis);
+		ackDelay = millis;
+	}
+
+	public int getHandshakeTimeout () {
+		return handshakeTimeout;
+	}
+
+	/** Sets how long to wait for the other side's handshake before closing the connection. Default is 10000. */
+	public void setHandshakeTimeout (int millis) {
+		handshakeTimeout = millis;
+	}
+
+	/** The state of a session which is kept across connections. Only the unacknowledged messages are stored. */
+	static public class Session {
+		String id;
+		/** The sequence number of the last message sent, received and acknowledged by the other side. */
+		long sent, received, acked;
+		long ackSent;
+		final ArrayDeque<Entry> unacked = new ArrayDeque();
+		private final int maxBytes;
+		private int bytes;
+		boolean resumed;
+		SessionProtocol protocol;
+		Connection connection;
+		long closedTime;
+
+		Session (String id, int maxBytes) {
+			if (maxBytes <= 0) throw new IllegalArgumentException("maxBytes must be > 0: " + maxBytes);
+			this.id = id;
+			this.maxBytes = maxBytes;
+		}
+
+		/** Stores a message in the retransmit buffer. Senders first wait until it is not {@link #isFull(int) full}. */
+		synchronized void add (String message, byte[] bytes, int offset, int count) {
+			Entry entry = new Entry(message, count == 0 ? null : Arrays.copyOfRange(bytes, offset, offset + count));
+			unacked.addLast(entry);
+			this.bytes += entry.size();
+			sent++;
+		}
+
+		/** Returns true if a message of the size does not fit in the retransmit buffer. A message always fits when it is empty. */
+		synchronized boolean isFull (int size) {
+			return bytes > 0 && bytes + size > maxBytes;
+		}
+
+		/** Removes messages up to and including the sequence number from the retransmit buffer. */
+		void acknowledge (long sequence) {
+			if (sequence <= acked) return;
+			if (sequence > sent) sequence = sent;
+			for (; acked < sequence; acked++)
+				bytes -= unacked.removeFirst().size();
+			notifyAll();
+		}
+
+		/** Starts a new session, keeping the unacknowledged messages to send again as the first messages. */
+		void restart (String id) {
+			this.id = id;
+			sent = unacked.size();
+			acked = 0;
+			received = 0;
+			ackSent = 0;
+		}
+
+		public synchronized String getId () {
+			return id;
+		}
+
+		/** Returns the number of messages sent in this session. */
+		public synchronized long getSentCount () {
+			return sent;
+		}
+
+		/** Returns the number of messages received in this session. */
+		public synchronized long getReceivedCount () {
+			return received;
+		}
+
+		/** Returns the number of messages sent which have not been acknowledged. */
+		public synchronized int getUnacknowledgedCount () {
+			return unacked.size();
+		}
+
+		/** Returns the size of the messages in the retransmit buffer. */
+		public synchronized int getUnacknowledgedBytes () {
+			return bytes;
+		}
+
+		public synchronized String toString () {
+			return id + " sent: " + sent + ", received: " + received + ", acked: " + acked;
+		}
+
+		static class Entry {
+			final String message;
+			final byte[] bytes;
+
+			Entry (String message, byte[] bytes) {
+				this.message = message;
+				this.bytes = bytes;
+			}
+
+			int size () {
+				return message.length() + (bytes == null ? 0 : bytes.length);
+			}
+		}
+	}
+
+	/** The sessions of a server, which are kept for a time after their connection closes so a client can resume them. */
+	static public class Sessions {
+		private final HashMap<String, Session> sessions = new HashMap();
+		private final int expire, maxBytes;
+		private long lastExpire;
+
+		/** @param expire Milliseconds to keep a session after its connection closes.
+		 * @param maxBytes The maximum size of each session's retransmit buffer. */
+		public Sessions (int expire, int maxBytes) {
+			this.expire = expire;
+			this.maxBytes = maxBytes;
+		}
+
+		/** Keeps sessions for 60 seconds with a 1 MB retransmit buffer. */
+		public Sessions () {
+			this(60 * 1000, 1024 * 1024);
+		}
+
+		synchronized Session get (String id) {
+			expire();
+			return sessions.get(id);
+		}
+
+		synchronized Session create () {
+			expire();
+			Session session = new Session(UUID.randomUUID().toString(), maxBytes);
+			sessions.put(session.id, session);
+			return session;
+		}
+
+		/** Called when a connection closes. */
+		synchronized void closed (Session session, Connection connection) {
+			if (session == null) return;
+			synchronized (session) {
+				if (session.connection == connection) session.closedTime = System.currentTimeMillis();
+			}
+		}
+
+		private void expire () {
+			long time = System.currentTimeMillis();
+			if (time - lastExpire < 1000) return;
+			lastExpire = time;
+			for (Iterator<Session> iter = sessions.values().iterator(); iter.hasNext();) {
+				Session session = iter.next();
+				synchronized (session) {
+					if (session.closedTime != 0 && session.connection.closed && time - session.closedTime > expire) iter.remove();
+				}
+			}
+		}
+
+		/** Returns the number of sessions, including those whose connection has closed and have not yet expired. */
+		public synchronized int getSize () {
+			return sessions.size();
+		}
+	}
+}
@@ -26,15 +26,34 @@ import static com.esotericsoftware.tcpserver.Util.*;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.net.ssl.SSLContext;
+
+import com.esotericsoftware.tcpserver.Protocol.ProtocolWrite;
 
 public class TcpClient extends Retry {
 	private String host;
 	private int port;
 	private Protocol protocol;
 
-	private int connectTimeout = 10000, readTimeout;
+	private int connectTimeout = 10000, readTimeout, idleTimeout, heartbeatInterval, reconnectJitter;
 	volatile ClientConnection connection;
+	private volatile OutboundBuffer outbound;
+	private volatile Journal journal;
+	private volatile SSLContext sslContext;
+	private boolean verifyHostname = true;
+	private final Object journalLock = new Object();
+	private boolean replaying;
+	final Metrics metrics;
+	final RateLimit sendLimit = new RateLimit(), receiveLimit = new RateLimit();
+	private final LinkedHashSet<String> subscriptions = new LinkedHashSet();
 	private final Object waitForConnection = new Object();
+	private volatile boolean udpEnabled;
+	private volatile HybridUdpServer udp;
+	private final Object udpLock = new Object();
+	private int udpRegisterInterval = 250, udpRegisterAttempts = 20;
 	final Object waitForClose = new Object();
 
 	public TcpClient (String category, String name) {
@@ -46,10 +65,16 @@ public class TcpClient extends Retry {
 	}
 
 	public TcpClient (String category, String name, String host, int port, Protocol protocol) {
+		this(category, name, host, port, protocol, null);
+	}
+
+	/** @param parentMetrics May be null. */
+	TcpClient (String category, String name, String host, int port, Protocol protocol, Metrics parentMetrics) {
 		super(category, name);
 		this.host = host;
 		this.port = port;
 		this.protocol = protocol;
+		metrics = new Metrics(parentMetrics);
 	}
 
 	protected void retry () {
@@ -64,13 +89,26 @@ public class TcpClient extends Retry {
 		try {
 			socket.connect(new InetSocketAddress(host, port), connectTimeout);
 			socket.setSoTimeout(readTimeout);
-			socket.setTcpNoDelay(false);
+			socket.setTcpNoDelay(true);
 		} catch (Throwable ex) {
 			if (ERROR) error(category, "Unable to connect: " + host + ":" + port);
 			failed();
 			return;
 		}
+		SSLContext sslContext = this.sslContext;
+		if (sslContext != null) {
+			try {
+				socket = Tls.client(sslContext, socket, host, port, connectTimeout, verifyHostname, metrics);
+			} catch (Throwable ex) {
+				if (ERROR) error(category, "TLS handshake failed: " + host + ":" + port, ex);
+				closeQuietly(socket);
+				failed();
+				return;
+			}
+		}
 
+		ClientConnection connection;
+		Journal journal = this.journal;
 		synchronized (runLock) {
 			if (!running) {
 				closeQuietly(socket);
@@ -81,24 +119,66 @@ public class TcpClient extends Retry {
 			if (INFO) info(category, "Connected: " + socket.getInetAddress() + ":" + socket.getPort());
 
 			try {
-				connection = new ClientConnection(category, name, socket, protocol);
+				connection = new ClientConnection(category, name, socket, protocol, metrics, sendLimit, receiveLimit);
+				connection.setIdleTimeout(idleTimeout);
+				connection.setHeartbeatInterval(heartbeatInterval);
 				newConnection(connection);
+				if (journal != null) {
+					// Set before the connection is visible, so sendJournaled leaves new messages for the replay.
+					synchronized (journalLock) {
+						replaying = true;
+					}
+				}
+				this.connection = connection;
 				connection.start();
 			} catch (IOException ex) {
-				connection = null;
+				this.connection = null;
+				synchronized (journalLock) {
+					replaying = false;
+				}
 				if (ERROR) error(category, "Error configuring client connection.", ex);
 				failed();
 				return;
 			}
 
+			synchronized (subscriptions) {
+				for (String topic : subscriptions)
+					connection.subscribe(topic);
+			}
+		}
+
+		// Replayed without the run lock, which would block stop() until the replay is done. Stopping closes the connection, which
+		// ends the replay.
+		if (journal != null) replay(journal, connection);
+
+		synchronized (runLock) {
+			if (!running) return;
+			if (journal == null) {
+				OutboundBuffer outbound = this.outbound;
+				if (outbound != null) outbound.flush(connection);
+			}
+
 			connected(connection);
 			synchronized (waitForConnection) {
 				waitForConnection.notifyAll();
 			}
+
+			// When scheduled, retry is resumed and disconnected is called when the connection closes.
+			if (isScheduled()) {
+				pause();
+				return;
+			}
 		}
 
+		connection = this.connection;
 		waitForClose(0);
-		disconnected(connection);
+		if (connection != null) disconnected(connection);
+
+		int delay = resumeDelay();
+		if (delay > 0) {
+			if (DEBUG) debug(category, "Waiting before reconnecting: " + delay + " ms");
+			sleep(delay);
+		}
 	}
 
 	protected void stopped () {
@@ -107,9 +187,73 @@ public class TcpClient extends Retry {
 			connection.close();
 			this.connection = null;
 		}
+		synchronized (udpLock) {
+			if (udp != null) {
+				udp.stop();
+				udp = null;
+			}
+		}
+	}
+
+	/** Called when the server offers a UDP port and token. Starts the UDP server, if needed, and sends registrations until the
+	 * server answers one or the attempts run out. */
+	void udpOffered (ClientConnection connection, int port, long token) {
+		if (!udpEnabled) {
+			if (DEBUG) debug(category, "UDP not enabled, offer ignored.");
+			return;
+		}
+		HybridUdpServer udp;
+		synchronized (udpLock) {
+			if (!running) return;
+			udp = this.udp;
+			if (udp == null) {
+				udp = new HybridUdpServer(category, name + "Udp", 0, false);
+				udp.start();
+				this.udp = udp;
+			}
+		}
+		if (connection.udp != null) connection.udp.connections.remove(connection.udpToken, connection);
+		connection.udpToken = token;
+		connection.udpAddress = new InetSocketAddress(connection.getRemoteAddress(), port);
+		connection.udpReady = false;
+		connection.udp = udp;
+		udp.connections.put(token, connection);
+		if (DEBUG) debug(category, "UDP offered: " + connection.getRemoteAddress().getHostAddress() + ":" + port);
+
+		HybridUdpServer registerUdp = udp;
+		int attempts = udpRegisterAttempts;
+		synchronized (connection.timerLock) {
+			if (connection.udpTimer != null) connection.udpTimer.cancel();
+			if (connection.closed) return;
+			connection.udpTimer = TimerWheel.getShared().schedule(new Runnable() {
+				int count;
+
+				public void run () {
+					if (connection.udpReady || connection.closed || connection.udpToken != token) {
+						cancel();
+						return;
+					}
+					if (count++ == attempts) {
+						if (WARN) warn(category, "UDP registration not answered: " + connection.udpAddress);
+						cancel();
+						return;
+					}
+					registerUdp.send(connection, HybridUdpServer.register, null, null, 0, 0);
+				}
+
+				void cancel () {
+					synchronized (connection.timerLock) {
+						if (connection.udpTimer != null) connection.udpTimer.cancel();
+					}
+				}
+			}, 0, udpRegisterInterval);
+		}
 	}
 
 	public boolean send (String message) {
+		if (journal != null) return sendJournaled(message, null, 0, 0) != 0;
+		OutboundBuffer outbound = this.outbound;
+		if (outbound != null) return outbound.send(getConnection(), message, null, 0, 0);
 		Connection connection = getConnection();
 		if (connection == null) {
 			if (DEBUG) debug(category, "Unable to send, not connected: " + message);
@@ -124,6 +268,9 @@ public class TcpClient extends Retry {
 	}
 
 	public boolean send (String message, byte[] bytes, int offset, int count) {
+		if (journal != null) return sendJournaled(message, bytes, offset, count) != 0;
+		OutboundBuffer outbound = this.outbound;
+		if (outbound != null) return outbound.send(getConnection(), message, bytes, offset, count);
 		Connection connection = getConnection();
 		if (connection == null) {
 			if (DEBUG) debug(category, "Unable to send, not connected: " + message);
@@ -133,6 +280,67 @@ public class TcpClient extends Retry {
 		return true;
 	}
 
+	/** Appends the message to the {@link #setJournal(Journal) journal}, then sends it with its sequence number if connected
+	 * and the journal is not being replayed. The server gets the sequence from {@link Connection#getSequence()} and should reply
+	 * with it, so the acknowledgement can be passed to {@link Journal#ack(long)}.
+	 * @param bytes May be null if count is 0.
+	 * @return The journal sequence number, or 0 if no journal is set or the message could not be appended. */
+	public long sendJournaled (String message, byte[] bytes, int offset, int count) {
+		Journal journal = this.journal;
+		if (journal == null) {
+			if (DEBUG) debug(category, "Unable to send, no journal: " + message);
+			return 0;
+		}
+		synchronized (journalLock) {
+			long sequence;
+			try {
+				sequence = journal.append(message, bytes, offset, count);
+			} catch (IOException ex) {
+				if (ERROR) error(category, "Unable to append to journal: " + message, ex);
+				return 0;
+			}
+			Connection connection = getConnection();
+			if (connection != null && !replaying) {
+				if (connection.protocol instanceof ProtocolWrite)
+					((ProtocolWrite)connection.protocol).sendSequenced(connection, sequence, message, bytes, offset, count);
+				else
+					connection.send(message, bytes, offset, count);
+			}
+			return sequence;
+		}
+	}
+
+	/** Sends all unacknowledged journal messages, blocking until each is written. Messages sent meanwhile are appended and sent
+	 * by the replay. Called with replaying already set.
+	 * @return false if the connection closed before all messages were sent. */
+	private boolean replay (Journal journal, Connection connection) {
+		Journal.Reader reader = journal.readUnacknowledged();
+		int count = 0;
+		try {
+			while (true) {
+				synchronized (journalLock) {
+					if (!reader.next()) {
+						replaying = false;
+						return true;
+					}
+				}
+				boolean sent = connection.protocol instanceof ProtocolWrite
+					? ((ProtocolWrite)connection.protocol).sendSequencedBlocking(connection, reader.getSequence(), reader.getMessage(),
+						reader.getBytes(), 0, reader.getCount())
+					: connection.sendBlocking(reader.getMessage(), reader.getBytes(), 0, reader.getCount());
+				if (!sent) {
+					synchronized (journalLock) {
+						replaying = false;
+					}
+					return false;
+				}
+				count++;
+			}
+		} finally {
+			if (DEBUG && count > 0) debug(category, "Replayed journal messages: " + count);
+		}
+	}
+
 	public boolean sendBlocking (String message) {
 		Connection connection = getConnection();
 		if (connection == null) {
@@ -155,6 +363,26 @@ public class TcpClient extends Retry {
 		return connection.sendBlocking(message, bytes, offset, count);
 	}
 
+	/** Sends a message to the server as a single UDP datagram.
+	 * @return false if not connected, UDP was not negotiated or the datagram could not be sent.
+	 * @see Connection#sendUdp(String, byte[], int, int) */
+	public boolean sendUdp (String message) {
+		return sendUdp(message, null, 0, 0);
+	}
+
+	public boolean sendUdp (String message, byte... bytes) {
+		return sendUdp(message, bytes, 0, bytes.length);
+	}
+
+	public boolean sendUdp (String message, byte[] bytes, int offset, int count) {
+		Connection connection = getConnection();
+		if (connection == null) {
+			if (DEBUG) debug(category, "Unable to send, not connected: " + message);
+			return false;
+		}
+		return connection.sendUdp(message, bytes, offset, count);
+	}
+
 	/** Called when a new connection has been created, before it is started. */
 	public void newConnection (Connection connection) {
 	}
@@ -166,9 +394,59 @@ public class TcpClient extends Retry {
 	public void disconnected (Connection connection) {
 	}
 
+	/** Called on the {@link TimerWheel#getShared() shared timer wheel} thread when no messages have been received for the
+	 * {@link #setIdleTimeout(int) idle timeout}. The default implementation closes the connection, causing a reconnect. */
+	public void idle (Connection connection) {
+		((ClientConnection)connection).closeIdle();
+	}
+
+	/** Called when a message is received, with the connection it was received on, which may not be {@link #getConnection()}
+	 * while reconnecting. By default, calls {@link #receive(String, String, byte[], int)}. */
+	public void receive (Connection connection, String event, String payload, byte[] bytes, int count) {
+		receive(event, payload, bytes, count);
+	}
+
 	public void receive (String event, String payload, byte[] bytes, int count) {
 	}
 
+	/** Called when a message published to a {@link #subscribe(String) subscribed} topic is received, with the connection it was
+	 * received on. By default, calls {@link #published(String, String, String, byte[], int)}. */
+	public void published (Connection connection, String topic, String event, String payload, byte[] bytes, int count) {
+		published(topic, event, payload, bytes, count);
+	}
+
+	/** Called when a message published to a {@link #subscribe(String) subscribed} topic is received. By default, calls
+	 * {@link #receive(String, String, byte[], int)}. */
+	public void published (String topic, String event, String payload, byte[] bytes, int count) {
+		receive(event, payload, bytes, count);
+	}
+
+	/** Subscribes to messages the server publishes to the topic. Subscriptions are sent again after reconnecting. A topic ending
+	 * with <code>*</code> is a prefix.
+	 * @see TcpServer#publish(String, String, byte[], int, int) */
+	public void subscribe (String topic) {
+		Topics.checkTopic(topic);
+		synchronized (subscriptions) {
+			if (!subscriptions.add(topic)) return;
+			Connection connection = getConnection();
+			if (connection != null) connection.subscribe(topic);
+		}
+	}
+
+	public void unsubscribe (String topic) {
+		synchronized (subscriptions) {
+			if (!subscriptions.remove(topic)) return;
+			Connection connection = getConnection();
+			if (connection != null) connection.unsubscribe(topic);
+		}
+	}
+
+	public String[] getSubscriptions () {
+		synchronized (subscriptions) {
+			return subscriptions.toArray(new String[subscriptions.size()]);
+		}
+	}
+
 	/** Returns the connection to the server, or null if not connected. */
 	public Connection getConnection () {
 		ClientConnection connection = this.connection;
@@ -223,6 +501,22 @@ public class TcpClient extends Retry {
 		}
 	}
 
+	/** Returns the metrics aggregated for all connections, including those before reconnecting. */
+	public Metrics getMetrics () {
+		return metrics;
+	}
+
+	/** Returns the limit for messages written, which applies across reconnects. */
+	public RateLimit getSendLimit () {
+		return sendLimit;
+	}
+
+	/** Returns the limit for messages read, which applies across reconnects. When exceeded, reading is paused so TCP pushes back
+	 * on the server. */
+	public RateLimit getReceiveLimit () {
+		return receiveLimit;
+	}
+
 	public String getHost () {
 		return host;
 	}
@@ -263,21 +557,167 @@ public class TcpClient extends Retry {
 		readTimeout = millis;
 	}
 
+	public int getIdleTimeout () {
+		return idleTimeout;
+	}
+
+	/** Sets the {@link Connection#setIdleTimeout(int) idle timeout} for new connections. If no messages are received for this
+	 * long, {@link #idle(Connection)} is called.
+	 * @param millis 0 to disable. */
+	public void setIdleTimeout (int millis) {
+		idleTimeout = millis;
+	}
+
+	public int getHeartbeatInterval () {
+		return heartbeatInterval;
+	}
+
+	/** Sets the {@link Connection#setHeartbeatInterval(int) heartbeat interval} for new connections. If no messages are sent for
+	 * this long, a heartbeat is sent.
+	 * @param millis 0 to disable. */
+	public void setHeartbeatInterval (int millis) {
+		heartbeatInterval = millis;
+	}
+
+	int resumeDelay () {
+		int delay = reconnectJitter > 0 ? ThreadLocalRandom.current().nextInt(reconnectJitter + 1) : 0;
+		return Math.max(delay, takeRetryAfter());
+	}
+
+	public OutboundBuffer getOutboundBuffer () {
+		return outbound;
+	}
+
+	/** Sets a buffer for messages sent with {@link #send(String)} while not connected, which are sent in order after
+	 * reconnecting, before {@link #connected(Connection)} is called. Messages sent while the buffer is not empty are buffered
+	 * after it, so order is kept. {@link #sendBlocking(String)} is not buffered.
+	 * @param outbound May be null to not buffer (the default), messages sent while not connected are dropped. */
+	public void setOutboundBuffer (OutboundBuffer outbound) {
+		this.outbound = outbound;
+	}
+
+	public Journal getJournal () {
+		return journal;
+	}
+
+	/** Sets a journal which {@link #send(String)} appends each message to before sending it, so messages survive reconnects and
+	 * process restarts. After connecting, all messages which have not been {@link Journal#ack(long) acknowledged} are sent again
+	 * before {@link #connected(Connection)} is called, so messages are delivered at least once. Each message is sent with its
+	 * sequence number, see {@link #sendJournaled(String, byte[], int, int)}. The peer's acknowledgements must be passed to
+	 * {@link Journal#ack(long)}. When a journal is set, the {@link #setOutboundBuffer(OutboundBuffer) outbound
+	 * buffer} is not used and messages still queued when the connection closes are discarded, as the replay sends them.
+	 * @param journal May be null (the default). */
+	public void setJournal (Journal journal) {
+		this.journal = journal;
+	}
+
+	public int getReconnectJitter () {
+		return reconnectJitter;
+	}
+
+	/** Sets the maximum random delay before reconnecting after a connection is closed, so many clients disconnected at the same
+	 * time, eg by a server restart, don't reconnect in lockstep. A {@link #retryAfter(int) retry after} delay takes precedence if
+	 * longer. Default is 0. */
+	public void setReconnectJitter (int millis) {
+		reconnectJitter = millis;
+	}
+
+	public SSLContext getSslContext () {
+		return sslContext;
+	}
+
+	/** Sets the context used to encrypt connections with TLS. The context's session cache allows reconnects to resume the previous
+	 * session rather than do a full handshake, see {@link Tls}. Handshake times are recorded in the {@link #getMetrics() metrics}. Takes effect on the next
+	 * connect.
+	 * @param sslContext May be null to not use TLS (the default). */
+	public void setSslContext (SSLContext sslContext) {
+		this.sslContext = sslContext;
+	}
+
+	public boolean getVerifyHostname () {
+		return verifyHostname;
+	}
+
+	/** If true, the server's certificate must match the host when using TLS. Default is true. */
+	public void setVerifyHostname (boolean verifyHostname) {
+		this.verifyHostname = verifyHostname;
+	}
+
+	public boolean getUdp () {
+		return udpEnabled;
+	}
+
+	/** If true, a UDP port and token offered by the server are used so messages can also be sent as unreliable datagrams
+	 * using {@link #sendUdp(String, byte[], int, int)}. Datagrams from the server are passed to
+	 * {@link #receive(String, String, byte[], int)} on the UDP thread. Default is false.
+	 * @see TcpServer#setUdpPort(int) */
+	public void setUdp (boolean udp) {
+		udpEnabled = udp;
+	}
+
+	/** Sets how often a UDP registration is sent after the server offers UDP, until the server answers. Default is 250 ms and 20
+	 * attempts. */
+	public void setUdpRegistration (int intervalMillis, int attempts) {
+		udpRegisterInterval = intervalMillis;
+		udpRegisterAttempts = attempts;
+	}
+
+	/** Returns the server which sends and receives datagrams for the connection, or null if UDP has not been offered. */
+	public HybridUdpServer getUdpServer () {
+		return udp;
+	}
+
 	class ClientConnection extends Connection {
-		public ClientConnection (String category, String name, Socket socket, Protocol protocol) throws IOException {
-			super(category, name, socket, protocol);
+		public ClientConnection (String category, String name, Socket socket, Protocol protocol, Metrics metrics, RateLimit sendLimit,
+			RateLimit receiveLimit) throws IOException {
+			super(category, name, socket, protocol, metrics, sendLimit, receiveLimit);
 		}
 
 		public void receive (String event, String payload, byte[] bytes, int count) {
-			TcpClient.this.receive(event, payload, bytes, count);
+			TcpClient.this.receive(this, event, payload, bytes, count);
+		}
+
+		public void published (String topic, String event, String payload, byte[] bytes, int count) {
+			TcpClient.this.published(this, topic, event, payload, bytes, count);
+		}
+
+		protected void idle () {
+			TcpClient.this.idle(this);
+		}
+
+		void udpOffered (int port, long token) {
+			TcpClient.this.udpOffered(this, port, token);
+		}
+
+		void retryAfter (int millis) {
+			if (DEBUG) debug(category, "Server advised retry after: " + millis + " ms");
+			TcpClient.this.retryAfter(millis);
+		}
+
+		void closeIdle () {
+			super.idle();
 		}
 
 		public void close () {
+			boolean wasClosed = closed;
 			super.close();
-			connection = null;
+			if (connection == this) connection = null;
+			if (!wasClosed && protocol instanceof ProtocolWrite) {
+				OutboundBuffer outbound = TcpClient.this.outbound;
+				if (journal != null) {
+					// Discarded, as the journal replays them after reconnecting. Otherwise the new connection's write thread would
+					// send them along with the replay, duplicated and out of order.
+					((ProtocolWrite)protocol).drainSends(this, new OutboundBuffer(1, OutboundBuffer.Overflow.dropNewest));
+				} else if (outbound != null)
+					((ProtocolWrite)protocol).drainSends(this, outbound);
+			}
 			synchronized (waitForClose) {
 				waitForClose.notifyAll();
 			}
+			if (!wasClosed && isScheduled()) {
+				disconnected(this);
+				resume();
+			}
 		}
 	}
 }
@@ -0,0 +1,210 @@
+/* Copyright (c) 2017-2021, Esoteric Software
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following
+ * conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.esotericsoftware.tcpserver;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Manages a number of {@link TcpClient TCP clients} connected to the same server, spreading sends across the connections so a
+ * single write thread and TCP stream don't limit throughput. Each member reconnects independently, while sends use the members
+ * which remain connected.
+ * <p>
+ * Messages sent on different connections may arrive out of order. Sends with the same key use the same connection, so they
+ * arrive in order as long as that connection stays connected. */
+public class TcpClientPool extends ClientGroup {
+	final String host;
+	final int port, size;
+	private volatile TcpClient[] clients;
+	private final AtomicInteger next = new AtomicInteger();
+	private Selection selection = Selection.roundRobin;
+
+	public TcpClientPool (String category, String name, String host, int port, int size) {
+		super(category, name);
+		if (size < 1) throw new IllegalArgumentException("size must be > 0: " + size);
+		this.host = host;
+		this.port = port;
+		this.size = size;
+	}
+
+	/** Returns the members, creating them the first time. */
+	TcpClient[] clients () {
+		TcpClient[] clients = this.clients;
+		if (clients != null) return clients;
+		synchronized (this) {
+			if (this.clients == null) {
+				clients = new TcpClient[size];
+				for (int i = 0; i < size; i++)
+					clients[i] = newClient(i, host, port);
+				this.clients = clients;
+			}
+			return this.clients;
+		}
+	}
+
+	/** Starts all members connecting. */
+	public void start () {
+		for (TcpClient client : clients())
+			client.start();
+	}
+
+	/** Stops all members, closing their connections. */
+	public void stop () {
+		for (TcpClient client : clients())
+			client.stop();
+	}
+
+	/** Returns a connected member's connection chosen by the {@link #setSelection(Selection) selection}, or null if no members are
+	 * connected. */
+	public Connection getConnection () {
+		TcpClient[] clients = clients();
+		int n = clients.length, start = (next.getAndIncrement() & 0x7fffffff) % n;
+		if (selection == Selection.roundRobin) {
+			for (int i = 0; i < n; i++) {
+				Connection connection = clients[(start + i) % n].getConnection();
+				if (connection != null) return connection;
+			}
+			return null;
+		}
+		Connection best = null;
+		int bestSize = Integer.MAX_VALUE;
+		for (int i = 0; i < n; i++) {
+			Connection connection = clients[(start + i) % n].getConnection();
+			if (connection == null) continue;
+			int size = connection.getSendQueueSize();
+			if (size < bestSize) {
+				best = connection;
+				if (size == 0) break;
+				bestSize = size;
+			}
+		}
+		return best;
+	}
+
+	/** Returns the connection for the key, which is the same for the key as long as that member stays connected. If it is not
+	 * connected, the next connected member is used. Returns null if no members are connected. */
+	public Connection getConnection (Object key) {
+		TcpClient[] clients = clients();
+		int hash = key.hashCode();
+		hash ^= hash >>> 16;
+		int n = clients.length, start = (hash & 0x7fffffff) % n;
+		for (int i = 0; i < n; i++) {
+			Connection connection = clients[(start + i) % n].getConnection();
+			if (connection != null) return connection;
+		}
+		return null;
+	}
+
+	public boolean send (String message) {
+		return send(getConnection(), message, null, 0, 0);
+	}
+
+	public boolean send (String message, byte... bytes) {
+		return send(getConnection(), message, bytes, 0, bytes.length);
+	}
+
+	public boolean send (String message, byte[] bytes, int offset, int count) {
+		return send(getConnection(), message, bytes, offset, count);
+	}
+
+	/** Sends using the {@link #getConnection(Object) connection for the key}. */
+	public boolean sendKeyed (Object key, String message) {
+		return send(getConnection(key), message, null, 0, 0);
+	}
+
+	/** Sends using the {@link #getConnection(Object) connection for the key}. */
+	public boolean sendKeyed (Object key, String message, byte[] bytes, int offset, int count) {
+		return send(getConnection(key), message, bytes, offset, count);
+	}
+
+	public boolean sendBlocking (String message) {
+		return sendBlocking(getConnection(), message, null, 0, 0);
+	}
+
+	public boolean sendBlocking (String message, byte... bytes) {
+		return sendBlocking(getConnection(), message, bytes, 0, bytes.length);
+	}
+
+	public boolean sendBlocking (String message, byte[] bytes, int offset, int count) {
+		return sendBlocking(getConnection(), message, bytes, offset, count);
+	}
+
+	/** Sends using the {@link #getConnection(Object) connection for the key}, blocking until sending is complete. */
+	public boolean sendBlockingKeyed (Object key, String message) {
+		return sendBlocking(getConnection(key), message, null, 0, 0);
+	}
+
+	/** Sends using the {@link #getConnection(Object) connection for the key}, blocking until sending is complete. */
+	public boolean sendBlockingKeyed (Object key, String message, byte[] bytes, int offset, int count) {
+		return sendBlocking(getConnection(key), message, bytes, offset, count);
+	}
+
+	/** Waits until all members are connected.
+	 * @param millis 0 to wait forever.
+	 * @return false if the time elapsed before all members were connected. */
+	public boolean waitForConnection (long millis) {
+		TcpClient[] clients = clients();
+		long until = System.currentTimeMillis() + millis;
+		for (TcpClient client : clients) {
+			long wait = 0;
+			if (millis > 0) {
+				wait = until - System.currentTimeMillis();
+				if (wait <= 0) return getConnectedCount() == clients.length;
+			}
+			if (!client.waitForConnection(wait)) return false;
+		}
+		return true;
+	}
+
+	/** Returns the number of members which are connected. */
+	public int getConnectedCount () {
+		int count = 0;
+		for (TcpClient client : clients())
+			if (client.isConnected()) count++;
+		return count;
+	}
+
+	/** Returns the members, which can be configured before {@link #start()}. The members are created by
+	 * {@link #newClient(int, String, int)} the first time they are needed. */
+	public TcpClient[] getClients () {
+		return clients();
+	}
+
+	public int getSize () {
+		return size;
+	}
+
+	public Selection getSelection () {
+		return selection;
+	}
+
+	/** Sets how {@link #getConnection()} chooses a member. Default is {@link Selection#roundRobin}. */
+	public void setSelection (Selection selection) {
+		if (selection == null) throw new IllegalArgumentException("selection cannot be null.");
+		this.selection = selection;
+	}
+
+	static public enum Selection {
+		/** Each send uses the next connected member. */
+		roundRobin,
+		/** Each send uses the connected member with the fewest messages waiting to be written. */
+		leastQueued
+	}
+}
@@ -24,16 +24,47 @@ import static com.esotericsoftware.minlog.Log.*;
 import static com.esotericsoftware.tcpserver.Util.*;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.SocketException;
+import java.util.HashMap;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.net.ssl.SSLContext;
+
+import com.esotericsoftware.tcpserver.Protocol.ProtocolWrite;
 
 abstract public class TcpServer extends Retry {
 	final CopyOnWriteArrayList<Connection> connections = new CopyOnWriteArrayList();
+	final Metrics metrics = new Metrics();
+	final RateLimit sendLimit = new RateLimit(), receiveLimit = new RateLimit();
+	final Topics topics = new Topics();
+	private volatile double connectionSendMessages, connectionSendBytes, connectionReceiveMessages, connectionReceiveBytes;
 	private int port;
-	private ServerSocket server;
+	private volatile ServerSocket[] servers;
+	private int acceptors = 1, setupThreads, backlog;
+	private boolean reusePort;
+	private volatile SSLContext sslContext;
+	private int handshakeTimeout = 10000;
+	private boolean needClientAuth;
+
+	private int idleTimeout, heartbeatInterval;
+	private int udpPort;
+	private volatile HybridUdpServer udp;
+	private int maxConnections, maxConnectionsPerAddress, admitted;
+	private final HashMap<InetAddress, int[]> addressCounts = new HashMap();
+	private volatile TokenBucket connectionRate;
+	private volatile byte[] rejectFrame;
+	private final AtomicLongArray rejected = new AtomicLongArray(Rejection.values().length);
 
 	public TcpServer (String category, String name) {
 		this(category, name, 0);
@@ -45,53 +76,235 @@ abstract public class TcpServer extends Retry {
 	}
 
 	protected void retry () {
+		int acceptors = Math.max(1, this.acceptors);
+		ServerSocket[] servers = new ServerSocket[reusePort ? acceptors : 1];
 		try {
-			server = newProtocol().newServerSocket(port);
+			for (int i = 0; i < servers.length; i++) {
+				servers[i] = backlog > 0 || reusePort ? newProtocol().newServerSocket(port, backlog, reusePort)
+					: newProtocol().newServerSocket(port);
+			}
 		} catch (Exception ex) {
 			if (ERROR) error(category, "Unable to open TCP server socket.", ex);
+			for (ServerSocket server : servers)
+				closeQuietly(server);
 			failed();
 			return;
 		}
+		this.servers = servers;
+
+		if (udpPort > 0 && udp == null) {
+			HybridUdpServer udp = new HybridUdpServer(category, name + "Udp", udpPort, true);
+			udp.start();
+			this.udp = udp;
+		}
+
+		ThreadFactory setupFactory = new ThreadFactory() {
+			public Thread newThread (Runnable runnable) {
+				Thread thread = new Thread(runnable, name + "Setup");
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+		ThreadPoolExecutor setupExecutor;
+		boolean tlsOnly = setupThreads == 0;
+		if (tlsOnly) {
+			// Without setup threads, TLS handshakes still need a thread each so a silent client can't stall accepting.
+			setupExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue(), setupFactory);
+		} else {
+			setupExecutor = new ThreadPoolExecutor(setupThreads, setupThreads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue(),
+				setupFactory);
+		}
+		try {
+			if (INFO) {
+				info(category, "Listening on port: TCP " + port
+					+ (acceptors > 1 ? " (" + acceptors + " acceptors, " + servers.length + " sockets)" : ""));
+			}
+			Thread[] threads = new Thread[acceptors - 1];
+			for (int i = 0; i < threads.length; i++) {
+				ServerSocket server = servers[(i + 1) % servers.length];
+				Executor executor = setupExecutor;
+				threads[i] = new Thread(name + "Accept" + (i + 1)) {
+					public void run () {
+						accept(servers, server, executor, tlsOnly);
+					}
+				};
+				threads[i].setDaemon(daemon);
+				threads[i].start();
+			}
+			accept(servers, servers[0], setupExecutor, tlsOnly);
+			for (Thread thread : threads) {
+				while (thread.isAlive()) {
+					try {
+						thread.join();
+					} catch (InterruptedException ignored) {
+					}
+				}
+			}
+		} finally {
+			for (Runnable runnable : setupExecutor.shutdownNow()) {
+				Socket socket = ((Setup)runnable).socket;
+				closeQuietly(socket);
+				release(socket.getInetAddress());
+			}
+			// Wait for setups in progress, which close their connection if the server was stopped meanwhile.
+			try {
+				if (!setupExecutor.awaitTermination(handshakeTimeout + 1000, TimeUnit.MILLISECONDS)) {
+					if (WARN) warn(category, "Timeout waiting for connection setup threads.");
+				}
+			} catch (InterruptedException ignored) {
+			}
+			if (INFO) info(category, "Server stopped: TCP " + port);
+		}
+	}
+
+	/** Accepts sockets until the server is stopped or an error occurs, which closes all the server sockets.
+	 * @param tlsOnly If true, only sockets needing a TLS handshake are set up using the executor. */
+	void accept (ServerSocket[] servers, ServerSocket server, Executor setupExecutor, boolean tlsOnly) {
 		try {
-			if (INFO) info(category, "Listening on port: TCP " + port);
 			while (running) {
 				Socket socket;
 				try {
 					socket = server.accept();
-				} catch (SocketException ex) {
-					if (!running) return; // Assume server socket was closed normally.
+				} catch (IOException ex) { // SocketException, or ClosedChannelException for SO_REUSEPORT sockets.
+					if (!running || server.isClosed()) return; // Assume server socket was closed normally.
 					throw ex;
 				}
 				success();
-				try {
-					ServerConnection connection = new ServerConnection(category, name, socket, newProtocol());
-					connections.add(connection);
-					newConnection(connection);
-					if (INFO) info(category, "Client connected: " + socket.getInetAddress() + ":" + socket.getPort());
-					connection.start();
-					connected(connection);
-				} catch (Exception ex) {
-					if (ERROR) error(category, "Error configuring client connection.", ex);
+				Rejection rejection = admit(socket);
+				if (rejection != null) {
+					reject(socket, rejection);
+					continue;
 				}
+				if (tlsOnly && sslContext == null)
+					setup(socket);
+				else
+					setupExecutor.execute(new Setup(socket));
 			}
 		} catch (Exception ex) {
 			if (ERROR) error(category, "Unexpected server error.", ex);
-			closeQuietly(server);
+			for (ServerSocket other : servers)
+				closeQuietly(other);
 			failed();
-		} finally {
-			if (INFO) info(category, "Server stopped: TCP " + port);
 		}
 	}
 
+	/** Creates and starts a connection for an accepted socket. */
+	void setup (Socket socket) {
+		if (!running) {
+			closeQuietly(socket);
+			release(socket.getInetAddress());
+			return;
+		}
+		SSLContext sslContext = this.sslContext;
+		if (sslContext != null) {
+			try {
+				socket = Tls.server(sslContext, socket, handshakeTimeout, needClientAuth, metrics);
+			} catch (Exception ex) {
+				if (DEBUG) debug(category, "TLS handshake failed: " + socket.getInetAddress() + ":" + socket.getPort(), ex);
+				closeQuietly(socket);
+				release(socket.getInetAddress());
+				return;
+			}
+		}
+		ServerConnection connection = null;
+		try {
+			connection = new ServerConnection(category, name, socket, newProtocol(), metrics, sendLimit, receiveLimit);
+			connection.setIdleTimeout(idleTimeout);
+			connection.setHeartbeatInterval(heartbeatInterval);
+			connections.add(connection);
+			if (!running) { // Stopped during setup, after stopped() closed the connections.
+				connection.close();
+				return;
+			}
+			connection.sendLimit.set(connectionSendMessages, connectionSendBytes);
+			connection.receiveLimit.set(connectionReceiveMessages, connectionReceiveBytes);
+			newConnection(connection);
+			if (INFO) info(category, "Client connected: " + socket.getInetAddress() + ":" + socket.getPort());
+			connection.start();
+			HybridUdpServer udp = this.udp;
+			if (udp != null) offerUdp(connection, udp);
+			connected(connection);
+		} catch (Exception ex) {
+			if (ERROR) error(category, "Error configuring client connection.", ex);
+			if (connection == null) {
+				closeQuietly(socket);
+				release(socket.getInetAddress());
+			} else
+				connection.close();
+		}
+	}
+
+	/** Assigns the connection a UDP token and sends it with the UDP port, so the client can send datagrams. */
+	void offerUdp (Connection connection, HybridUdpServer udp) {
+		udp.add(connection);
+		Protocol protocol = connection.protocol;
+		if (connection.closed || !(protocol instanceof ProtocolWrite)
+			|| !((ProtocolWrite)protocol).offerUdp(connection, udp.port, connection.udpToken)) {
+			if (DEBUG && !connection.closed) debug(category, "UDP not supported by the protocol.");
+			udp.connections.remove(connection.udpToken, connection);
+			connection.udp = null;
+		}
+	}
+
+	/** Called on the acceptor thread for each accepted socket, before a connection or protocol is created for it. If admitted,
+	 * the socket is counted until its connection is closed.
+	 * @return null to admit the socket, else the reason it was rejected. */
+	Rejection admit (Socket socket) {
+		InetAddress address = socket.getInetAddress();
+		synchronized (addressCounts) {
+			if (maxConnections > 0 && admitted >= maxConnections) return Rejection.maxConnections;
+			int[] count = addressCounts.get(address);
+			if (maxConnectionsPerAddress > 0 && count != null && count[0] >= maxConnectionsPerAddress)
+				return Rejection.maxConnectionsPerAddress;
+			TokenBucket connectionRate = this.connectionRate;
+			if (connectionRate != null && !connectionRate.tryTake(1)) return Rejection.connectionRate;
+			if (count == null) addressCounts.put(address, count = new int[1]);
+			count[0]++;
+			admitted++;
+		}
+		return null;
+	}
+
+	void release (InetAddress address) {
+		synchronized (addressCounts) {
+			admitted--;
+			int[] count = addressCounts.get(address);
+			if (count != null && --count[0] <= 0) addressCounts.remove(address);
+		}
+	}
+
+	/** Writes the {@link #setRejectFrame(byte[]) reject frame}, if any, and closes the socket. */
+	void reject (Socket socket, Rejection rejection) {
+		rejected.incrementAndGet(rejection.ordinal());
+		if (DEBUG) debug(category, "Client rejected, " + rejection + ": " + socket.getInetAddress() + ":" + socket.getPort());
+		byte[] rejectFrame = this.rejectFrame;
+		if (rejectFrame != null) {
+			try {
+				socket.getOutputStream().write(rejectFrame);
+			} catch (IOException ignored) {
+			}
+		}
+		closeQuietly(socket);
+	}
+
 	protected Protocol newProtocol () {
 		return new DefaultProtocol();
 	}
 
 	protected void stopped () {
-		for (int i = connections.size() - 1; i >= 0; i--)
-			connections.get(i).close();
+		for (Connection connection : connections) // Iterates a snapshot, closing removes from the list.
+			connection.close();
 		connections.clear();
-		closeQuietly(server);
+		ServerSocket[] servers = this.servers;
+		if (servers != null) {
+			for (ServerSocket server : servers)
+				closeQuietly(server);
+		}
+		HybridUdpServer udp = this.udp;
+		if (udp != null) {
+			udp.stop();
+			this.udp = null;
+		}
 	}
 
 	/** Called when a new connection has been created, before it is started. */
@@ -105,10 +318,63 @@ abstract public class TcpServer extends Retry {
 	public void disconnected (Connection connection) {
 	}
 
+	/** Called on the {@link TimerWheel#getShared() shared timer wheel} thread when no messages have been received for the
+	 * {@link #setIdleTimeout(int) idle timeout}. The default implementation closes the connection. */
+	public void idle (Connection connection) {
+		((ServerConnection)connection).closeIdle();
+	}
+
 	public List<Connection> getConnections () {
 		return connections;
 	}
 
+	/** Returns the metrics aggregated for all connections. */
+	public Metrics getMetrics () {
+		return metrics;
+	}
+
+	/** Returns the limit for messages written by all connections combined. Each connection also has its own
+	 * {@link Connection#getSendLimit() limit}. */
+	public RateLimit getSendLimit () {
+		return sendLimit;
+	}
+
+	/** Returns the limit for messages read by all connections combined. Each connection also has its own
+	 * {@link Connection#getReceiveLimit() limit}. */
+	public RateLimit getReceiveLimit () {
+		return receiveLimit;
+	}
+
+	/** Sets the {@link Connection#getSendLimit() send limit} for each current and new connection, with bursts of up to one
+	 * second.
+	 * @param messagesPerSecond 0 for no message limit (the default).
+	 * @param bytesPerSecond 0 for no byte limit (the default). */
+	public void setConnectionSendLimit (double messagesPerSecond, double bytesPerSecond) {
+		connectionSendMessages = messagesPerSecond;
+		connectionSendBytes = bytesPerSecond;
+		for (Connection connection : connections)
+			connection.sendLimit.set(messagesPerSecond, bytesPerSecond);
+	}
+
+	/** Sets the {@link Connection#getReceiveLimit() receive limit} for each current and new connection, with bursts of up to one
+	 * second.
+	 * @param messagesPerSecond 0 for no message limit (the default).
+	 * @param bytesPerSecond 0 for no byte limit (the default). */
+	public void setConnectionReceiveLimit (double messagesPerSecond, double bytesPerSecond) {
+		connectionReceiveMessages = messagesPerSecond;
+		connectionReceiveBytes = bytesPerSecond;
+		for (Connection connection : connections)
+			connection.receiveLimit.set(messagesPerSecond, bytesPerSecond);
+	}
+
+	/** Returns the total number of queued messages for all connections which have not yet been written. */
+	public int getSendQueueSize () {
+		int size = 0;
+		for (Connection connection : connections)
+			size += connection.getSendQueueSize();
+		return size;
+	}
+
 	public void send (String message) {
 		for (Connection connection : connections)
 			connection.send(message);
@@ -123,6 +389,36 @@ abstract public class TcpServer extends Retry {
 			connection.send(message, bytes, offset, count);
 	}
 
+	/** Queues the message for each connection subscribed to the topic. The message is encoded once and shared by the
+	 * subscribers.
+	 * @return The number of subscribers the message was queued for.
+	 * @see Topics#publish(String, String, byte[], int, int) */
+	public int publish (String topic, String message) {
+		return topics.publish(topic, message, null, 0, 0);
+	}
+
+	/** @see #publish(String, String, byte[], int, int) */
+	public int publish (String topic, String message, byte... bytes) {
+		return topics.publish(topic, message, bytes, 0, bytes.length);
+	}
+
+	/** @see Topics#publish(String, String, byte[], int, int) */
+	public int publish (String topic, String message, byte[] bytes, int offset, int count) {
+		return topics.publish(topic, message, bytes, offset, count);
+	}
+
+	/** Returns the index of topic subscriptions. Connections subscribe by sending {@link Connection#subscribe(String)}, or the
+	 * server can subscribe them directly. */
+	public Topics getTopics () {
+		return topics;
+	}
+
+	/** Called on the connection's read thread when it asks to subscribe to a topic.
+	 * @return false to deny the subscription. */
+	public boolean allowSubscribe (Connection connection, String topic) {
+		return true;
+	}
+
 	public boolean sendBlocking (String message) {
 		boolean success = true;
 		for (Connection connection : connections)
@@ -153,9 +449,193 @@ abstract public class TcpServer extends Retry {
 		this.port = port;
 	}
 
+	public int getUdpPort () {
+		return udpPort;
+	}
+
+	/** Sets a UDP port which each new connection is offered over TCP with a token, so messages can also be sent as unreliable
+	 * datagrams using {@link Connection#sendUdp(String, byte[], int, int)}. Datagrams are routed to their connection's
+	 * {@link #receive(Connection, String, String, byte[], int)} on the UDP thread. Requires a protocol with
+	 * {@link ProtocolWrite#offerUdp(Connection, int, long) UDP offers}, such as {@link DefaultProtocol}, and a client with
+	 * {@link TcpClient#setUdp(boolean) UDP enabled}. Takes effect the next time the server is started.
+	 * @param udpPort 0 to not use UDP (the default). */
+	public void setUdpPort (int udpPort) {
+		this.udpPort = udpPort;
+	}
+
+	/** Returns the server which sends and receives datagrams for connections, or null if UDP is not used or the server is not
+	 * running. */
+	public HybridUdpServer getUdpServer () {
+		return udp;
+	}
+
+	public int getIdleTimeout () {
+		return idleTimeout;
+	}
+
+	/** Sets the {@link Connection#setIdleTimeout(int) idle timeout} for new connections. If no messages are received for this
+	 * long, {@link #idle(Connection)} is called.
+	 * @param millis 0 to disable. */
+	public void setIdleTimeout (int millis) {
+		idleTimeout = millis;
+	}
+
+	public int getHeartbeatInterval () {
+		return heartbeatInterval;
+	}
+
+	/** Sets the {@link Connection#setHeartbeatInterval(int) heartbeat interval} for new connections. If no messages are sent for
+	 * this long, a heartbeat is sent.
+	 * @param millis 0 to disable. */
+	public void setHeartbeatInterval (int millis) {
+		heartbeatInterval = millis;
+	}
+
+	public int getMaxConnections () {
+		return maxConnections;
+	}
+
+	/** Sockets accepted when there are this many connections are rejected. If 0, there is no limit. Default is 0. */
+	public void setMaxConnections (int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+
+	public int getMaxConnectionsPerAddress () {
+		return maxConnectionsPerAddress;
+	}
+
+	/** Sockets accepted when there are this many connections from the same IP address are rejected. If 0, there is no limit.
+	 * Default is 0. */
+	public void setMaxConnectionsPerAddress (int maxConnectionsPerAddress) {
+		this.maxConnectionsPerAddress = maxConnectionsPerAddress;
+	}
+
+	/** Limits how fast new connections are admitted. Sockets accepted faster are rejected.
+	 * @param perSecond If 0, there is no limit.
+	 * @param burst The number of connections which can be admitted at once after being idle. */
+	public void setConnectionRate (double perSecond, int burst) {
+		if (perSecond <= 0)
+			connectionRate = null;
+		else if (connectionRate == null)
+			connectionRate = new TokenBucket(perSecond, Math.max(1, burst));
+		else
+			connectionRate.set(perSecond, Math.max(1, burst));
+	}
+
+	/** Sets the bytes written to a rejected socket before it is closed, eg {@link DefaultProtocol#frame(String)}. If null,
+	 * rejected sockets are closed without writing. Default is null. */
+	public void setRejectFrame (byte[] rejectFrame) {
+		this.rejectFrame = rejectFrame;
+	}
+
+	/** Returns the number of sockets rejected for the specified reason. */
+	public long getRejectedCount (Rejection rejection) {
+		return rejected.get(rejection.ordinal());
+	}
+
+	/** Returns the number of sockets rejected for any reason. */
+	public long getRejectedCount () {
+		long count = 0;
+		for (int i = 0, n = rejected.length(); i < n; i++)
+			count += rejected.get(i);
+		return count;
+	}
+
+	public int getAcceptors () {
+		return acceptors;
+	}
+
+	/** Sets the number of threads which accept connections. If {@link #setReusePort(boolean) SO_REUSEPORT} is enabled, each
+	 * thread has its own server socket and the OS distributes connections between them. Default is 1. Takes effect when the
+	 * server is started. */
+	public void setAcceptors (int acceptors) {
+		this.acceptors = acceptors;
+	}
+
+	public boolean getReusePort () {
+		return reusePort;
+	}
+
+	/** If true, each acceptor thread listens with its own SO_REUSEPORT socket. This requires Java 9+ and an OS which supports
+	 * it, such as Linux. Default is false. */
+	public void setReusePort (boolean reusePort) {
+		this.reusePort = reusePort;
+	}
+
+	public int getSetupThreads () {
+		return setupThreads;
+	}
+
+	/** Sets the number of threads which create and start connections for accepted sockets, so {@link #newConnection(Connection)}
+	 * and {@link #connected(Connection)} don't delay accepting. If 0, connections are set up on the acceptor thread, except TLS
+	 * connections which use a thread per handshake. Default is 0. */
+	public void setSetupThreads (int setupThreads) {
+		this.setupThreads = setupThreads;
+	}
+
+	public int getBacklog () {
+		return backlog;
+	}
+
+	/** Sets the maximum number of connections the OS queues before they are accepted, passed to
+	 * {@link Protocol#newServerSocket(int, int, boolean)}. If 0, the OS default is used. Default is 0. */
+	public void setBacklog (int backlog) {
+		this.backlog = backlog;
+	}
+
+	public SSLContext getSslContext () {
+		return sslContext;
+	}
+
+	/** Sets the context used to encrypt connections with TLS, eg created with {@link Tls#newContext(java.io.File, String)}. The
+	 * handshake is done when the connection is set up, always off the acceptor thread so a slow client doesn't delay accepting:
+	 * on a {@link #setSetupThreads(int) setup thread}, else on a thread per handshake. Handshake times are recorded in the {@link #getMetrics() metrics}. Takes effect for
+	 * connections accepted after it is set.
+	 * @param sslContext May be null to not use TLS (the default). */
+	public void setSslContext (SSLContext sslContext) {
+		this.sslContext = sslContext;
+	}
+
+	public int getHandshakeTimeout () {
+		return handshakeTimeout;
+	}
+
+	/** Sets the maximum time for a client to complete the TLS handshake before it is disconnected. Default is 10000.
+	 * @param millis 0 for no timeout. */
+	public void setHandshakeTimeout (int millis) {
+		handshakeTimeout = millis;
+	}
+
+	public boolean getNeedClientAuth () {
+		return needClientAuth;
+	}
+
+	/** If true, clients must present a certificate trusted by the {@link #setSslContext(SSLContext) context} when using TLS.
+	 * Default is false. */
+	public void setNeedClientAuth (boolean needClientAuth) {
+		this.needClientAuth = needClientAuth;
+	}
+
+	class Setup implements Runnable {
+		final Socket socket;
+
+		Setup (Socket socket) {
+			this.socket = socket;
+		}
+
+		public void run () {
+			setup(socket);
+		}
+	}
+
 	private class ServerConnection extends Connection {
-		public ServerConnection (String category, String name, Socket socket, Protocol protocol) throws IOException {
-			super(category, name, socket, protocol);
+		private final InetAddress address;
+		private final AtomicBoolean admitted = new AtomicBoolean(true);
+
+		public ServerConnection (String category, String name, Socket socket, Protocol protocol, Metrics metrics, RateLimit sendLimit,
+			RateLimit receiveLimit) throws IOException {
+			super(category, name, socket, protocol, metrics, sendLimit, receiveLimit);
+			address = socket.getInetAddress();
 		}
 
 		public boolean isValid () {
@@ -167,16 +647,47 @@ abstract public class TcpServer extends Retry {
 			TcpServer.this.receive(this, event, payload, bytes, count);
 		}
 
+		protected void idle () {
+			TcpServer.this.idle(this);
+		}
+
+		void subscription (String topic, boolean subscribe) {
+			if (!subscribe)
+				topics.unsubscribe(this, topic);
+			else if (!Topics.isValid(topic)) {
+				if (DEBUG) debug(category, "Invalid topic: " + topic);
+			} else if (allowSubscribe(this, topic))
+				topics.subscribe(this, topic);
+			else if (DEBUG) debug(category, "Subscription denied: " + topic);
+		}
+
+		void closeIdle () {
+			super.idle();
+		}
+
 		public void close () {
 			boolean wasClosed = this.closed;
 			super.close();
 			if (!wasClosed) {
 				disconnected(this);
 				connections.remove(this);
+				topics.unsubscribeAll(this);
 			}
+			if (admitted.compareAndSet(true, false)) release(address);
 		}
 	}
 
+	static public enum Rejection {
+		/** The {@link TcpServer#setMaxConnections(int) maximum connections} was reached. */
+		maxConnections,
+
+		/** The {@link TcpServer#setMaxConnectionsPerAddress(int) maximum connections for an address} was reached. */
+		maxConnectionsPerAddress,
+
+		/** Sockets were accepted faster than the {@link TcpServer#setConnectionRate(double, int) connection rate}. */
+		connectionRate
+	}
+
 	static public void main (String[] args) throws Exception {
 		TRACE();
 
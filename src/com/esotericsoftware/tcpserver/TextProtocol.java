@@ -7,6 +7,7 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.concurrent.ArrayBlockingQueue;
 
 import com.esotericsoftware.tcpserver.Protocol.ProtocolRead;
@@ -33,8 +34,10 @@ public class TextProtocol implements ProtocolRead, ProtocolWrite {
 				continue;
 			}
 			if (TRACE) trace(connection.category, "Received: " + escape(message));
+			long start = Metrics.start();
 			try {
 				connection.receive(message, null, null, 0);
+				connection.metrics.received(start);
 			} catch (Throwable ex) {
 				if (ERROR) error(connection.category, "Error processing message: " + message, ex);
 				break;
@@ -71,12 +74,16 @@ public class TextProtocol implements ProtocolRead, ProtocolWrite {
 		if (bytes != null) throw new IllegalArgumentException("bytes must be null.");
 		if (connection.isClosed()) return false;
 		try {
+			long sent;
 			synchronized (outputLock) {
 				if (TRACE) trace(connection.category, "Sent: " + escape(message));
+				long start = Metrics.start();
 				bytes = message.getBytes(charset);
 				connection.output.write(bytes, 0, bytes.length);
 				connection.output.flush();
+				sent = connection.metrics.written(start);
 			}
+			connection.metrics.throttle(sent);
 			return true;
 		} catch (IOException ex) {
 			if (ERROR && !connection.isClosed()) error(connection.category, "Error writing to connection: " + count + " bytes", ex);
@@ -85,6 +92,19 @@ public class TextProtocol implements ProtocolRead, ProtocolWrite {
 		}
 	}
 
+	public int getSendQueueSize () {
+		return sends.size();
+	}
+
+	public void drainSends (Connection connection, OutboundBuffer buffer) {
+		ArrayList<String> drained = new ArrayList();
+		sends.drainTo(drained);
+		ArrayList<OutboundBuffer.Entry> entries = new ArrayList(drained.size());
+		for (String message : drained)
+			entries.add(new OutboundBuffer.Entry(message, null));
+		buffer.addFirst(entries);
+	}
+
 	/** Returns the message text to use for trace logging. */
 	protected String escape (String message) {
 		return message.trim();
@@ -0,0 +1,180 @@
+/* Copyright (c) 2017-2021, Esoteric Software
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following
+ * conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.esotericsoftware.tcpserver;
+
+import static com.esotericsoftware.minlog.Log.*;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/** Runs tasks after a delay using a hashed wheel of buckets, so scheduling and cancelling are O(1) regardless of the number of
+ * timers. Tasks are run on the wheel's thread and should be quick. Timers fire up to one tick late. All methods are thread
+ * safe. */
+public class TimerWheel {
+	static private TimerWheel shared;
+
+	final String name;
+	private final long tickNanos;
+	private final Timer[] buckets;
+	private final int mask;
+	private final ConcurrentLinkedQueue<Timer> pending = new ConcurrentLinkedQueue();
+	private final Thread thread;
+	private volatile boolean running = true;
+	private final long start;
+	private long tick;
+
+	/** @param tickMillis The resolution of the timers.
+	 * @param bucketCount Rounded up to a power of two. Timers further than this many ticks away are checked once per rotation. */
+	public TimerWheel (String name, int tickMillis, int bucketCount) {
+		if (tickMillis <= 0) throw new IllegalArgumentException("tickMillis must be > 0: " + tickMillis);
+		if (bucketCount <= 0) throw new IllegalArgumentException("bucketCount must be > 0: " + bucketCount);
+		this.name = name;
+		tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+		int size = Integer.highestOneBit(bucketCount);
+		if (size < bucketCount) size <<= 1;
+		buckets = new Timer[size];
+		mask = size - 1;
+
+		start = System.nanoTime();
+		thread = new Thread(name) {
+			public void run () {
+				TimerWheel.this.run();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/** Runs the task once after the delay.
+	 * @return A timer which can be used to cancel the task. */
+	public Timer schedule (Runnable task, long delayMillis) {
+		return schedule(task, delayMillis, 0);
+	}
+
+	/** Runs the task after the delay and then repeatedly each period, without allocating for each run.
+	 * @param periodMillis If 0, the task runs once.
+	 * @return A timer which can be used to cancel the task. */
+	public Timer schedule (Runnable task, long delayMillis, long periodMillis) {
+		if (!running) throw new IllegalStateException("Timer wheel is stopped: " + name);
+		Timer timer = new Timer(task, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis)),
+			TimeUnit.MILLISECONDS.toNanos(Math.max(0, periodMillis)));
+		pending.add(timer);
+		return timer;
+	}
+
+	/** Stops the wheel thread. Pending timers will not run. */
+	public void stop () {
+		running = false;
+		LockSupport.unpark(thread);
+	}
+
+	private void run () {
+		while (running) {
+			long deadline = start + (tick + 1) * tickNanos;
+			while (true) {
+				long wait = deadline - System.nanoTime();
+				if (wait <= 0 || !running) break;
+				LockSupport.parkNanos(this, wait);
+			}
+
+			for (Timer timer; (timer = pending.poll()) != null;)
+				if (!timer.cancelled) add(timer, tick);
+
+			int index = (int)(tick & mask);
+			for (Timer timer = buckets[index], next; timer != null; timer = next) {
+				next = timer.next;
+				if (timer.cancelled) {
+					remove(timer, index);
+					continue;
+				}
+				if (timer.rounds > 0) {
+					timer.rounds--;
+					continue;
+				}
+				remove(timer, index);
+				try {
+					timer.task.run();
+				} catch (Throwable ex) {
+					if (ERROR) error("tcpserver", "Error running timer task: " + name, ex);
+				}
+				if (timer.period > 0 && !timer.cancelled) {
+					timer.deadline += timer.period;
+					add(timer, tick + 1);
+				}
+			}
+			tick++;
+		}
+	}
+
+	/** Called on the wheel thread. The bucket for tick N is run once N + 1 ticks have elapsed.
+	 * @param first The first tick whose bucket has not yet been run. */
+	private void add (Timer timer, long first) {
+		long ticks = Math.max(first, (timer.deadline - start + tickNanos - 1) / tickNanos - 1);
+		timer.rounds = (ticks - first) / buckets.length;
+		int index = (int)(ticks & mask);
+		timer.prev = null;
+		timer.next = buckets[index];
+		if (timer.next != null) timer.next.prev = timer;
+		buckets[index] = timer;
+	}
+
+	/** Called on the wheel thread. */
+	private void remove (Timer timer, int index) {
+		if (timer.prev != null)
+			timer.prev.next = timer.next;
+		else
+			buckets[index] = timer.next;
+		if (timer.next != null) timer.next.prev = timer.prev;
+		timer.prev = null;
+		timer.next = null;
+	}
+
+	/** Returns a wheel with 10ms ticks which is shared by connections and is never stopped. */
+	static public synchronized TimerWheel getShared () {
+		if (shared == null) shared = new TimerWheel("TimerWheel", 10, 1024);
+		return shared;
+	}
+
+	static public class Timer {
+		final Runnable task;
+		final long period;
+		long deadline, rounds;
+		Timer prev, next;
+		volatile boolean cancelled;
+
+		Timer (Runnable task, long deadline, long period) {
+			this.task = task;
+			this.deadline = deadline;
+			this.period = period;
+		}
+
+		/** Prevents the task from running again. The timer is removed from the wheel lazily. */
+		public void cancel () {
+			cancelled = true;
+		}
+
+		public boolean isCancelled () {
+			return cancelled;
+		}
+	}
+}
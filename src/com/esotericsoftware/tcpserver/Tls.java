@@ -0,0 +1,144 @@
+/* Copyright (c) 2017-2021, Esoteric Software
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following
+ * conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.esotericsoftware.tcpserver;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+
+/** Creates TLS contexts and performs handshakes for sockets.
+ * <p>
+ * A context's client session cache is keyed by the peer host and port, so reconnecting to the same endpoint resumes the previous
+ * session (TLS 1.3 PSK or a TLS 1.2 session ID) rather than doing a full handshake. With TLS 1.3 the cache keeps one ticket per
+ * endpoint and each ticket is used once, so clients which connect to the same endpoint at the same time, eg a pool, each need
+ * their own context for all of them to resume. */
+public class Tls {
+	/** The number of sessions cached by contexts created by this class. */
+	static public int sessionCacheSize = 1000;
+	/** The seconds sessions are cached by contexts created by this class. */
+	static public int sessionTimeout = 24 * 60 * 60;
+
+	/** Creates a context using the specified key store for both the local certificate and the trusted certificates. This is
+	 * suitable for a self-signed certificate shared by the client and server, eg generated with:
+	 * <pre>
+	 * keytool -genkeypair -alias localhost -keyalg EC -dname CN=localhost -ext SAN=dns:localhost,ip:127.0.0.1 -storetype PKCS12
+	 *    -keystore localhost.p12 -storepass password
+	 * </pre>
+	 * @param keyStore A PKCS12 or JKS file. */
+	static public SSLContext newContext (File keyStore, String password) throws IOException, GeneralSecurityException {
+		KeyStore store = load(keyStore, password);
+		return newContext(store, password.toCharArray(), store);
+	}
+
+	/** @param keyStore May be null for a client which does not authenticate itself.
+	 * @param trustStore May be null to use the JVM's default trusted certificates. */
+	static public SSLContext newContext (KeyStore keyStore, char[] password, KeyStore trustStore) throws GeneralSecurityException {
+		KeyManagerFactory keys = null;
+		if (keyStore != null) {
+			keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+			keys.init(keyStore, password);
+		}
+		TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		trust.init(trustStore);
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(keys == null ? null : keys.getKeyManagers(), trust.getTrustManagers(), null);
+		context.getClientSessionContext().setSessionCacheSize(sessionCacheSize);
+		context.getClientSessionContext().setSessionTimeout(sessionTimeout);
+		context.getServerSessionContext().setSessionCacheSize(sessionCacheSize);
+		context.getServerSessionContext().setSessionTimeout(sessionTimeout);
+		return context;
+	}
+
+	/** Loads a PKCS12 or JKS key store. */
+	static public KeyStore load (File file, String password) throws IOException, GeneralSecurityException {
+		String type = file.getName().toLowerCase().endsWith(".jks") ? "JKS" : "PKCS12";
+		KeyStore store = KeyStore.getInstance(type);
+		InputStream input = new FileInputStream(file);
+		try {
+			store.load(input, password == null ? null : password.toCharArray());
+		} finally {
+			input.close();
+		}
+		return store;
+	}
+
+	/** Layers TLS over a connected socket and performs the client handshake. The session cache is keyed by the host and port,
+	 * so they should be the endpoint as configured rather than the resolved address.
+	 * @param timeout The maximum milliseconds for the handshake, or 0 for no timeout.
+	 * @param verifyHostname If true, the server's certificate must match the host.
+	 * @param metrics May be null. */
+	static public SSLSocket client (SSLContext context, Socket socket, String host, int port, int timeout, boolean verifyHostname,
+		Metrics metrics) throws IOException {
+		SSLSocket ssl = (SSLSocket)context.getSocketFactory().createSocket(socket, host, port, true);
+		ssl.setUseClientMode(true);
+		if (verifyHostname) {
+			SSLParameters parameters = ssl.getSSLParameters();
+			parameters.setEndpointIdentificationAlgorithm("HTTPS");
+			ssl.setSSLParameters(parameters);
+		}
+		handshake(ssl, timeout, metrics);
+		return ssl;
+	}
+
+	/** Layers TLS over an accepted socket and performs the server handshake.
+	 * @param timeout The maximum milliseconds for the handshake, or 0 for no timeout.
+	 * @param metrics May be null. */
+	static public SSLSocket server (SSLContext context, Socket socket, int timeout, boolean needClientAuth, Metrics metrics)
+		throws IOException {
+		SSLSocketFactory factory = context.getSocketFactory();
+		SSLSocket ssl = (SSLSocket)factory.createSocket(socket, null, socket.getPort(), true);
+		ssl.setUseClientMode(false);
+		ssl.setNeedClientAuth(needClientAuth);
+		handshake(ssl, timeout, metrics);
+		return ssl;
+	}
+
+	static private void handshake (SSLSocket ssl, int timeout, Metrics metrics) throws IOException {
+		int soTimeout = ssl.getSoTimeout();
+		ssl.setSoTimeout(timeout);
+		long start = Metrics.start(), startMillis = System.currentTimeMillis();
+		try {
+			ssl.startHandshake();
+		} catch (IOException ex) {
+			Util.closeQuietly(ssl);
+			throw ex;
+		}
+		if (metrics != null) metrics.handshake(start, isResumed(ssl.getSession(), startMillis));
+		ssl.setSoTimeout(soTimeout);
+	}
+
+	/** Returns true if the session was created before the handshake began, meaning the handshake resumed it. */
+	static boolean isResumed (SSLSession session, long handshakeStartMillis) {
+		return session.getCreationTime() < handshakeStartMillis;
+	}
+}
@@ -0,0 +1,83 @@
+/* Copyright (c) 2017-2021, Esoteric Software
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following
+ * conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.esotericsoftware.tcpserver;
+
+/** Limits a rate using tokens which refill continuously up to a capacity. All methods are thread safe. */
+public class TokenBucket {
+	private double rate, capacity, tokens;
+	private long last;
+
+	/** @param rate Tokens added per second.
+	 * @param capacity The maximum number of tokens, allowing bursts up to this size. The bucket starts full. */
+	public TokenBucket (double rate, double capacity) {
+		set(rate, capacity);
+		tokens = capacity;
+		last = System.nanoTime();
+	}
+
+	/** Takes the tokens if they are available.
+	 * @return false if there are not enough tokens, in which case none are taken. */
+	public synchronized boolean tryTake (double count) {
+		refill();
+		if (tokens < count) return false;
+		tokens -= count;
+		return true;
+	}
+
+	/** Takes the tokens even if they are not available, going into debt.
+	 * @return The nanoseconds until the debt is repaid, or 0 if there was no debt. */
+	public synchronized long take (double count) {
+		refill();
+		tokens -= count;
+		if (tokens >= 0) return 0;
+		return rate == 0 ? Long.MAX_VALUE : (long)(-tokens * 1000000000d / rate);
+	}
+
+	private void refill () {
+		long now = System.nanoTime();
+		tokens = Math.min(capacity, tokens + (now - last) * rate / 1000000000d);
+		last = now;
+	}
+
+	/** Changes the rate and capacity. Existing tokens above the new capacity are discarded. */
+	public synchronized void set (double rate, double capacity) {
+		if (rate < 0) throw new IllegalArgumentException("rate must be >= 0: " + rate);
+		if (capacity <= 0) throw new IllegalArgumentException("capacity must be > 0: " + capacity);
+		if (last != 0) refill();
+		this.rate = rate;
+		this.capacity = capacity;
+		tokens = Math.min(tokens, capacity);
+	}
+
+	public synchronized double getTokens () {
+		refill();
+		return tokens;
+	}
+
+	public synchronized double getRate () {
+		return rate;
+	}
+
+	public synchronized double getCapacity () {
+		return capacity;
+	}
+}
@@ -0,0 +1,279 @@
+/* Copyright (c) 2017-2021, Esoteric Software
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following
+ * conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.esotericsoftware.tcpserver;
+
+import static com.esotericsoftware.minlog.Log.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.esotericsoftware.tcpserver.Protocol.ProtocolWrite;
+
+/** An index of the connections subscribed to each topic, so a publish only touches the subscribers. A topic ending with
+ * <code>*</code> is a prefix: subscribing to <code>prices.*</code> receives messages published to <code>prices.AAPL</code>, and
+ * <code>*</code> receives all messages. A topic can't be empty or contain a space. Publishing is lock free and doesn't allocate
+ * per subscriber. Subscribing is less frequent and takes a lock. All methods are thread safe. */
+public class Topics {
+	static private final Connection[] none = new Connection[0];
+
+	private final ConcurrentHashMap<String, Connection[]> topics = new ConcurrentHashMap();
+	/** Prefix subscriptions, by the prefix without the <code>*</code>. */
+	private final ConcurrentHashMap<String, Connection[]> prefixes = new ConcurrentHashMap();
+	/** The distinct lengths of the prefixes, ascending, so a publish looks up only prefixes which exist. */
+	private volatile int[] prefixLengths = new int[0];
+	private final ConcurrentHashMap<Connection, Set<String>> subscriptions = new ConcurrentHashMap();
+	private final Object lock = new Object();
+
+	/** @return false if the connection was already subscribed. */
+	public boolean subscribe (Connection connection, String topic) {
+		if (connection == null) throw new IllegalArgumentException("connection cannot be null.");
+		checkTopic(topic);
+		synchronized (lock) {
+			Set<String> topics = subscriptions.get(connection);
+			if (topics == null) {
+				if (connection.closed) return false; // Closed connections would never be removed.
+				topics = new HashSet();
+				subscriptions.put(connection, topics);
+			}
+			if (!topics.add(topic)) return false;
+			boolean prefix = isPrefix(topic);
+			String key = prefix ? topic.substring(0, topic.length() - 1) : topic;
+			ConcurrentHashMap<String, Connection[]> map = prefix ? prefixes : this.topics;
+			Connection[] subscribers = map.get(key);
+			if (subscribers == null) {
+				subscribers = new Connection[] {connection};
+				if (prefix) addPrefixLength(key.length());
+			} else {
+				subscribers = Arrays.copyOf(subscribers, subscribers.length + 1);
+				subscribers[subscribers.length - 1] = connection;
+			}
+			map.put(key, subscribers);
+		}
+		if (TRACE) trace(connection.category, "Subscribed: " + topic);
+		return true;
+	}
+
+	/** @return false if the connection was not subscribed. */
+	public boolean unsubscribe (Connection connection, String topic) {
+		synchronized (lock) {
+			Set<String> topics = subscriptions.get(connection);
+			if (topics == null || !topics.remove(topic)) return false;
+			if (topics.isEmpty()) subscriptions.remove(connection);
+			remove(connection, topic);
+		}
+		if (TRACE) trace(connection.category, "Unsubscribed: " + topic);
+		return true;
+	}
+
+	/** Removes all subscriptions for the connection, eg when it is closed. */
+	public void unsubscribeAll (Connection connection) {
+		synchronized (lock) {
+			Set<String> topics = subscriptions.remove(connection);
+			if (topics == null) return;
+			for (String topic : topics)
+				remove(connection, topic);
+		}
+	}
+
+	/** Called with the lock held. */
+	private void remove (Connection connection, String topic) {
+		boolean prefix = isPrefix(topic);
+		String key = prefix ? topic.substring(0, topic.length() - 1) : topic;
+		ConcurrentHashMap<String, Connection[]> map = prefix ? prefixes : this.topics;
+		Connection[] subscribers = map.get(key);
+		if (subscribers == null) return;
+		int index = 0;
+		while (subscribers[index] != connection)
+			index++;
+		if (subscribers.length == 1) {
+			map.remove(key);
+			if (prefix) updatePrefixLengths();
+			return;
+		}
+		Connection[] newSubscribers = new Connection[subscribers.length - 1];
+		System.arraycopy(subscribers, 0, newSubscribers, 0, index);
+		System.arraycopy(subscribers, index + 1, newSubscribers, index, newSubscribers.length - index);
+		map.put(key, newSubscribers);
+	}
+
+	private void addPrefixLength (int length) {
+		int[] lengths = prefixLengths;
+		if (Arrays.binarySearch(lengths, length) >= 0) return;
+		lengths = Arrays.copyOf(lengths, lengths.length + 1);
+		lengths[lengths.length - 1] = length;
+		Arrays.sort(lengths);
+		prefixLengths = lengths;
+	}
+
+	private void updatePrefixLengths () {
+		int[] lengths = new int[prefixes.size()];
+		int count = 0;
+		for (String prefix : prefixes.keySet())
+			lengths[count++] = prefix.length();
+		Arrays.sort(lengths, 0, count);
+		int unique = 0;
+		for (int i = 0; i < count; i++)
+			if (unique == 0 || lengths[unique - 1] != lengths[i]) lengths[unique++] = lengths[i];
+		prefixLengths = Arrays.copyOf(lengths, unique);
+	}
+
+	/** Returns the connections subscribed to the topic, either exactly or by prefix. */
+	public Connection[] getSubscribers (String topic) {
+		Connection[] subscribers = topics.get(topic);
+		if (subscribers == null) subscribers = none;
+		int[] lengths = prefixLengths;
+		int topicLength = topic.length();
+		Set<Connection> merged = null;
+		for (int i = 0, n = lengths.length; i < n; i++) {
+			int length = lengths[i];
+			if (length > topicLength) break;
+			Connection[] matched = prefixes.get(length == topicLength ? topic : topic.substring(0, length));
+			if (matched == null) continue;
+			if (subscribers.length == 0) {
+				subscribers = matched;
+				continue;
+			}
+			// A connection matched by more than one subscription receives the message once.
+			if (merged == null) {
+				merged = Collections.newSetFromMap(new IdentityHashMap());
+				for (Connection connection : subscribers)
+					merged.add(connection);
+			}
+			for (Connection connection : matched)
+				merged.add(connection);
+		}
+		return merged == null ? subscribers : merged.toArray(new Connection[merged.size()]);
+	}
+
+	/** Queues the message for each connection subscribed to the topic. The message is encoded once and shared by all subscribers
+	 * using {@link DefaultProtocol}. A subscriber whose send queue is full does not receive the message.
+	 * @param bytes May be null if count is 0. The bytes are copied.
+	 * @return The number of subscribers the message was queued for. */
+	public int publish (String topic, String message, byte[] bytes, int offset, int count) {
+		checkTopic(topic);
+		if (message == null) throw new IllegalArgumentException("message cannot be null.");
+		Connection[] subscribers = getSubscribers(topic);
+		if (subscribers.length == 0) return 0;
+		Publication publication = new Publication(topic, message, bytes, offset, count);
+		int sent = 0;
+		for (Connection connection : subscribers) {
+			if (connection.closed || !(connection.protocol instanceof ProtocolWrite)) continue;
+			if (((ProtocolWrite)connection.protocol).publish(connection, publication))
+				sent++;
+			else if (DEBUG) debug(connection.category, "Send queue full, publish dropped: " + topic);
+		}
+		return sent;
+	}
+
+	/** Returns the number of topics and prefixes with at least one subscriber. */
+	public int getTopicCount () {
+		return topics.size() + prefixes.size();
+	}
+
+	/** Returns the topics the connection is subscribed to. */
+	public String[] getSubscriptions (Connection connection) {
+		synchronized (lock) {
+			Set<String> topics = subscriptions.get(connection);
+			return topics == null ? new String[0] : topics.toArray(new String[topics.size()]);
+		}
+	}
+
+	/** Returns true if the topic is not empty and has no spaces, as the protocol ends the topic at the first space. */
+	static public boolean isValid (String topic) {
+		return topic != null && !topic.isEmpty() && topic.indexOf(' ') == -1;
+	}
+
+	static void checkTopic (String topic) {
+		if (topic == null) throw new IllegalArgumentException("topic cannot be null.");
+		if (!isValid(topic)) throw new IllegalArgumentException("topic must be non-empty and have no spaces: " + topic);
+	}
+
+	static boolean isPrefix (String topic) {
+		return topic.endsWith("*");
+	}
+
+	/** A published message, shared by all subscribers so it is copied and encoded only once. */
+	static public class Publication {
+		final String topic, message;
+		final byte[] bytes;
+		final int count;
+		private volatile byte[] frame;
+
+		public Publication (String topic, String message, byte[] bytes, int offset, int count) {
+			checkTopic(topic);
+			if (bytes == null) {
+				if (count != 0) throw new IllegalArgumentException("bytes cannot be null when count != 0: " + count);
+			} else {
+				if (count < 0) throw new IllegalArgumentException("count cannot be < 0");
+			}
+			this.topic = topic;
+			this.message = message;
+			this.bytes = count == 0 ? null : Arrays.copyOfRange(bytes, offset, offset + count);
+			this.count = count;
+		}
+
+		/** Returns the message written by {@link DefaultProtocol}, which includes the topic. */
+		public String getProtocolMessage () {
+			return DefaultProtocol.publish + topic + ' ' + message;
+		}
+
+		/** Returns the bytes {@link DefaultProtocol} writes for this message, encoded on first use. */
+		byte[] frame () {
+			byte[] frame = this.frame;
+			if (frame == null) {
+				ByteArrayOutputStream output = new ByteArrayOutputStream(count + 32);
+				try {
+					DataOutputStream data = new DataOutputStream(output);
+					data.writeUTF(getProtocolMessage());
+					Util.writeVarint(count, data);
+					if (count > 0) data.write(bytes, 0, count);
+				} catch (IOException ex) {
+					throw new IllegalArgumentException("Invalid message: " + message, ex);
+				}
+				this.frame = frame = output.toByteArray();
+			}
+			return frame;
+		}
+
+		public String getTopic () {
+			return topic;
+		}
+
+		public String getMessage () {
+			return message;
+		}
+
+		public byte[] getBytes () {
+			return bytes;
+		}
+
+		public int getCount () {
+			return count;
+		}
+	}
+}
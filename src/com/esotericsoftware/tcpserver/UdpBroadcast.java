@@ -1,6 +1,7 @@
 
 package com.esotericsoftware.tcpserver;
 
+import static com.esotericsoftware.minlog.Log.*;
 import static com.esotericsoftware.tcpserver.Util.*;
 
 import java.io.Closeable;
@@ -8,61 +9,110 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.MulticastSocket;
 import java.net.NetworkInterface;
 import java.util.ArrayList;
 import java.util.Enumeration;
 
+/** Sends UDP datagrams to the broadcast addresses of the network interfaces. The addresses are cached and enumerated again only
+ * after the {@link #setRefreshInterval(int) refresh interval} or when sending fails.
+ * <p>
+ * When constructed with a multicast group address, a single datagram is sent to the group instead, which reaches only hosts that
+ * have joined it (see {@link UdpServer#setMulticast(InetAddress, NetworkInterface)}) and can cross routers when the
+ * {@link #setTimeToLive(int) TTL} allows. */
 public class UdpBroadcast implements Closeable {
 	private final Subnets subnets;
 	private final ArrayList<InetAddress> addresses = new ArrayList();
+	private final InetAddress group;
 	private DatagramSocket socket;
+	private long updated;
+	private int refreshMillis = 30000;
+	private int timeToLive = 1;
+	private NetworkInterface networkInterface;
 
 	public UdpBroadcast (Subnets subnets) {
 		this.subnets = subnets;
+		group = null;
 	}
 
+	/** @param address A broadcast address, or a multicast group address to use multicast. */
 	public UdpBroadcast (InetAddress address) {
 		subnets = null;
 		addresses.add(address);
+		group = address.isMulticastAddress() ? address : null;
 	}
 
-	public void updateAddresses () throws IOException {
-		if (subnets == null) return;
+	/** Enumerates the network interfaces to compute the broadcast addresses.
+	 * @return true if the addresses changed. */
+	public boolean updateAddresses () throws IOException {
+		if (subnets == null) return false;
 
-		addresses.clear();
+		ArrayList<InetAddress> addresses = new ArrayList();
 		for (Enumeration<NetworkInterface> ifaces = NetworkInterface.getNetworkInterfaces(); ifaces.hasMoreElements();) {
 			NetworkInterface iface = ifaces.nextElement();
 			if (iface.isLoopback() || !iface.isUp()) continue;
 
 			for (Enumeration<InetAddress> iaddresses = iface.getInetAddresses(); iaddresses.hasMoreElements();) {
 				byte[] ip = iaddresses.nextElement().getAddress();
+				if (ip.length != 4) continue; // Broadcast is IPv4 only.
 				if (subnets == Subnets.classC || subnets == Subnets.classBC) {
 					ip[3] = -1; // 255.255.255.0
-					addresses.add(InetAddress.getByAddress(ip));
+					add(addresses, InetAddress.getByAddress(ip));
 				}
 				if (subnets == Subnets.classB || subnets == Subnets.classBC) {
 					ip[2] = -1; // 255.255.0.0
 					ip[3] = -1;
-					addresses.add(InetAddress.getByAddress(ip));
+					add(addresses, InetAddress.getByAddress(ip));
 				}
 			}
 		}
+		updated = System.nanoTime();
+		if (addresses.equals(this.addresses)) return false;
+		if (DEBUG && !this.addresses.isEmpty()) debug("Broadcast addresses changed: " + addresses);
+		this.addresses.clear();
+		this.addresses.addAll(addresses);
+		return true;
 	}
 
+	static private void add (ArrayList<InetAddress> addresses, InetAddress address) {
+		if (!addresses.contains(address)) addresses.add(address);
+	}
+
+	/** Opens the socket, first enumerating the network interfaces if the addresses are older than the refresh interval. */
 	public void bind () throws IOException {
 		if (socket != null) throw new IllegalStateException();
 
-		if (addresses.isEmpty()) updateAddresses();
+		if (addresses.isEmpty() || (subnets != null && System.nanoTime() - updated > refreshMillis * 1000000L)) updateAddresses();
 
+		if (group != null) {
+			MulticastSocket socket = new MulticastSocket(null);
+			socket.setReuseAddress(true);
+			socket.bind(null);
+			socket.setTimeToLive(timeToLive);
+			if (networkInterface != null) socket.setNetworkInterface(networkInterface);
+			this.socket = socket;
+			return;
+		}
 		socket = new DatagramSocket(null);
 		socket.setReuseAddress(true);
 		socket.setBroadcast(true);
 		socket.bind(null);
 	}
 
+	/** Sends the buffer to each broadcast address. If sending fails for every address, the network interfaces are enumerated
+	 * again and if the addresses changed, it is sent again. */
 	public void broadcast (int port, byte... buffer) throws IOException {
 		if (socket == null) throw new IllegalStateException();
 
+		try {
+			send(port, buffer);
+		} catch (IOException ex) {
+			if (!updateAddresses()) throw ex;
+			send(port, buffer);
+		}
+	}
+
+	private void send (int port, byte[] buffer) throws IOException {
 		DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
 		packet.setPort(port);
 
@@ -84,6 +134,47 @@ public class UdpBroadcast implements Closeable {
 		}
 	}
 
+	public int getRefreshInterval () {
+		return refreshMillis;
+	}
+
+	/** Sets how long the broadcast addresses are used before the network interfaces are enumerated again. Default is 30000. */
+	public void setRefreshInterval (int millis) {
+		refreshMillis = millis;
+	}
+
+	/** Returns true if datagrams are sent to a multicast group. */
+	public boolean isMulticast () {
+		return group != null;
+	}
+
+	/** @return May be null. */
+	public InetAddress getGroup () {
+		return group;
+	}
+
+	public int getTimeToLive () {
+		return timeToLive;
+	}
+
+	/** Sets how many routers a multicast datagram may cross. Takes effect the next time the socket is bound. Default is 1, which
+	 * keeps it on the local network. */
+	public void setTimeToLive (int timeToLive) {
+		if (timeToLive < 0 || timeToLive > 255) throw new IllegalArgumentException("timeToLive must be 0-255: " + timeToLive);
+		this.timeToLive = timeToLive;
+	}
+
+	/** @return May be null. */
+	public NetworkInterface getNetworkInterface () {
+		return networkInterface;
+	}
+
+	/** Sets the interface multicast datagrams are sent from. Takes effect the next time the socket is bound.
+	 * @param networkInterface May be null to let the system choose. */
+	public void setNetworkInterface (NetworkInterface networkInterface) {
+		this.networkInterface = networkInterface;
+	}
+
 	public DatagramSocket getSocket () {
 		return socket;
 	}
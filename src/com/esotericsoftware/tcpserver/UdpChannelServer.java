@@ -0,0 +1,336 @@
+/* Copyright (c) 2017-2021, Esoteric Software
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following
+ * conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.esotericsoftware.tcpserver;
+
+import static com.esotericsoftware.minlog.Log.*;
+import static com.esotericsoftware.tcpserver.Util.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/** A UDP server using {@link DatagramChannel}s for high packet rates. Datagrams are received into pooled direct buffers by one or
+ * more receiver threads, each with its own socket bound to the port with SO_REUSEPORT so the OS spreads datagrams between them.
+ * Datagrams are handled on the receiver thread or, when {@link #setWorkers(int) workers} are set, queued for worker threads so
+ * slow handling doesn't slow receiving. When the workers fall behind, datagrams are dropped and counted rather than queued
+ * without bound.
+ * @see UdpServer */
+public abstract class UdpChannelServer extends Retry {
+	private int port;
+	private int receivers = 1, workers, capacity = 4096, packetSize = 2048, socketBufferSize;
+	private volatile DatagramChannel[] channels;
+	private ArrayBlockingQueue<Packet> queue, pool;
+	private final LongAdder received = new LongAdder(), dropped = new LongAdder();
+	private final ThreadLocal<ByteBuffer> sendBuffers = new ThreadLocal();
+
+	public UdpChannelServer (String category, String name) {
+		this(category, name, 0);
+	}
+
+	public UdpChannelServer (String category, String name, int port) {
+		super(category, name);
+		this.port = port;
+	}
+
+	protected void retry () {
+		int receivers = Math.max(1, this.receivers), workers = this.workers;
+		DatagramChannel[] channels = new DatagramChannel[receivers];
+		try {
+			for (int i = 0; i < receivers; i++) {
+				DatagramChannel channel = DatagramChannel.open();
+				channels[i] = channel;
+				channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+				if (receivers > 1) setReusePort(channel);
+				if (socketBufferSize > 0) channel.setOption(StandardSocketOptions.SO_RCVBUF, socketBufferSize);
+				channel.bind(new InetSocketAddress(port));
+			}
+		} catch (IOException ex) {
+			if (ERROR) error(category, "Unable to start UDP server.", ex);
+			for (DatagramChannel channel : channels)
+				closeQuietly(channel);
+			failed();
+			return;
+		}
+		this.channels = channels;
+		success();
+
+		final ArrayBlockingQueue<Packet> queue = workers > 0 ? new ArrayBlockingQueue(capacity) : null;
+		Thread[] workerThreads = new Thread[workers];
+		if (queue != null) {
+			// Each receiver and worker holds a packet in addition to those queued, so the pool is never empty when a receiver needs one.
+			pool = new ArrayBlockingQueue(capacity + receivers + workers);
+			for (int i = 0, n = capacity + receivers + workers; i < n; i++)
+				pool.add(new Packet(packetSize));
+			this.queue = queue;
+			for (int i = 0; i < workers; i++) {
+				workerThreads[i] = new Thread(name + "Worker" + i) {
+					public void run () {
+						work(queue);
+					}
+				};
+				workerThreads[i].setDaemon(daemon);
+				workerThreads[i].start();
+			}
+		}
+
+		Thread[] receiverThreads = new Thread[receivers - 1];
+		try {
+			if (INFO) {
+				info(category, "Listening on port: UDP " + port + " (" + receivers + " receivers, " + workers + " workers)");
+			}
+			for (int i = 0; i < receiverThreads.length; i++) {
+				final DatagramChannel channel = channels[i + 1];
+				receiverThreads[i] = new Thread(name + "Receive" + (i + 1)) {
+					public void run () {
+						receive(channel, queue);
+					}
+				};
+				receiverThreads[i].setDaemon(daemon);
+				receiverThreads[i].start();
+			}
+			receive(channels[0], queue);
+		} finally {
+			this.channels = null;
+			for (DatagramChannel channel : channels)
+				closeQuietly(channel);
+			join(receiverThreads);
+			for (Thread thread : workerThreads)
+				thread.interrupt();
+			join(workerThreads);
+			if (queue != null) queue.clear();
+			if (INFO) info(category, "Server stopped: UDP " + port);
+		}
+		if (running) failed();
+	}
+
+	private void join (Thread[] threads) {
+		for (Thread thread : threads) {
+			while (thread.isAlive()) {
+				try {
+					thread.join();
+				} catch (InterruptedException ignored) {
+				}
+			}
+		}
+	}
+
+	/** Receives until the server is stopped or a receive fails, which closes all the channels so the server is restarted. */
+	void receive (DatagramChannel channel, ArrayBlockingQueue<Packet> queue) {
+		Packet packet = queue == null ? new Packet(packetSize) : pool.poll();
+		packet.channel = channel;
+		ByteBuffer buffer = packet.buffer;
+		try {
+			while (running) {
+				SocketAddress address = channel.receive(buffer);
+				if (address == null) continue;
+				received.increment();
+				packet.address = (InetSocketAddress)address;
+				buffer.flip();
+				if (queue == null) {
+					handle(packet);
+					buffer.clear();
+				} else if (queue.offer(packet)) {
+					packet = pool.poll();
+					packet.channel = channel;
+					buffer = packet.buffer;
+				} else {
+					dropped.increment();
+					buffer.clear();
+				}
+			}
+		} catch (IOException ex) {
+			if (!running) return;
+			if (ERROR) error(category, "Unexpected UDP server error.", ex);
+			DatagramChannel[] channels = this.channels;
+			if (channels != null) {
+				for (DatagramChannel other : channels)
+					closeQuietly(other);
+			}
+		}
+	}
+
+	/** Handles queued packets until interrupted. */
+	void work (ArrayBlockingQueue<Packet> queue) {
+		while (true) {
+			Packet packet;
+			try {
+				packet = queue.take();
+			} catch (InterruptedException ex) {
+				return;
+			}
+			handle(packet);
+			packet.buffer.clear();
+			pool.offer(packet);
+		}
+	}
+
+	private void handle (Packet packet) {
+		try {
+			received(packet);
+		} catch (Throwable ex) {
+			if (ERROR) error(category, "Error handling UDP packet: " + packet.address, ex);
+		}
+	}
+
+	/** Called on a receiver or worker thread when a datagram is received. The packet is reused after this method returns.
+	 * Exceptions are logged and the server continues receiving. */
+	abstract protected void received (Packet packet) throws IOException;
+
+	protected void stopped () {
+		DatagramChannel[] channels = this.channels;
+		if (channels != null) {
+			for (DatagramChannel channel : channels)
+				closeQuietly(channel);
+		}
+	}
+
+	/** Sends the remaining bytes of the buffer from the server's first socket.
+	 * @throws IOException if the server is not running or sending fails. */
+	public void send (ByteBuffer buffer, SocketAddress address) throws IOException {
+		DatagramChannel[] channels = this.channels;
+		if (channels == null) throw new IOException("UDP server is not running.");
+		channels[0].send(buffer, address);
+	}
+
+	/** Sends the bytes using a direct buffer for the calling thread, so no buffer is allocated for each send. */
+	public void send (byte[] bytes, int offset, int count, SocketAddress address) throws IOException {
+		ByteBuffer buffer = sendBuffers.get();
+		if (buffer == null || buffer.capacity() < count) {
+			buffer = ByteBuffer.allocateDirect(Math.max(count, packetSize));
+			sendBuffers.set(buffer);
+		}
+		buffer.clear();
+		buffer.put(bytes, offset, count);
+		buffer.flip();
+		send(buffer, address);
+	}
+
+	/** Returns the number of datagrams received, including those dropped. */
+	public long getReceived () {
+		return received.sum();
+	}
+
+	/** Returns the number of datagrams dropped because the worker queue was full. */
+	public long getDropped () {
+		return dropped.sum();
+	}
+
+	/** Returns the number of datagrams waiting for a worker. */
+	public int getQueueSize () {
+		ArrayBlockingQueue<Packet> queue = this.queue;
+		return queue == null ? 0 : queue.size();
+	}
+
+	public int getPort () {
+		return port;
+	}
+
+	public void setPort (int port) {
+		this.port = port;
+	}
+
+	public int getReceivers () {
+		return receivers;
+	}
+
+	/** Sets the number of threads receiving datagrams, each with its own socket. More than 1 requires SO_REUSEPORT. Takes effect
+	 * the next time the server is started. Default is 1. */
+	public void setReceivers (int receivers) {
+		this.receivers = receivers;
+	}
+
+	public int getWorkers () {
+		return workers;
+	}
+
+	/** Sets the number of threads which call {@link #received(Packet)}. Takes effect the next time the server is started.
+	 * @param workers 0 to handle datagrams on the receiver threads. Default is 0. */
+	public void setWorkers (int workers) {
+		this.workers = workers;
+	}
+
+	public int getCapacity () {
+		return capacity;
+	}
+
+	/** Sets the number of datagrams which can wait for a worker before datagrams are dropped. Takes effect the next time the
+	 * server is started. Default is 4096. */
+	public void setCapacity (int capacity) {
+		this.capacity = capacity;
+	}
+
+	public int getPacketSize () {
+		return packetSize;
+	}
+
+	/** Sets the size of each pooled buffer. Larger datagrams are truncated. Takes effect the next time the server is started.
+	 * Default is 2048. */
+	public void setPacketSize (int packetSize) {
+		this.packetSize = packetSize;
+	}
+
+	public int getSocketBufferSize () {
+		return socketBufferSize;
+	}
+
+	/** Sets SO_RCVBUF for each socket, which holds datagrams the receivers have not yet read. Takes effect the next time the server
+	 * is started.
+	 * @param socketBufferSize 0 to use the OS default. */
+	public void setSocketBufferSize (int socketBufferSize) {
+		this.socketBufferSize = socketBufferSize;
+	}
+
+	/** @return May be null if the server is not running. */
+	public DatagramChannel[] getChannels () {
+		return channels;
+	}
+
+	/** A received datagram. */
+	static public class Packet {
+		final ByteBuffer buffer;
+		InetSocketAddress address;
+		DatagramChannel channel;
+
+		Packet (int size) {
+			buffer = ByteBuffer.allocateDirect(size);
+		}
+
+		/** Returns a direct buffer with the datagram between the position and limit. */
+		public ByteBuffer getBuffer () {
+			return buffer;
+		}
+
+		public InetSocketAddress getAddress () {
+			return address;
+		}
+
+		/** Sends the remaining bytes of the buffer to the packet's address from the socket which received it. */
+		public void reply (ByteBuffer buffer) throws IOException {
+			channel.send(buffer, address);
+		}
+	}
+}
@@ -0,0 +1,514 @@
+/* Copyright (c) 2017-2021, Esoteric Software
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following
+ * conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.esotericsoftware.tcpserver;
+
+import static com.esotericsoftware.minlog.Log.*;
+import static com.esotericsoftware.tcpserver.ReliableUdpServer.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/** A reliable connection over UDP to another {@link ReliableUdpServer}. Messages are numbered and retransmitted until
+ * acknowledged. Acknowledgements are selective, so a lost datagram only delays messages which must be delivered after it.
+ * Ordered messages are delivered in the order they were sent, unordered messages as soon as they arrive. Retransmit timeouts
+ * are computed from the measured round trip time, and a datagram is retransmitted early when 3 datagrams sent after it are
+ * acknowledged first. All methods are thread safe.
+ * @see ReliableUdpServer#connect(String, int, int) */
+public class UdpConnection {
+	/** The maximum sequence distance from the oldest unacknowledged datagram to the newest datagram sent, which matches the
+	 * acknowledgement mask. */
+	static final int window = 64;
+
+	final ReliableUdpServer server;
+	final String category;
+	final int id;
+	final InetAddress address;
+	final int port;
+	volatile boolean connected, closed;
+
+	// Sending, guarded by this.
+	private int nextSequence, nextOrder;
+	private final LinkedHashMap<Integer, Outgoing> unacked = new LinkedHashMap();
+	private final ArrayDeque<Outgoing> queue = new ArrayDeque();
+	private int highestAcked = -1, lastTransmitted = -1;
+	private long smoothedRtt, rttVariance, retransmitTimeout = 200 * 1000000L;
+	private long lastSent;
+	private final byte[] ackBuffer = new byte[17];
+
+	// Receiving, guarded by this.
+	private int receiveBase;
+	private long receiveMask;
+	private int deliverOrder;
+	private final HashMap<Integer, Incoming> held = new HashMap();
+	volatile long lastReceived;
+
+	private volatile long packetsSent, retransmits;
+	Object userObject;
+
+	UdpConnection (ReliableUdpServer server, int id, InetAddress address, int port) {
+		this.server = server;
+		this.category = server.category;
+		this.id = id;
+		this.address = address;
+		this.port = port;
+		lastReceived = System.nanoTime();
+	}
+
+	/** Sends a message which is delivered after all ordered messages sent before it.
+	 * @return false if the connection is closed or the send queue is full. */
+	public boolean send (String message) {
+		return send(message, null, 0, 0, true);
+	}
+
+	/** @see #send(String) */
+	public boolean send (String message, byte[] bytes) {
+		return send(message, bytes, 0, bytes.length, true);
+	}
+
+	/** @param bytes May be null if count is 0.
+	 * @see #send(String) */
+	public boolean send (String message, byte[] bytes, int offset, int count) {
+		return send(message, bytes, offset, count, true);
+	}
+
+	/** Sends a message which is delivered as soon as it arrives, even if messages sent before it have not yet arrived.
+	 * @param bytes May be null if count is 0.
+	 * @return false if the connection is closed or the send queue is full. */
+	public boolean sendUnordered (String message, byte[] bytes, int offset, int count) {
+		return send(message, bytes, offset, count, false);
+	}
+
+	/** @throws IllegalArgumentException if the message and bytes don't fit in one datagram. */
+	boolean send (String message, byte[] bytes, int offset, int count, boolean ordered) {
+		byte[] messageBytes = message.getBytes(StandardCharsets.UTF_8);
+		synchronized (this) {
+			if (closed) return false;
+			if (queue.size() >= server.getSendCapacity()) {
+				if (DEBUG) debug(category, "Unable to send, queue is full: " + message);
+				return false;
+			}
+			int sequence = nextSequence++;
+			ByteArrayOutputStream output = new ByteArrayOutputStream(14 + messageBytes.length + count);
+			output.write(data);
+			writeInt(output, id);
+			writeInt(output, sequence);
+			if (ordered) {
+				output.write(1);
+				writeInt(output, nextOrder++);
+			} else
+				output.write(0);
+			try {
+				Util.writeVarint(messageBytes.length, output);
+			} catch (IOException ignored) { // Doesn't happen.
+			}
+			output.write(messageBytes, 0, messageBytes.length);
+			if (count > 0) output.write(bytes, offset, count);
+			if (output.size() > server.getMaxPacketSize())
+				throw new IllegalArgumentException("Message is too large: " + output.size() + " > " + server.getMaxPacketSize());
+
+			Outgoing outgoing = new Outgoing(sequence, output.toByteArray());
+			if (connected && queue.isEmpty() && inWindow(outgoing))
+				transmit(outgoing, System.nanoTime());
+			else
+				queue.add(outgoing);
+		}
+		return true;
+	}
+
+	/** Returns true if the datagram is within the window after the oldest unacknowledged datagram, so the other side can
+	 * acknowledge it. Must be called while synchronized. */
+	private boolean inWindow (Outgoing outgoing) {
+		if (unacked.isEmpty()) return true;
+		return outgoing.sequence - unacked.values().iterator().next().sequence < window;
+	}
+
+	/** Must be called while synchronized. */
+	private void transmitQueued (long now) {
+		while (true) {
+			Outgoing outgoing = queue.peek();
+			if (outgoing == null || !inWindow(outgoing)) break;
+			queue.poll();
+			transmit(outgoing, now);
+		}
+	}
+
+	/** Must be called while synchronized. */
+	private void transmit (Outgoing outgoing, long now) {
+		unacked.put(outgoing.sequence, outgoing);
+		lastTransmitted = outgoing.sequence;
+		outgoing.resentAfter = outgoing.sequence;
+		outgoing.sent = now;
+		outgoing.deadline = now + retransmitTimeout;
+		sendPacket(outgoing.packet, now);
+	}
+
+	private void sendPacket (byte[] packet, long now) {
+		lastSent = now;
+		packetsSent++;
+		server.sendPacket(packet, packet.length, address, port);
+	}
+
+	/** Called on the server's receive thread when a data datagram arrives. */
+	void receiveData (byte[] packet, int length) {
+		if (length < 10) return;
+		int sequence = readInt(packet, 5);
+		boolean ordered = packet[9] == 1;
+		// Parsed before the sequence is accepted and acked, so an invalid datagram is dropped as if it was lost.
+		Incoming incoming = Incoming.read(packet, ordered ? 14 : 10, length);
+		if (incoming == null) {
+			if (DEBUG) debug(category, "Invalid UDP data: " + address.getHostAddress() + ":" + port + ", " + length + " bytes");
+			return;
+		}
+		lastReceived = System.nanoTime();
+
+		if (!connected) connected(); // The handshake reply was lost.
+		ArrayList<Incoming> deliver = null;
+		synchronized (this) {
+			if (closed) return;
+			boolean accepted = accept(sequence);
+			sendAck();
+			if (!accepted) return;
+
+			if (!ordered) {
+				deliver = new ArrayList(1);
+				deliver.add(incoming);
+			} else {
+				int order = readInt(packet, 10);
+				if (order != deliverOrder)
+					held.put(order, incoming);
+				else {
+					deliver = new ArrayList();
+					deliver.add(incoming);
+					deliverOrder++;
+					while (true) {
+						Incoming next = held.remove(deliverOrder);
+						if (next == null) break;
+						deliver.add(next);
+						deliverOrder++;
+					}
+				}
+			}
+		}
+		if (deliver != null) {
+			for (Incoming next : deliver)
+				next.deliver(this);
+		}
+	}
+
+	/** Records the sequence as received.
+	 * @return false if it was received before or is beyond the window. */
+	private boolean accept (int sequence) {
+		int offset = sequence - receiveBase;
+		if (offset < 0 || offset > 64) return false;
+		if (offset == 0) {
+			receiveBase++;
+			while ((receiveMask & 1) != 0) {
+				receiveMask >>>= 1;
+				receiveBase++;
+			}
+			receiveMask >>>= 1;
+			return true;
+		}
+		long bit = 1L << (offset - 1);
+		if ((receiveMask & bit) != 0) return false;
+		receiveMask |= bit;
+		return true;
+	}
+
+	/** Acknowledges all sequences before the receive base and those in the mask. Must be called while synchronized. */
+	private void sendAck () {
+		ackBuffer[0] = ack;
+		writeInt(ackBuffer, 1, id);
+		writeInt(ackBuffer, 5, receiveBase);
+		long mask = receiveMask;
+		for (int i = 16; i >= 9; i--, mask >>>= 8)
+			ackBuffer[i] = (byte)mask;
+		sendPacket(ackBuffer, System.nanoTime());
+	}
+
+	/** Called on the server's receive thread when an acknowledgement arrives. */
+	void receiveAck (byte[] packet) {
+		lastReceived = System.nanoTime();
+		int base = readInt(packet, 5);
+		long mask = 0;
+		for (int i = 9; i < 17; i++)
+			mask = mask << 8 | (packet[i] & 0xff);
+
+		synchronized (this) {
+			if (closed) return;
+			long now = System.nanoTime();
+			for (Iterator<Outgoing> iter = unacked.values().iterator(); iter.hasNext();) {
+				Outgoing outgoing = iter.next();
+				int offset = outgoing.sequence - base;
+				if (offset >= 0 && (offset == 0 || offset > 64 || (mask & 1L << (offset - 1)) == 0)) continue;
+				iter.remove();
+				if (outgoing.sequence - highestAcked > 0) highestAcked = outgoing.sequence;
+				if (outgoing.retransmits == 0) sample(now - outgoing.sent); // Karn's algorithm.
+			}
+
+			// Retransmit early when 3 datagrams sent after it, or after its last retransmit, were acknowledged.
+			for (Outgoing outgoing : unacked.values()) {
+				if (highestAcked - outgoing.sequence < 3) break;
+				if (highestAcked - outgoing.resentAfter >= 3) retransmit(outgoing, now);
+			}
+
+			transmitQueued(now);
+		}
+	}
+
+	/** Updates the retransmit timeout as described by RFC 6298. */
+	private void sample (long rtt) {
+		if (smoothedRtt == 0) {
+			smoothedRtt = rtt;
+			rttVariance = rtt / 2;
+		} else {
+			rttVariance += (Math.abs(smoothedRtt - rtt) - rttVariance) / 4;
+			smoothedRtt += (rtt - smoothedRtt) / 8;
+		}
+		retransmitTimeout = Math.max(server.getMinRetransmitTimeout() * 1000000L, smoothedRtt + 4 * rttVariance);
+	}
+
+	private void retransmit (Outgoing outgoing, long now) {
+		outgoing.retransmits++;
+		retransmits++;
+		long timeout = Math.min(retransmitTimeout << Math.min(outgoing.retransmits, 6), maxRetransmitTimeout * 1000000L);
+		outgoing.deadline = now + timeout;
+		outgoing.resentAfter = lastTransmitted;
+		if (TRACE) trace(category, "Retransmit: " + outgoing.sequence + ", " + outgoing.retransmits);
+		sendPacket(outgoing.packet, now);
+	}
+
+	/** Called periodically by the server to retransmit, keep the connection alive and time out. */
+	void update (long now) {
+		boolean timeout = now - lastReceived > server.getTimeout() * 1000000L;
+		synchronized (this) {
+			if (closed) return;
+			if (!connected) {
+				if (now - lastSent > retransmitTimeout) sendHandshake(now);
+			} else if (!timeout) {
+				for (Outgoing outgoing : unacked.values()) {
+					if (now - outgoing.deadline < 0) continue;
+					if (outgoing.retransmits >= server.getMaxRetransmits()) {
+						timeout = true;
+						break;
+					}
+					retransmit(outgoing, now);
+				}
+				if (now - lastSent > keepAlive * 1000000L) sendAck();
+			}
+		}
+		if (timeout) {
+			if (DEBUG) debug(category, "UDP connection timed out: " + this);
+			close();
+		}
+	}
+
+	void sendHandshake (long now) {
+		byte[] packet = new byte[5];
+		packet[0] = syn;
+		writeInt(packet, 1, id);
+		sendPacket(packet, now);
+	}
+
+	/** Called when the handshake completes. */
+	void connected () {
+		synchronized (this) {
+			if (connected || closed) return;
+			connected = true;
+			long now = System.nanoTime();
+			transmitQueued(now);
+			notifyAll();
+		}
+		if (INFO) info(category, "UDP connected: " + this);
+		server.connected(this);
+	}
+
+	/** Blocks until the handshake completes or the connection is closed.
+	 * @return true if connected. */
+	synchronized boolean waitForConnection (long millis) {
+		long end = System.currentTimeMillis() + millis;
+		while (!connected && !closed) {
+			long remaining = end - System.currentTimeMillis();
+			if (remaining <= 0) break;
+			try {
+				wait(remaining);
+			} catch (InterruptedException ex) {
+				break;
+			}
+		}
+		return connected && !closed;
+	}
+
+	/** Called when a message is received. By default, calls
+	 * {@link ReliableUdpServer#receive(UdpConnection, String, String, byte[], int)}. */
+	public void receive (String event, String payload, byte[] bytes, int count) {
+		server.receive(this, event, payload, bytes, count);
+	}
+
+	/** Tells the other side the connection is closed and stops retransmitting. Messages not yet acknowledged are lost. */
+	public void close () {
+		close(true);
+	}
+
+	/** @param notify False if the other side has closed. */
+	void close (boolean notify) {
+		boolean wasConnected;
+		synchronized (this) {
+			if (closed) return;
+			closed = true;
+			wasConnected = connected;
+			if (notify) {
+				byte[] packet = new byte[5];
+				packet[0] = fin;
+				writeInt(packet, 1, id);
+				sendPacket(packet, System.nanoTime());
+			}
+			unacked.clear();
+			queue.clear();
+			held.clear();
+			notifyAll();
+		}
+		server.remove(this);
+		if (wasConnected) {
+			if (INFO) info(category, "UDP disconnected: " + this);
+			server.disconnected(this);
+		}
+	}
+
+	public boolean isConnected () {
+		return connected && !closed;
+	}
+
+	public boolean isClosed () {
+		return closed;
+	}
+
+	public InetAddress getAddress () {
+		return address;
+	}
+
+	public int getPort () {
+		return port;
+	}
+
+	/** Returns the number of messages sent but not yet acknowledged, including those waiting for the window. */
+	public synchronized int getSendQueueSize () {
+		return unacked.size() + queue.size();
+	}
+
+	/** Returns the smoothed round trip time in nanoseconds, or 0 if it has not been measured. */
+	public synchronized long getRoundTripTime () {
+		return smoothedRtt;
+	}
+
+	/** Returns the current retransmit timeout in nanoseconds. */
+	public synchronized long getRetransmitTimeout () {
+		return retransmitTimeout;
+	}
+
+	/** Returns the number of datagrams sent, including acknowledgements and retransmits. */
+	public long getPacketsSent () {
+		return packetsSent;
+	}
+
+	public long getRetransmits () {
+		return retransmits;
+	}
+
+	public Object getUserObject () {
+		return userObject;
+	}
+
+	public void setUserObject (Object userObject) {
+		this.userObject = userObject;
+	}
+
+	public String toString () {
+		return address.getHostAddress() + ":" + port + " (" + Integer.toHexString(id) + ")";
+	}
+
+	static private class Outgoing {
+		final int sequence;
+		final byte[] packet;
+		long sent, deadline;
+		int retransmits;
+		/** The newest sequence sent when this datagram was last sent. */
+		int resentAfter;
+
+		Outgoing (int sequence, byte[] packet) {
+			this.sequence = sequence;
+			this.packet = packet;
+		}
+	}
+
+	/** A received message, copied from the receive buffer. */
+	static private class Incoming {
+		final String message;
+		final byte[] bytes;
+
+		Incoming (String message, byte[] bytes) {
+			this.message = message;
+			this.bytes = bytes;
+		}
+
+		/** @return null if the message length is invalid. */
+		static Incoming read (byte[] packet, int start, int length) {
+			int messageLength = 0, shift = 0, b;
+			do {
+				if (start >= length || shift > 28) return null;
+				b = packet[start++];
+				messageLength |= (b & 0x7f) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			if (messageLength < 0 || messageLength > length - start) return null;
+			String message = new String(packet, start, messageLength, StandardCharsets.UTF_8);
+			start += messageLength;
+			return new Incoming(message, start < length ? Arrays.copyOfRange(packet, start, length) : null);
+		}
+
+		void deliver (UdpConnection connection) {
+			String event, payload;
+			int index = message.indexOf(" ");
+			if (index != -1) {
+				event = message.substring(0, index).trim();
+				payload = message.substring(index + 1).trim();
+			} else {
+				event = message.trim();
+				payload = "";
+			}
+			if (TRACE) trace(connection.category, "Received: " + event + ", " + payload + (bytes != null ? ", " + bytes.length : ""));
+			try {
+				connection.receive(event, payload, bytes, bytes == null ? 0 : bytes.length);
+			} catch (Throwable ex) {
+				if (ERROR) error(connection.category, "Error processing message: " + message, ex);
+			}
+		}
+	}
+}
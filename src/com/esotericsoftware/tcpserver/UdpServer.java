@@ -28,6 +28,8 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
 import java.net.SocketException;
 
 import com.esotericsoftware.tcpserver.UdpBroadcast.Subnets;
@@ -36,6 +38,9 @@ public abstract class UdpServer extends Retry {
 	int port;
 	private final byte[] receiveBuffer;
 	DatagramSocket socket;
+	private final DatagramPacket sendPacket = new DatagramPacket(new byte[0], 0);
+	private volatile InetAddress group;
+	private volatile NetworkInterface networkInterface;
 
 	public UdpServer (String category, String name) {
 		this(category, name, 0, 1024);
@@ -52,6 +57,20 @@ public abstract class UdpServer extends Retry {
 	}
 
 	protected DatagramSocket bind () throws IOException {
+		InetAddress group = this.group;
+		if (group != null) {
+			MulticastSocket socket = new MulticastSocket(null);
+			socket.setReuseAddress(true);
+			socket.bind(new InetSocketAddress(port));
+			try {
+				socket.joinGroup(new InetSocketAddress(group, 0), networkInterface);
+			} catch (IOException ex) {
+				closeQuietly(socket);
+				throw ex;
+			}
+			if (DEBUG) debug(category, "Joined multicast group: " + group.getHostAddress());
+			return socket;
+		}
 		DatagramSocket socket = new DatagramSocket(null);
 		socket.setReuseAddress(true);
 		socket.bind(new InetSocketAddress(port));
@@ -98,7 +117,17 @@ public abstract class UdpServer extends Retry {
 	}
 
 	public void send (byte[] buffer, InetAddress address, int port) throws IOException {
-		socket.send(new DatagramPacket(buffer, buffer.length, address, port));
+		send(buffer, 0, buffer.length, address, port);
+	}
+
+	/** Sends using a packet which is reused for each send. */
+	public void send (byte[] buffer, int offset, int count, InetAddress address, int port) throws IOException {
+		synchronized (sendPacket) {
+			sendPacket.setData(buffer, offset, count);
+			sendPacket.setAddress(address);
+			sendPacket.setPort(port);
+			socket.send(sendPacket);
+		}
 	}
 
 	public int getPort () {
@@ -109,6 +138,21 @@ public abstract class UdpServer extends Retry {
 		this.port = port;
 	}
 
+	/** @return May be null. */
+	public InetAddress getMulticastGroup () {
+		return group;
+	}
+
+	/** Sets a multicast group to join so datagrams sent to the group are received, in addition to those sent to this host. Takes
+	 * effect the next time the server is started.
+	 * @param group May be null to not join a group.
+	 * @param networkInterface The interface to join the group on, or null to let the system choose. */
+	public void setMulticast (InetAddress group, NetworkInterface networkInterface) {
+		if (group != null && !group.isMulticastAddress()) throw new IllegalArgumentException("Not a multicast address: " + group);
+		this.group = group;
+		this.networkInterface = networkInterface;
+	}
+
 	public DatagramSocket getSocket () {
 		return socket;
 	}
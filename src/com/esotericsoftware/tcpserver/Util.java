@@ -26,8 +26,13 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.DatagramPacket;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.NetworkChannel;
 
 public class Util {
+	static private final SocketOption<Boolean> reusePort = reusePortOption();
+
 	static public void closeQuietly (Closeable closeable) {
 		if (closeable == null) return;
 		try {
@@ -98,6 +103,23 @@ public class Util {
 		return false;
 	}
 
+	/** Sets SO_REUSEPORT, which allows multiple sockets to bind the same port.
+	 * @throws IOException if SO_REUSEPORT is not supported by the JVM or OS. */
+	static public void setReusePort (NetworkChannel channel) throws IOException {
+		if (reusePort == null || !channel.supportedOptions().contains(reusePort))
+			throw new IOException("SO_REUSEPORT is not supported.");
+		channel.setOption(reusePort, true);
+	}
+
+	/** SO_REUSEPORT is only available in Java 9+. */
+	static private SocketOption<Boolean> reusePortOption () {
+		try {
+			return (SocketOption<Boolean>)StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+		} catch (Exception ex) {
+			return null;
+		}
+	}
+
 	static public String toString (DatagramPacket packet) {
 		int length = packet.getLength();
 		byte[] data = packet.getData();